@@ -0,0 +1,81 @@
+package com.qonect.protocols.mqtt.bench;
+
+import com.qonect.protocols.mqtt.impl.MqttClientPool;
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryToken;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Publish throughput through MqttClientPool for growing pool sizes: QoS 1
+ *  messages spread over a number of topics, sent with publishAsync and
+ *  counted once the broker has acknowledged all of them. Needs a broker.
+ *
+ *  Usage: ClientPoolBenchmark host port [messages] [topics] [payloadBytes] [poolSizes, e.g. 1,2,4,8]
+ */
+public class ClientPoolBenchmark
+{
+	public static void main(String[] args) throws Throwable
+	{
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+		int topicCount = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		int payloadBytes = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+		String[] poolSizes = (args.length > 5 ? args[5] : "1,2,4,8").split(",");
+
+		IMqttTopic[] topics = new IMqttTopic[topicCount];
+		for(int i = 0; i < topicCount; i++){
+			topics[i] = new MqttTopic("bench/pool/"+i);
+		}
+		MqttMessage message = new MqttMessage(new byte[payloadBytes]);
+		message.setQoS(1);
+
+		System.out.println("messages="+messages+", topics="+topicCount+", payload="+payloadBytes+" bytes");
+		System.out.println("poolSize,msgPerSecond,connectMillis");
+		for(String poolSize : poolSizes){
+			run(host, port, Integer.parseInt(poolSize.trim()), topics, message, messages);
+		}
+	}
+
+	private static void run(String host, int port, int poolSize, IMqttTopic[] topics,
+		MqttMessage message, int messages) throws Throwable
+	{
+		// with a window per connection, the pool can have poolSize times as
+		//  many messages in flight as a single client
+		MqttClientPool pool = new MqttClientPool(new PahoMqttClientFactory(), host, port,
+			"bench-"+System.nanoTime() % 100000, poolSize, null);
+
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setKeepAliveInterval((short)60);
+
+		long connectStart = System.nanoTime();
+		pool.connect(options);
+		long connectMillis = (System.nanoTime() - connectStart) / 1000000;
+
+		// warm up
+		send(pool, topics, message, messages / 10);
+
+		long start = System.nanoTime();
+		send(pool, topics, message, messages);
+		long nanos = System.nanoTime() - start;
+
+		pool.disconnect();
+		System.out.println(poolSize+","+(long)(messages * 1e9 / nanos)+","+connectMillis);
+	}
+
+	private static void send(MqttClientPool pool, IMqttTopic[] topics, MqttMessage message,
+		int messages) throws Throwable
+	{
+		IMqttDeliveryToken[] tokens = new IMqttDeliveryToken[messages];
+		for(int i = 0; i < messages; i++){
+			tokens[i] = pool.publishAsync(topics[i % topics.length], message);
+		}
+		for(IMqttDeliveryToken token : tokens){
+			token.waitForCompletion();
+		}
+	}
+}
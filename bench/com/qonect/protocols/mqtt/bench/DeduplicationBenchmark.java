@@ -0,0 +1,83 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.qonect.protocols.mqtt.impl.MqttDeduplicator;
+
+/*
+ * The cost per message of MqttDeduplicator, next to an LRU of fingerprints
+ *  in a LinkedHashMap, for a capacity of 1024 messages. Before that, a
+ *  stream of distinct messages in which every tenth is delivered again a
+ *  little later, as after a reconnect, checks that every redelivery is
+ *  recognised and no new message is taken for one.
+ *
+ *  Usage: DeduplicationBenchmark [rounds] [opsPerRound]
+ */
+public class DeduplicationBenchmark
+{
+	private static final int CAPACITY = 1024;
+	private static final String TOPIC = "fleet/site1/dev1/telemetry";
+
+	public static void main(String[] args) throws Throwable
+	{
+		final byte[][] payloads = new byte[4096][];
+		Random random = new Random(42);
+		for(int i = 0; i < payloads.length; i++){
+			payloads[i] = new byte[64];
+			random.nextBytes(payloads[i]);
+		}
+
+		checkRedeliveries(payloads);
+
+		final MqttDeduplicator deduplicator = new MqttDeduplicator(CAPACITY, 60 * 1000);
+		final Map<Long, Boolean> lru = new LinkedHashMap<Long, Boolean>(CAPACITY * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+				return size() > CAPACITY;
+			}
+		};
+
+		MicroBenchmark bench = MicroBenchmark.fromArgs(args);
+		bench.run("rotating tables", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = deduplicator.isDuplicate(TOPIC, payloads[i & 4095]) ? Boolean.TRUE : Boolean.FALSE;
+			}
+		});
+		bench.run("LinkedHashMap LRU", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				long key = MqttDeduplicator.FINGERPRINT.keyOf(TOPIC, payloads[i & 4095]);
+				MicroBenchmark.sink = lru.put(Long.valueOf(key), Boolean.TRUE);
+			}
+		});
+		System.out.println("tables take "+deduplicator.getMemoryBytes()+" bytes");
+	}
+
+	private static void checkRedeliveries(byte[][] payloads)
+	{
+		MqttDeduplicator deduplicator = new MqttDeduplicator(CAPACITY, 60 * 1000);
+		int redelivered = 0;
+		int missed = 0;
+		int falseDuplicates = 0;
+		for(int i = 0; i < payloads.length; i++)
+		{
+			if(deduplicator.isDuplicate(TOPIC, payloads[i])){
+				falseDuplicates++;
+			}
+			// 100 messages later, well within the capacity
+			if(i >= 100 && i % 10 == 0){
+				redelivered++;
+				if(!deduplicator.isDuplicate(TOPIC, payloads[i - 100])){
+					missed++;
+				}
+			}
+		}
+		System.out.println("redeliveries: "+redelivered+", missed "+missed+", new messages taken for duplicates "+falseDuplicates
+			+", "+deduplicator);
+	}
+}
@@ -0,0 +1,84 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.qonect.protocols.mqtt.impl.MqttInboundQueue;
+import com.qonect.protocols.mqtt.impl.MqttInboundQueue.OverflowPolicy;
+import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Bursts of messages arriving faster than a handler can take them, fed
+ *  through MqttInboundQueue with each overflow policy and several worker
+ *  counts. Reports how long the client's callback thread was held up -
+ *  which is time it is not reading from the socket - next to how many
+ *  messages the handler saw, and how many were dropped or conflated.
+ *
+ *  Usage: InboundQueueBenchmark [bursts] [burstSize] [topics] [handlerMicros]
+ */
+public class InboundQueueBenchmark
+{
+	private static final int CAPACITY = 256;
+	private static final int[] WORKERS = { 1, 2, 4 };
+	// pause between bursts
+	private static final long IDLE_MILLIS = 20;
+
+	public static void main(String[] args) throws Exception
+	{
+		int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int burstSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int topics = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		final long handlerNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 3 ? Long.parseLong(args[3]) : 50);
+
+		IMqttTopic[] names = new IMqttTopic[topics];
+		for(int i = 0; i < topics; i++){
+			names[i] = new MqttTopic("devices/"+i+"/state");
+		}
+		IMqttMessage message = new MqttMessage(new byte[64]);
+
+		System.out.println("bursts="+bursts+", burstSize="+burstSize+", topics="+topics
+			+", handler="+TimeUnit.NANOSECONDS.toMicros(handlerNanos)+"us, capacity="+CAPACITY);
+		System.out.println("policy,workers,stalledMillis,maxStallMicros,delivered,dropped,conflated");
+
+		IMqttCallback handler = new IMqttCallback() {
+			@Override
+			public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception {
+				// busy, as a handler parsing and storing the message would be
+				long end = System.nanoTime() + handlerNanos;
+				while(System.nanoTime() < end);
+			}
+
+			@Override
+			public void connectionLost(Throwable throwable) {
+			}
+		};
+
+		for(OverflowPolicy policy : OverflowPolicy.values()){
+			for(int workers : WORKERS){
+				MqttInboundQueue queue = new MqttInboundQueue(handler, workers, CAPACITY, policy);
+
+				long stalled = 0;
+				long maxStall = 0;
+				for(int b = 0; b < bursts; b++)
+				{
+					for(int i = 0; i < burstSize; i++){
+						long start = System.nanoTime();
+						queue.messageArrived(names[i % topics], message);
+						long took = System.nanoTime() - start;
+						stalled += took;
+						maxStall = Math.max(maxStall, took);
+					}
+					Thread.sleep(IDLE_MILLIS);
+				}
+				queue.shutdown(60 * 1000);
+
+				System.out.println(policy+","+workers+","+TimeUnit.NANOSECONDS.toMillis(stalled)
+					+","+TimeUnit.NANOSECONDS.toMicros(maxStall)+","+queue.getDeliveredCount()
+					+","+queue.getDroppedCount()+","+queue.getConflatedCount());
+			}
+		}
+	}
+}
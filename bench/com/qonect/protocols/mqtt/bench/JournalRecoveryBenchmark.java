@@ -0,0 +1,99 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.io.File;
+
+import com.qonect.protocols.mqtt.impl.journal.MqttJournalPersistence;
+
+/*
+ * Measures how long MqttJournalPersistence.open takes to rebuild its index
+ *  as the journal grows, and the write rate while filling it.
+ *
+ *  Usage: JournalRecoveryBenchmark [directory] [payloadBytes]
+ *
+ *  Every size is filled with in-flight messages of which half have been
+ *  acknowledged (removed) again, which is what a busy client leaves behind.
+ */
+public class JournalRecoveryBenchmark
+{
+	private static final int[] LIVE_KEYS = {1000, 10000, 50000, 100000};
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Throwable
+	{
+		File base = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "journal-bench");
+		int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+		byte[] header = new byte[4];
+		byte[] payload = new byte[payloadBytes];
+
+		System.out.println("liveKeys,journalBytes,segments,writesPerSec,recoverMillisMin,recoverMillisAvg");
+
+		for(int liveKeys : LIVE_KEYS)
+		{
+			delete(base);
+
+			MqttJournalPersistence journal = new MqttJournalPersistence(base);
+			journal.open("bench", "tcp://localhost:1883");
+
+			long start = System.nanoTime();
+			for(int i = 0; i < liveKeys * 2; i++){
+				journal.put("s-"+i, header, 0, header.length, payload, 0, payload.length);
+				if(i % 2 == 1){
+					journal.remove("s-"+(i - 1));
+				}
+			}
+			long writeNanos = System.nanoTime() - start;
+			journal.close();
+
+			long journalBytes = size(base);
+
+			long min = Long.MAX_VALUE;
+			long total = 0;
+			int segments = 0;
+			for(int round = 0; round < ROUNDS; round++){
+				MqttJournalPersistence reopened = new MqttJournalPersistence(base);
+				start = System.nanoTime();
+				reopened.open("bench", "tcp://localhost:1883");
+				long nanos = System.nanoTime() - start;
+				if(reopened.size() != liveKeys){
+					throw new IllegalStateException("recovered "+reopened.size()+" keys, expected "+liveKeys);
+				}
+				segments = reopened.getSegmentCount();
+				reopened.close();
+
+				min = Math.min(min, nanos);
+				total += nanos;
+			}
+
+			System.out.println(liveKeys+","+journalBytes+","+segments+","
+				+(long)(liveKeys * 3 / (writeNanos / 1e9))+","
+				+(min / 1000000.0)+","+(total / ROUNDS / 1000000.0));
+		}
+
+		delete(base);
+	}
+
+	private static long size(File file)
+	{
+		if(file.isFile())return file.length();
+		long total = 0;
+		File[] children = file.listFiles();
+		if(children != null){
+			for(File child : children){
+				total += size(child);
+			}
+		}
+		return total;
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null){
+			for(File child : children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,72 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.qonect.protocols.mqtt.impl.MqttAdaptiveKeepAlive;
+import com.qonect.protocols.mqtt.interfaces.IMqttKeepAliveStore;
+
+/*
+ * Simulates MqttAdaptiveKeepAlive on idle networks that drop connections
+ *  after various NAT timeouts, and reports how many pings it takes to find
+ *  the interval, how many of them fail on the way, and the resulting number
+ *  of pings per day.
+ *
+ *  Usage: KeepAliveBenchmark [minSeconds] [maxSeconds]
+ */
+public class KeepAliveBenchmark
+{
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	public static void main(String[] args)
+	{
+		long min = (args.length > 0 ? Long.parseLong(args[0]) : 60) * 1000;
+		long max = (args.length > 1 ? Long.parseLong(args[1]) : 20 * 60) * 1000;
+
+		System.out.println("natTimeoutSeconds,pingsToConverge,failures,intervalSeconds,pingsPerDay,pingsPerDayAtMin");
+		long[] natTimeouts = {45, 90, 120, 300, 420, 600, 900, 1800};
+		for(long natTimeout : natTimeouts){
+			simulate(natTimeout * 1000, min, max);
+		}
+	}
+
+	private static void simulate(long natTimeoutMillis, long min, long max)
+	{
+		final Map<String, Long> stored = new HashMap<String, Long>();
+		IMqttKeepAliveStore store = new IMqttKeepAliveStore() {
+			@Override
+			public long getLong(String key, long defaultValue) {
+				Long value = stored.get(key);
+				return value == null ? defaultValue : value.longValue();
+			}
+			@Override
+			public void putLong(String key, long value) {
+				stored.put(key, Long.valueOf(value));
+			}
+		};
+
+		MqttAdaptiveKeepAlive keepAlive = new MqttAdaptiveKeepAlive(store, min, max);
+		keepAlive.setNetwork("sim");
+
+		int pings = 0;
+		int failures = 0;
+		while(!keepAlive.isStable() && pings < 100)
+		{
+			long interval = keepAlive.getIntervalMillis();
+			pings++;
+			if(interval < natTimeoutMillis){
+				keepAlive.onPingSucceeded(interval);
+			}
+			else {
+				failures++;
+				keepAlive.onPingFailed(interval);
+			}
+			// never finds a ceiling when the network outlasts the maximum
+			if(interval == max && interval < natTimeoutMillis)break;
+		}
+
+		long interval = keepAlive.getIntervalMillis();
+		System.out.println((natTimeoutMillis / 1000)+","+pings+","+failures+","+(interval / 1000)
+			+","+(DAY_MILLIS / interval)+","+(DAY_MILLIS / min));
+	}
+}
@@ -0,0 +1,91 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import com.qonect.protocols.mqtt.impl.MqttLastValueCache;
+
+/*
+ * The cost of keeping the last message per topic in MqttLastValueCache on
+ *  the message path, and of the snapshot a late consumer takes instead of
+ *  waiting for the next publish, for 1000 topics in a 256 KB budget.
+ *  Before that, checks that the budget holds while far more topics come
+ *  and go, and that a topic that keeps being looked up is not evicted.
+ *
+ *  Usage: LastValueCacheBenchmark [rounds] [opsPerRound]
+ */
+public class LastValueCacheBenchmark
+{
+	private static final int TOPICS = 1000;
+	private static final long MAX_BYTES = 256 * 1024;
+
+	public static void main(String[] args) throws Throwable
+	{
+		final String[] topics = new String[TOPICS];
+		final byte[][] payloads = new byte[TOPICS][];
+		Random random = new Random(42);
+		for(int i = 0; i < TOPICS; i++){
+			topics[i] = "fleet/site"+(i % 20)+"/dev"+i+"/state";
+			payloads[i] = new byte[16 + random.nextInt(48)];
+			random.nextBytes(payloads[i]);
+		}
+
+		checkBudget(payloads);
+
+		final MqttLastValueCache cache = new MqttLastValueCache(MAX_BYTES);
+		for(int i = 0; i < TOPICS; i++){
+			cache.put(topics[i], payloads[i]);
+		}
+
+		MicroBenchmark bench = MicroBenchmark.fromArgs(args);
+		bench.run("put", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				int t = i % TOPICS;
+				cache.put(topics[t], payloads[t]);
+			}
+		});
+		bench.run("get", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = cache.get(topics[i % TOPICS]);
+			}
+		});
+
+		MicroBenchmark snapshots = new MicroBenchmark(5, 3, 1000);
+		snapshots.run("snapshot fleet/site7/#", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = cache.snapshot("fleet/site7/#");
+			}
+		});
+		snapshots.run("snapshot #", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = cache.snapshot("#");
+			}
+		});
+		System.out.println(cache);
+	}
+
+	private static void checkBudget(byte[][] payloads)
+	{
+		MqttLastValueCache cache = new MqttLastValueCache(MAX_BYTES);
+		String watched = "fleet/watched/state";
+		cache.put(watched, new byte[]{1});
+
+		boolean withinBudget = true;
+		for(int i = 0; i < 50 * TOPICS; i++){
+			cache.put("fleet/churn/"+i, payloads[i % TOPICS]);
+			withinBudget &= cache.getBytes() <= MAX_BYTES;
+			if(i % 100 == 0){
+				cache.get(watched);
+			}
+		}
+
+		List<MqttLastValueCache.Entry> snapshot = cache.snapshot("fleet/watched/#");
+		boolean ok = withinBudget && snapshot.size() == 1 && cache.getEvictionCount() > 0;
+		System.out.println("budget: "+cache+", watched topic kept="+(snapshot.size() == 1)
+			+", "+(ok ? "as expected" : "NOT as expected"));
+	}
+}
@@ -0,0 +1,421 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttPersistenceException;
+import com.qonect.protocols.mqtt.impl.MqttReconnectBackoff;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.metrics.MqttCounter;
+import com.qonect.protocols.mqtt.impl.metrics.MqttHistogram;
+import com.qonect.protocols.mqtt.impl.metrics.MqttMetrics;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientWrapper;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttClientFactory;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Puts a broker under the load of a fleet: many clients, all created
+ *  through an IMqttClientFactory, each publishing to its own topic at a
+ *  fixed rate and subscribed to the topics of the next fanout clients, so
+ *  that every message is delivered fanout times. Clients that lose their
+ *  connection come back the way the Service does, spaced out by
+ *  MqttReconnectBackoff.
+ *
+ *  Reports sent and received messages per second as it goes, and at the
+ *  end the end-to-end latency percentiles (from a timestamp in the
+ *  payload), messages lost, connections lost and time to reconnect, with
+ *  everything the clients recorded into MqttMetrics.
+ *
+ *  Without host it runs against a LoopbackBroker in the same JVM, which
+ *  drop can then tell to cut every connection every so many seconds.
+ *  factory names an IMqttClientFactory with a public no-argument
+ *  constructor; by default it is PahoMqttClientFactory.
+ *
+ *  Usage: LoadGenerator [clients=100] [rate=1 (messages per second per client)]
+ *    [payload=256] [qos=1] [fanout=1] [seconds=30] [host= port=1883]
+ *    [drop=0 (seconds)] [factory=class] [threads=4] [interval=5]
+ */
+public class LoadGenerator
+{
+	public static final String SENT = "load.sent";
+	public static final String RECEIVED = "load.received";
+	public static final String SKIPPED = "load.skipped";
+	public static final String PUBLISH_ERRORS = "load.errors";
+	public static final String LATENCY = "load.latency";
+	public static final String RECONNECT_TIME = "load.reconnect";
+
+	private final Map<String, String> options;
+	private final int clientCount;
+	private final double rate;
+	private final int payloadBytes;
+	private final int qos;
+	private final int fanout;
+
+	private final MqttMetrics metrics = new MqttMetrics();
+	private final MqttCounter sent = metrics.counter(SENT);
+	private final MqttCounter received = metrics.counter(RECEIVED);
+	// not connected when it was time to publish
+	private final MqttCounter skipped = metrics.counter(SKIPPED);
+	private final MqttCounter errors = metrics.counter(PUBLISH_ERRORS);
+	private final MqttHistogram latency = metrics.histogram(LATENCY);
+	private final MqttHistogram reconnectTime = metrics.histogram(RECONNECT_TIME);
+	private final AtomicInteger connected = new AtomicInteger();
+
+	private final ScheduledExecutorService scheduler;
+	private final String runId = Long.toString(System.currentTimeMillis() % 100000);
+	private volatile boolean stopping;
+
+	public static void main(String[] args) throws Throwable
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0){
+				throw new IllegalArgumentException("Expected key=value: "+arg);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new LoadGenerator(options).run();
+	}
+
+	public LoadGenerator(Map<String, String> options)
+	{
+		this.options = options;
+		this.clientCount = intOption("clients", 100);
+		this.rate = Double.parseDouble(option("rate", "1"));
+		this.payloadBytes = Math.max(8, intOption("payload", 256));
+		this.qos = intOption("qos", 1);
+		this.fanout = Math.min(intOption("fanout", 1), clientCount);
+		this.scheduler = Executors.newScheduledThreadPool(intOption("threads", 4), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LoadGenerator-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void run() throws Throwable
+	{
+		LoopbackBroker broker = null;
+		String host = option("host", null);
+		int port = intOption("port", 1883);
+		if(host == null){
+			broker = new LoopbackBroker();
+			broker.start();
+			host = broker.getHost();
+			port = broker.getPort();
+		}
+
+		IMqttClientFactory factory = createFactory();
+		int seconds = intOption("seconds", 30);
+		int interval = intOption("interval", 5);
+
+		System.out.println("clients="+clientCount+", rate="+rate+"/s, payload="+payloadBytes+" bytes, qos="+qos
+			+", fanout="+fanout+", seconds="+seconds+", broker="+host+":"+port+(broker != null ? " (loopback)" : ""));
+
+		LoadClient[] clients = new LoadClient[clientCount];
+		for(int i = 0; i < clientCount; i++){
+			clients[i] = new LoadClient(i, factory.create(host, port, "load-"+runId+"-"+i, null));
+		}
+
+		long connectStart = System.nanoTime();
+		final CountDownLatch connectedOnce = new CountDownLatch(clientCount);
+		for(final LoadClient client : clients){
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					client.connect(connectedOnce);
+				}
+			});
+		}
+		if(!connectedOnce.await(2, TimeUnit.MINUTES)){
+			System.out.println("only "+(clientCount - connectedOnce.getCount())+" clients connected, going ahead");
+		}
+		System.out.println("connected "+connected.get()+" clients in "
+			+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart)+"ms");
+
+		Random random = new Random(42);
+		long periodNanos = (long)(TimeUnit.SECONDS.toNanos(1) / rate);
+		for(final LoadClient client : clients){
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					client.publish();
+				}
+			}, (long)(random.nextDouble() * periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+		}
+
+		final LoopbackBroker dropping = broker;
+		int drop = intOption("drop", 0);
+		if(drop > 0 && dropping != null){
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println("dropping all connections");
+					dropping.dropConnections();
+				}
+			}, drop, drop, TimeUnit.SECONDS);
+		}
+
+		System.out.println("second,connected,sentPerSecond,receivedPerSecond,p99Micros");
+		long start = System.nanoTime();
+		long lastSent = 0;
+		long lastReceived = 0;
+		for(int elapsed = interval; elapsed <= seconds; elapsed += interval)
+		{
+			Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(elapsed) - System.nanoTime()) / 1000000);
+			long s = sent.get();
+			long r = received.get();
+			System.out.println(elapsed+","+connected.get()+","+(s - lastSent) / interval+","+(r - lastReceived) / interval
+				+","+TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99)));
+			lastSent = s;
+			lastReceived = r;
+		}
+
+		stopping = true;
+		scheduler.shutdownNow();
+		// let what is in flight arrive
+		Thread.sleep(1000);
+		for(LoadClient client : clients){
+			client.disconnect();
+		}
+		if(broker != null){
+			broker.close();
+		}
+
+		report(clients);
+	}
+
+	private void report(LoadClient[] clients)
+	{
+		long reconnects = 0;
+		long maxReconnectMillis = 0;
+		for(LoadClient client : clients){
+			reconnects += client.backoff.getReconnectCount();
+			maxReconnectMillis = Math.max(maxReconnectMillis, client.backoff.getMaxReconnectMillis());
+		}
+
+		long expected = sent.get() * fanout;
+		System.out.println();
+		System.out.println("sent="+sent.get()+", received="+received.get()+", expected="+expected
+			+", lost="+Math.max(0, expected - received.get())+", skipped="+skipped.get()+", errors="+errors.get());
+		System.out.println("latency p50="+micros(latency.getValueAtPercentile(50))+"us p90="+micros(latency.getValueAtPercentile(90))
+			+"us p99="+micros(latency.getValueAtPercentile(99))+"us p99.9="+micros(latency.getValueAtPercentile(99.9))
+			+"us max="+micros(latency.getMax())+"us");
+		System.out.println("connectionsLost="+metrics.counter(MqttMetrics.CONNECTIONS_LOST).get()+", reconnects="+reconnects
+			+", reconnect p50="+TimeUnit.NANOSECONDS.toMillis(reconnectTime.getValueAtPercentile(50))
+			+"ms p99="+TimeUnit.NANOSECONDS.toMillis(reconnectTime.getValueAtPercentile(99))+"ms max="+maxReconnectMillis+"ms");
+		System.out.println();
+		System.out.print(metrics.dump());
+	}
+
+	private IMqttClientFactory createFactory() throws Exception
+	{
+		String name = option("factory", null);
+		if(name == null){
+			return new PahoMqttClientFactory(PahoMqttClientWrapper.DEFAULT_MAX_IN_FLIGHT, metrics);
+		}
+		return Class.forName(name).asSubclass(IMqttClientFactory.class).getDeclaredConstructor().newInstance();
+	}
+
+	private String option(String name, String defaultValue)
+	{
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private int intOption(String name, int defaultValue)
+	{
+		String value = options.get(name);
+		return value != null ? Integer.parseInt(value) : defaultValue;
+	}
+
+	private static long micros(long nanos)
+	{
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/************************************************************************/
+	/*    one simulated device                                              */
+	/************************************************************************/
+
+	private final class LoadClient implements IMqttCallback
+	{
+		final IMqttClient client;
+		final MqttReconnectBackoff backoff = new MqttReconnectBackoff(
+			100, 30 * 1000, MqttReconnectBackoff.DEFAULT_JITTER, new Random());
+		final IMqttTopic topic;
+		final IMqttTopic[] subscriptions;
+		final MqttConnectOptions connectOptions = new MqttConnectOptions();
+
+		volatile boolean up;
+		// when the connection was lost, in System.nanoTime()
+		volatile long lostAtNanos;
+
+		LoadClient(int index, IMqttClient client) throws MqttException
+		{
+			this.client = client;
+			this.topic = new MqttTopic("load/"+runId+"/"+index);
+
+			this.subscriptions = new IMqttTopic[fanout];
+			for(int i = 0; i < fanout; i++){
+				MqttTopic subscription = new MqttTopic("load/"+runId+"/"+(index + 1 + i) % clientCount);
+				subscription.setQoS(qos);
+				subscriptions[i] = subscription;
+			}
+
+			connectOptions.setCleanSession(true);
+			connectOptions.setKeepAliveInterval((short)60);
+			client.setCallback(this);
+		}
+
+		/*
+		 * Counts down connectedOnce when connected, or keeps trying
+		 */
+		void connect(CountDownLatch connectedOnce)
+		{
+			if(stopping){
+				return;
+			}
+			try
+			{
+				client.connect(connectOptions);
+				if(subscriptions.length > 0){
+					client.subscribe(subscriptions);
+				}
+			}
+			catch(MqttException e)
+			{
+				scheduleConnect(connectedOnce);
+				return;
+			}
+
+			up = true;
+			connected.incrementAndGet();
+			backoff.onConnected(System.currentTimeMillis());
+			if(lostAtNanos != 0){
+				reconnectTime.record(System.nanoTime() - lostAtNanos);
+				lostAtNanos = 0;
+			}
+			if(connectedOnce != null){
+				connectedOnce.countDown();
+			}
+		}
+
+		void publish()
+		{
+			if(!up){
+				skipped.increment();
+				return;
+			}
+
+			byte[] payload = new byte[payloadBytes];
+			long now = System.nanoTime();
+			for(int i = 7; i >= 0; i--){
+				payload[i] = (byte)now;
+				now >>>= 8;
+			}
+			MqttMessage message = new MqttMessage(payload);
+			message.setQoS(qos);
+
+			try
+			{
+				client.publishAsync(topic, message);
+				sent.increment();
+			}
+			catch(MqttException e)
+			{
+				errors.increment();
+			}
+		}
+
+		void disconnect()
+		{
+			up = false;
+			try
+			{
+				client.disconnect();
+			}
+			catch(MqttException e)
+			{
+				// going away anyway
+			}
+			catch(MqttPersistenceException e)
+			{
+				// going away anyway
+			}
+		}
+
+		@Override
+		public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception
+		{
+			byte[] payload;
+			try
+			{
+				payload = message.getPayload();
+			}
+			catch(MqttException e)
+			{
+				throw new Exception(e);
+			}
+
+			long sentAt = 0;
+			for(int i = 0; i < 8; i++){
+				sentAt = (sentAt << 8) | (payload[i] & 0xFF);
+			}
+			latency.record(System.nanoTime() - sentAt);
+			received.increment();
+		}
+
+		@Override
+		public void connectionLost(Throwable throwable)
+		{
+			if(up){
+				up = false;
+				connected.decrementAndGet();
+			}
+			lostAtNanos = System.nanoTime();
+			backoff.onDisconnected(System.currentTimeMillis());
+			scheduleConnect(null);
+		}
+
+		private void scheduleConnect(final CountDownLatch connectedOnce)
+		{
+			if(stopping){
+				return;
+			}
+			try
+			{
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						connect(connectedOnce);
+					}
+				}, backoff.nextDelayMillis(), TimeUnit.MILLISECONDS);
+			}
+			catch(RejectedExecutionException e)
+			{
+				// shutting down
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.io.File;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.RollingFileAppender;
+
+import com.qonect.protocols.mqtt.logging.ConfigureLog4J;
+import com.qonect.protocols.mqtt.logging.RingBufferAppender;
+
+/*
+ * Per-message cost of the debug logging on the message path (three debug
+ *  lines per message, as in messageArrived/publish), as seen by the thread
+ *  handling the message:
+ *
+ *   - sync:  the old setup, a file appender flushing after every event
+ *   - async: the ring buffer appender, flushing in batches on its own thread
+ *   - with the root level at INFO, unguarded and guarded by isDebugEnabled()
+ *
+ *  Messages are sent at msgPerSecond (0: as fast as possible, which floods
+ *  the ring buffer - dropped events are reported). Only the time spent
+ *  handling messages is counted.
+ *
+ *  Usage: LoggingBenchmark [messages] [msgPerSecond] [logDir]
+ */
+public class LoggingBenchmark
+{
+	private static final Logger LOG = Logger.getLogger(LoggingBenchmark.class);
+
+	private static volatile Object sink;
+	private static int rate;
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		rate = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+		File file = new File(dir, "LoggingBenchmark.csv");
+
+		byte[] payload = new byte[64];
+		System.out.println("messages="+messages+", rate="+rate+"/s, file="+file);
+
+		// old: immediate flush
+		RollingFileAppender sync = new RollingFileAppender(new PatternLayout(ConfigureLog4J.PATTERN_CSV), file.getPath());
+		sync.setImmediateFlush(true);
+		run("sync, ALL, unguarded", sync, Level.ALL, false, messages, payload);
+
+		RingBufferAppender async = ConfigureLog4J.createAsyncFileAppender(file.getPath(), ConfigureLog4J.PATTERN_CSV);
+		run("async, ALL, unguarded", async, Level.ALL, false, messages, payload);
+		System.out.println("  dropped events: "+async.getDroppedCount());
+
+		async = ConfigureLog4J.createAsyncFileAppender(file.getPath(), ConfigureLog4J.PATTERN_CSV);
+		run("async, INFO, unguarded", async, Level.INFO, false, messages, payload);
+		async = ConfigureLog4J.createAsyncFileAppender(file.getPath(), ConfigureLog4J.PATTERN_CSV);
+		run("async, INFO, guarded", async, Level.INFO, true, messages, payload);
+
+		file.delete();
+	}
+
+	private static void run(String name, Appender appender, Level level, boolean guarded,
+		int messages, byte[] payload)
+	{
+		LogManager.resetConfiguration();
+		Logger.getRootLogger().setLevel(level);
+		Logger.getRootLogger().addAppender(appender);
+
+		// warm up at the same pace, so that it does not flood the buffer
+		runMessages(messages / 10, payload, guarded);
+		long nanos = runMessages(messages, payload, guarded);
+
+		// the writer's backlog is not on the message path, but report it
+		long closeStart = System.nanoTime();
+		appender.close();
+		long closeNanos = System.nanoTime() - closeStart;
+
+		System.out.println(name+": "+(nanos / messages)+" ns/msg, drain on close "+(closeNanos / 1000000)+"ms");
+	}
+
+	/*
+	 * Returns the time spent handling messages, not waiting between them
+	 */
+	private static long runMessages(int messages, byte[] payload, boolean guarded)
+	{
+		long intervalNanos = rate > 0 ? 1000000000L / rate : 0;
+		long next = System.nanoTime();
+		long nanos = 0;
+		for(int i = 0; i < messages; i++)
+		{
+			if(intervalNanos > 0){
+				// sleep rather than spin, so that the writer thread gets the
+				//  CPU even on a single core
+				next += intervalNanos;
+				long wait = next - System.nanoTime();
+				if(wait > 0)LockSupport.parkNanos(wait);
+			}
+			long start = System.nanoTime();
+			handleMessage(i, payload, guarded);
+			nanos += System.nanoTime() - start;
+		}
+		return nanos;
+	}
+
+	private static void handleMessage(int i, byte[] payload, boolean guarded)
+	{
+		String topic = "fleet/site"+(i & 63)+"/dev"+(i & 1023);
+		if(!guarded || LOG.isDebugEnabled()){
+			LOG.debug("messageArrived: topic="+topic+", message="+new String(payload));
+		}
+		if(!guarded || LOG.isDebugEnabled()){
+			LOG.debug("publish(topic="+topic+", payload="+payload.length+" bytes)");
+		}
+		if(!guarded || LOG.isDebugEnabled()){
+			LOG.debug("handleMessage: topic="+topic+", seq="+i);
+		}
+		sink = topic;
+	}
+}
@@ -0,0 +1,142 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.metrics.MqttHistogram;
+import com.qonect.protocols.mqtt.impl.metrics.MqttMetrics;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientWrapper;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * End-to-end throughput and latency through PahoMqttClientFactory and
+ *  PahoMqttClientWrapper, against a LoopbackBroker in the same JVM: one
+ *  client publishes with publishAsync, another is subscribed, for each
+ *  QoS. Latency is from publishAsync to messageArrived, taken from a
+ *  timestamp in the payload. Needs no network.
+ *
+ *  Usage: LoopbackBenchmark [messages] [payloadBytes]
+ */
+public class LoopbackBenchmark
+{
+	private static final String TOPIC = "bench/loopback";
+
+	public static void main(String[] args) throws Throwable
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int payloadBytes = Math.max(8, args.length > 1 ? Integer.parseInt(args[1]) : 256);
+
+		LoopbackBroker broker = new LoopbackBroker();
+		broker.start();
+
+		System.out.println("messages="+messages+", payload="+payloadBytes+" bytes, broker=127.0.0.1:"+broker.getPort());
+		System.out.println("qos,msgPerSecond,p50Micros,p99Micros,maxMicros,deliveryP99Micros");
+		try
+		{
+			for(int qos = 0; qos <= 2; qos++){
+				run(broker, qos, messages / 10, payloadBytes, false);
+				run(broker, qos, messages, payloadBytes, true);
+			}
+		}
+		finally
+		{
+			broker.close();
+		}
+	}
+
+	private static void run(LoopbackBroker broker, int qos, int messages, int payloadBytes,
+		boolean report) throws Throwable
+	{
+		MqttMetrics metrics = new MqttMetrics();
+		PahoMqttClientFactory factory = new PahoMqttClientFactory(PahoMqttClientWrapper.DEFAULT_MAX_IN_FLIGHT, metrics);
+
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setKeepAliveInterval((short)60);
+
+		final MqttHistogram latency = new MqttHistogram();
+		final CountDownLatch arrived = new CountDownLatch(messages);
+
+		IMqttClient subscriber = factory.create(broker.getHost(), broker.getPort(), "bench-sub-"+qos, null);
+		subscriber.setCallback(new IMqttCallback() {
+			@Override
+			public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception {
+				try
+				{
+					latency.record(System.nanoTime() - readLong(message.getPayload()));
+				}
+				catch(MqttException e)
+				{
+					throw new Exception(e);
+				}
+				arrived.countDown();
+			}
+
+			@Override
+			public void connectionLost(Throwable throwable) {
+				System.err.println("subscriber lost its connection: "+throwable);
+			}
+		});
+		subscriber.connect(options);
+		MqttTopic filter = new MqttTopic(TOPIC);
+		filter.setQoS(qos);
+		subscriber.subscribe(filter);
+
+		IMqttClient publisher = factory.create(broker.getHost(), broker.getPort(), "bench-pub-"+qos, null);
+		publisher.connect(options);
+		MqttTopic topic = new MqttTopic(TOPIC);
+
+		long start = System.nanoTime();
+		for(int i = 0; i < messages; i++){
+			byte[] payload = new byte[payloadBytes];
+			writeLong(payload, System.nanoTime());
+			MqttMessage message = new MqttMessage(payload);
+			message.setQoS(qos);
+			publisher.publishAsync(topic, message);
+		}
+		if(!arrived.await(5, TimeUnit.MINUTES)){
+			System.err.println("qos "+qos+": only "+(messages - arrived.getCount())+" of "+messages+" arrived");
+		}
+		long nanos = System.nanoTime() - start;
+
+		publisher.disconnect();
+		subscriber.disconnect();
+
+		if(report){
+			MqttHistogram delivery = metrics.histogram(MqttMetrics.DELIVERY_LATENCY);
+			System.out.println(qos+","+(long)(messages * 1e9 / nanos)
+				+","+micros(latency.getValueAtPercentile(50))+","+micros(latency.getValueAtPercentile(99))
+				+","+micros(latency.getMax())+","+micros(delivery.getValueAtPercentile(99)));
+		}
+	}
+
+	private static long micros(long nanos)
+	{
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static void writeLong(byte[] bytes, long value)
+	{
+		for(int i = 7; i >= 0; i--){
+			bytes[i] = (byte)value;
+			value >>>= 8;
+		}
+	}
+
+	private static long readLong(byte[] bytes)
+	{
+		long value = 0;
+		for(int i = 0; i < 8; i++){
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+}
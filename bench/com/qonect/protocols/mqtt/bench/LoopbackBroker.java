@@ -0,0 +1,770 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qonect.protocols.mqtt.impl.MqttTopicTrie;
+
+/*
+ * A small MQTT 3.1 / 3.1.1 broker that only listens on the loopback
+ *  interface, so that the client stack can be driven end to end - and
+ *  measured - on a machine without network access.
+ *
+ *  Supports CONNECT, SUBSCRIBE, UNSUBSCRIBE, PUBLISH at QoS 0, 1 and 2,
+ *  retained messages, PINGREQ and DISCONNECT. A client that connects
+ *  without a clean session finds the subscriptions it left behind, but
+ *  messages published while it was away are not kept for it. Nothing is
+ *  retransmitted and keep-alive is not enforced; on loopback neither is
+ *  needed.
+ *
+ *  Every connection has a reader thread and a writer thread with its own
+ *  queue of outgoing packets, so a client that is slow to read holds up
+ *  neither the broker nor the clients publishing to it.
+ *
+ *  Usage: LoopbackBroker [port]
+ */
+public class LoopbackBroker
+{
+	private static final int CONNECT = 1;
+	private static final int CONNACK = 2;
+	private static final int PUBLISH = 3;
+	private static final int PUBACK = 4;
+	private static final int PUBREC = 5;
+	private static final int PUBREL = 6;
+	private static final int PUBCOMP = 7;
+	private static final int SUBSCRIBE = 8;
+	private static final int SUBACK = 9;
+	private static final int UNSUBSCRIBE = 10;
+	private static final int UNSUBACK = 11;
+	private static final int PINGREQ = 12;
+	private static final int PINGRESP = 13;
+	private static final int DISCONNECT = 14;
+
+	private static final int CONNACK_ACCEPTED = 0;
+	private static final int CONNACK_BAD_PROTOCOL = 1;
+	private static final int SUBACK_FAILURE = 0x80;
+
+	// tells a writer thread to stop
+	private static final byte[] CLOSE = new byte[0];
+
+	/*
+	 * What a client subscribed to, kept across connections unless it asks
+	 *  for a clean session
+	 */
+	private static final class Session
+	{
+		final String clientId;
+		// filter -> subscription, guarded by the broker's subscriptions trie
+		final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+		volatile Connection connection;
+
+		Session(String clientId)
+		{
+			this.clientId = clientId;
+		}
+	}
+
+	private static final class Subscription
+	{
+		final Session session;
+		final int qos;
+
+		Subscription(Session session, int qos)
+		{
+			this.session = session;
+			this.qos = qos;
+		}
+	}
+
+	private static final class Retained
+	{
+		final byte[] payload;
+		final int qos;
+
+		Retained(byte[] payload, int qos)
+		{
+			this.payload = payload;
+			this.qos = qos;
+		}
+	}
+
+	private final int requestedPort;
+	private ServerSocket serverSocket;
+	private Thread acceptor;
+	private volatile boolean closed;
+
+	private final MqttTopicTrie<Subscription> subscriptions = new MqttTopicTrie<Subscription>();
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private final ConcurrentMap<String, Retained> retained = new ConcurrentHashMap<String, Retained>();
+	private final Set<Connection> connections = new CopyOnWriteArraySet<Connection>();
+
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+
+	/*
+	 * Listens on a free port, see getPort()
+	 */
+	public LoopbackBroker()
+	{
+		this(0);
+	}
+
+	public LoopbackBroker(int port)
+	{
+		this.requestedPort = port;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 1883;
+		LoopbackBroker broker = new LoopbackBroker(port);
+		broker.start();
+		System.out.println("listening on 127.0.0.1:"+broker.getPort());
+
+		while(true)
+		{
+			Thread.sleep(10 * 1000);
+			System.out.println(broker);
+		}
+	}
+
+	public synchronized void start() throws IOException
+	{
+		if(serverSocket != null){
+			return;
+		}
+		serverSocket = new ServerSocket(requestedPort, 128, InetAddress.getByName("127.0.0.1"));
+
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		}, "LoopbackBroker-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public String getHost()
+	{
+		return "127.0.0.1";
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/*
+	 * Closes every client connection without a DISCONNECT, as a dropped
+	 *  network would; clients see their connection lost
+	 */
+	public void dropConnections()
+	{
+		for(Connection connection : connections){
+			connection.close();
+		}
+	}
+
+	public void close()
+	{
+		closed = true;
+		try
+		{
+			if(serverSocket != null){
+				serverSocket.close();
+			}
+		}
+		catch(IOException e)
+		{
+			// going away anyway
+		}
+		dropConnections();
+	}
+
+	public int getConnectionCount()
+	{
+		return connections.size();
+	}
+
+	/*
+	 * CONNECTs accepted, PUBLISHes received from clients and PUBLISHes sent
+	 *  to subscribers
+	 */
+	public long getConnectCount()
+	{
+		return connects.get();
+	}
+
+	public long getReceivedCount()
+	{
+		return received.get();
+	}
+
+	public long getDeliveredCount()
+	{
+		return delivered.get();
+	}
+
+	public String toString()
+	{
+		return "LoopbackBroker{connections="+connections.size()+", connects="+connects.get()
+			+", received="+received.get()+", delivered="+delivered.get()+", retained="+retained.size()+"}";
+	}
+
+	private void acceptConnections()
+	{
+		while(!closed)
+		{
+			try
+			{
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				new Connection(socket).start();
+			}
+			catch(IOException e)
+			{
+				if(!closed){
+					System.err.println("LoopbackBroker: accept failed: "+e);
+				}
+			}
+		}
+	}
+
+	/************************************************************************/
+	/*    routing                                                           */
+	/************************************************************************/
+
+	private void route(String topic, byte[] payload, int qos, boolean retain)
+	{
+		if(retain){
+			if(payload.length == 0){
+				retained.remove(topic);
+			}
+			else{
+				retained.put(topic, new Retained(payload, qos));
+			}
+		}
+
+		// a client whose filters overlap gets the message once, at the
+		//  highest QoS it asked for
+		List<Subscription> matches = subscriptions.match(topic, new ArrayList<Subscription>());
+		Map<Session, Integer> targets = new IdentityHashMap<Session, Integer>();
+		for(Subscription subscription : matches){
+			Integer granted = targets.get(subscription.session);
+			if(granted == null || granted.intValue() < subscription.qos){
+				targets.put(subscription.session, Integer.valueOf(subscription.qos));
+			}
+		}
+
+		for(Map.Entry<Session, Integer> target : targets.entrySet()){
+			Connection connection = target.getKey().connection;
+			if(connection != null){
+				connection.sendPublish(topic, payload, Math.min(qos, target.getValue().intValue()), false);
+			}
+		}
+	}
+
+	private int subscribe(Session session, String filter, int qos)
+	{
+		try
+		{
+			MqttTopicTrie.validateFilter(filter);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return SUBACK_FAILURE;
+		}
+
+		int granted = Math.min(qos, 2);
+		Subscription subscription = new Subscription(session, granted);
+		synchronized(subscriptions)
+		{
+			Subscription previous = session.subscriptions.put(filter, subscription);
+			if(previous != null){
+				subscriptions.remove(filter, previous);
+			}
+			subscriptions.add(filter, subscription);
+		}
+		return granted;
+	}
+
+	private void unsubscribe(Session session, String filter)
+	{
+		synchronized(subscriptions)
+		{
+			Subscription previous = session.subscriptions.remove(filter);
+			if(previous != null){
+				subscriptions.remove(filter, previous);
+			}
+		}
+	}
+
+	private void discard(Session session)
+	{
+		synchronized(subscriptions)
+		{
+			for(Map.Entry<String, Subscription> entry : session.subscriptions.entrySet()){
+				subscriptions.remove(entry.getKey(), entry.getValue());
+			}
+			session.subscriptions.clear();
+		}
+	}
+
+	private void sendRetained(Connection connection, String filter, int qos)
+	{
+		for(Map.Entry<String, Retained> entry : retained.entrySet()){
+			if(MqttTopicTrie.matches(filter, entry.getKey())){
+				Retained message = entry.getValue();
+				connection.sendPublish(entry.getKey(), message.payload, Math.min(qos, message.qos), true);
+			}
+		}
+	}
+
+	/************************************************************************/
+	/*    connections                                                       */
+	/************************************************************************/
+
+	private final class Connection
+	{
+		private final Socket socket;
+		private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<byte[]>();
+		private Session session;
+		private boolean cleanSession;
+		private int nextMessageId = 1;
+		// QoS 2 messages received and routed, waiting for their PUBREL
+		private final Set<Integer> receivedQos2 = new HashSet<Integer>();
+
+		Connection(Socket socket)
+		{
+			this.socket = socket;
+		}
+
+		void start()
+		{
+			connections.add(this);
+
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					read();
+				}
+			}, "LoopbackBroker-read-"+socket.getPort());
+			reader.setDaemon(true);
+			reader.start();
+
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "LoopbackBroker-write-"+socket.getPort());
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				// nothing to do
+			}
+		}
+
+		void sendPublish(String topic, byte[] payload, int qos, boolean retain)
+		{
+			int messageId = 0;
+			if(qos > 0){
+				synchronized(this)
+				{
+					messageId = nextMessageId;
+					nextMessageId = nextMessageId == 0xFFFF ? 1 : nextMessageId + 1;
+				}
+			}
+
+			Packet packet = new Packet(PUBLISH, (qos << 1) | (retain ? 1 : 0));
+			packet.writeString(topic);
+			if(qos > 0){
+				packet.writeShort(messageId);
+			}
+			packet.write(payload, 0, payload.length);
+			send(packet);
+			delivered.incrementAndGet();
+		}
+
+		private void send(Packet packet)
+		{
+			outgoing.add(packet.toByteArray());
+		}
+
+		private void sendAck(int type, int flags, int messageId)
+		{
+			Packet packet = new Packet(type, flags);
+			packet.writeShort(messageId);
+			send(packet);
+		}
+
+		private void read()
+		{
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while(true)
+				{
+					int header = in.read();
+					if(header < 0){
+						break;
+					}
+					byte[] body = new byte[readRemainingLength(in)];
+					in.readFully(body);
+
+					if(!handle(header >>> 4, header & 0x0F, new DataInputStream(new ByteArrayInputStream(body)))){
+						break;
+					}
+				}
+			}
+			catch(SocketException e)
+			{
+				// closed, by either side
+			}
+			catch(EOFException e)
+			{
+				// closed by the client
+			}
+			catch(IOException e)
+			{
+				if(!closed){
+					System.err.println("LoopbackBroker: "+e);
+				}
+			}
+			finally
+			{
+				disconnected();
+			}
+		}
+
+		/*
+		 * Returns false when the connection should be closed
+		 */
+		private boolean handle(int type, int flags, DataInputStream body) throws IOException
+		{
+			if(session == null && type != CONNECT){
+				return false;
+			}
+
+			switch(type)
+			{
+			case CONNECT:
+				return handleConnect(body);
+
+			case PUBLISH:
+			{
+				int qos = (flags >>> 1) & 3;
+				String topic = readString(body);
+				int messageId = qos > 0 ? body.readUnsignedShort() : 0;
+				byte[] payload = new byte[body.available()];
+				body.readFully(payload);
+				received.incrementAndGet();
+
+				if(qos == 2){
+					// route once, however often it is sent before the PUBREL
+					if(receivedQos2.add(Integer.valueOf(messageId))){
+						route(topic, payload, qos, (flags & 1) != 0);
+					}
+					sendAck(PUBREC, 0, messageId);
+				}
+				else{
+					route(topic, payload, qos, (flags & 1) != 0);
+					if(qos == 1){
+						sendAck(PUBACK, 0, messageId);
+					}
+				}
+				return true;
+			}
+
+			case PUBREL:
+			{
+				int messageId = body.readUnsignedShort();
+				receivedQos2.remove(Integer.valueOf(messageId));
+				sendAck(PUBCOMP, 0, messageId);
+				return true;
+			}
+
+			case PUBREC:
+				sendAck(PUBREL, 2, body.readUnsignedShort());
+				return true;
+
+			case PUBACK:
+			case PUBCOMP:
+				// nothing is retransmitted, so nothing to forget
+				return true;
+
+			case SUBSCRIBE:
+			{
+				int messageId = body.readUnsignedShort();
+				List<String> filters = new ArrayList<String>();
+				List<Integer> granted = new ArrayList<Integer>();
+				while(body.available() > 0){
+					String filter = readString(body);
+					filters.add(filter);
+					granted.add(Integer.valueOf(subscribe(session, filter, body.readUnsignedByte() & 3)));
+				}
+
+				Packet suback = new Packet(SUBACK, 0);
+				suback.writeShort(messageId);
+				for(Integer qos : granted){
+					suback.write(qos.intValue());
+				}
+				send(suback);
+
+				// retained messages go out after the SUBACK
+				for(int i = 0; i < filters.size(); i++){
+					if(granted.get(i).intValue() != SUBACK_FAILURE){
+						sendRetained(this, filters.get(i), granted.get(i).intValue());
+					}
+				}
+				return true;
+			}
+
+			case UNSUBSCRIBE:
+			{
+				int messageId = body.readUnsignedShort();
+				while(body.available() > 0){
+					unsubscribe(session, readString(body));
+				}
+				sendAck(UNSUBACK, 0, messageId);
+				return true;
+			}
+
+			case PINGREQ:
+				send(new Packet(PINGRESP, 0));
+				return true;
+
+			case DISCONNECT:
+				return false;
+
+			default:
+				System.err.println("LoopbackBroker: unexpected packet type "+type);
+				return false;
+			}
+		}
+
+		private boolean handleConnect(DataInputStream body) throws IOException
+		{
+			if(session != null){
+				// a second CONNECT is a protocol violation
+				return false;
+			}
+
+			String protocol = readString(body);
+			int level = body.readUnsignedByte();
+			int connectFlags = body.readUnsignedByte();
+			body.readUnsignedShort(); // keep alive
+			String clientId = readString(body);
+
+			boolean mqtt311 = "MQTT".equals(protocol) && level == 4;
+			if(!mqtt311 && !("MQIsdp".equals(protocol) && level == 3)){
+				Packet connack = new Packet(CONNACK, 0);
+				connack.write(0);
+				connack.write(CONNACK_BAD_PROTOCOL);
+				send(connack);
+				return false;
+			}
+			// will, user name and password are accepted and ignored
+
+			cleanSession = (connectFlags & 0x02) != 0;
+			if(clientId.length() == 0){
+				clientId = "loopback-"+System.identityHashCode(this);
+				cleanSession = true;
+			}
+
+			Session previous = sessions.get(clientId);
+			boolean sessionPresent = false;
+			if(previous != null){
+				// a client ID can only be connected once
+				Connection other = previous.connection;
+				if(other != null && other != this){
+					other.close();
+				}
+				if(cleanSession){
+					discard(previous);
+				}
+				else{
+					sessionPresent = true;
+				}
+			}
+
+			session = previous != null ? previous : new Session(clientId);
+			sessions.put(clientId, session);
+			session.connection = this;
+			connects.incrementAndGet();
+
+			Packet connack = new Packet(CONNACK, 0);
+			// "session present" only exists in 3.1.1
+			connack.write(mqtt311 && sessionPresent ? 1 : 0);
+			connack.write(CONNACK_ACCEPTED);
+			send(connack);
+			return true;
+		}
+
+		private void disconnected()
+		{
+			connections.remove(this);
+			outgoing.add(CLOSE);
+			close();
+
+			Session s = session;
+			if(s != null && s.connection == this){
+				s.connection = null;
+				if(cleanSession){
+					discard(s);
+					sessions.remove(s.clientId, s);
+				}
+			}
+		}
+
+		private void write()
+		{
+			try
+			{
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				while(true)
+				{
+					byte[] packet = outgoing.take();
+					if(packet == CLOSE){
+						break;
+					}
+					out.write(packet);
+
+					// flush once whatever is waiting has been written
+					if(outgoing.isEmpty()){
+						out.flush();
+					}
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch(IOException e)
+			{
+				// the reader sees the socket closed and cleans up
+				close();
+			}
+		}
+	}
+
+	/************************************************************************/
+	/*    wire format                                                       */
+	/************************************************************************/
+
+	/*
+	 * A packet being built; the fixed header is added by toByteArray()
+	 */
+	private static final class Packet extends ByteArrayOutputStream
+	{
+		private final int header;
+
+		Packet(int type, int flags)
+		{
+			this.header = (type << 4) | flags;
+		}
+
+		void writeShort(int value)
+		{
+			write(value >>> 8);
+			write(value & 0xFF);
+		}
+
+		void writeString(String value)
+		{
+			byte[] bytes = utf8(value);
+			writeShort(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		@Override
+		public synchronized byte[] toByteArray()
+		{
+			ByteArrayOutputStream packet = new ByteArrayOutputStream(count + 5);
+			packet.write(header);
+			int length = count;
+			do
+			{
+				int digit = length & 0x7F;
+				length >>>= 7;
+				packet.write(length > 0 ? digit | 0x80 : digit);
+			}
+			while(length > 0);
+			packet.write(buf, 0, count);
+			return packet.toByteArray();
+		}
+	}
+
+	private static int readRemainingLength(InputStream in) throws IOException
+	{
+		int length = 0;
+		int shift = 0;
+		int digit;
+		do
+		{
+			digit = in.read();
+			if(digit < 0){
+				throw new EOFException();
+			}
+			length |= (digit & 0x7F) << shift;
+			shift += 7;
+		}
+		while((digit & 0x80) != 0 && shift < 28);
+		return length;
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static byte[] utf8(String value)
+	{
+		try
+		{
+			return value.getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
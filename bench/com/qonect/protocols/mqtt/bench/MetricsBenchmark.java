@@ -0,0 +1,58 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qonect.protocols.mqtt.impl.metrics.MqttCounter;
+import com.qonect.protocols.mqtt.impl.metrics.MqttHistogram;
+
+/*
+ * Cost of recording into the metrics on the client's hot paths: a striped
+ *  MqttCounter next to a plain AtomicLong, and an MqttHistogram given
+ *  latencies spread over several orders of magnitude. Recording should
+ *  allocate nothing; the allocation column should read 0 B/op.
+ *
+ *  Usage: MetricsBenchmark [rounds] [opsPerRound]
+ */
+public class MetricsBenchmark
+{
+	public static void main(String[] args) throws Throwable
+	{
+		MicroBenchmark bench = MicroBenchmark.fromArgs(args);
+
+		final AtomicLong atomic = new AtomicLong();
+		bench.run("AtomicLong.incrementAndGet", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				atomic.incrementAndGet();
+			}
+		});
+
+		final MqttCounter counter = new MqttCounter();
+		bench.run("MqttCounter.increment", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				counter.increment();
+			}
+		});
+
+		// 1us to 1s, log-uniform
+		Random random = new Random(42);
+		final long[] latencies = new long[4096];
+		for(int i = 0; i < latencies.length; i++){
+			latencies[i] = (long)Math.pow(10, 3 + random.nextDouble() * 6);
+		}
+
+		final MqttHistogram histogram = new MqttHistogram();
+		bench.run("MqttHistogram.record", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				histogram.record(latencies[i & (latencies.length - 1)]);
+			}
+		});
+
+		System.out.println("p50="+histogram.getValueAtPercentile(50)+"ns, p99="+histogram.getValueAtPercentile(99)
+			+"ns, max="+histogram.getMax()+"ns, count="+histogram.getCount());
+		MicroBenchmark.sink = Long.valueOf(atomic.get() + counter.get());
+	}
+}
@@ -0,0 +1,81 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.lang.management.ManagementFactory;
+
+/*
+ * A small harness for measuring single operations: a few warm-up rounds so
+ *  that the JIT is done, then measured rounds reporting time per operation,
+ *  throughput and bytes allocated per operation on the calling thread (what
+ *  JMH reports as gc.alloc.rate.norm). Needs a HotSpot JVM for the
+ *  allocation counters.
+ *
+ *  Results of the operation should go into sink, so that the JIT cannot
+ *  throw the work away.
+ */
+public class MicroBenchmark
+{
+	public static volatile Object sink;
+
+	public interface Operation
+	{
+		void run(int i) throws Throwable;
+	}
+
+	private final int warmupRounds;
+	private final int rounds;
+	private final int opsPerRound;
+
+	public MicroBenchmark(int warmupRounds, int rounds, int opsPerRound)
+	{
+		this.warmupRounds = warmupRounds;
+		this.rounds = rounds;
+		this.opsPerRound = opsPerRound;
+	}
+
+	/*
+	 * Reads [rounds] [opsPerRound] from args, 5 warm-up rounds
+	 */
+	public static MicroBenchmark fromArgs(String[] args)
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int opsPerRound = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		return new MicroBenchmark(5, rounds, opsPerRound);
+	}
+
+	public void run(String name, Operation operation) throws Throwable
+	{
+		for(int round = 0; round < warmupRounds; round++){
+			for(int i = 0; i < opsPerRound; i++){
+				operation.run(i);
+			}
+		}
+
+		long bestNanos = Long.MAX_VALUE;
+		long totalNanos = 0;
+		long totalBytes = 0;
+		for(int round = 0; round < rounds; round++)
+		{
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for(int i = 0; i < opsPerRound; i++){
+				operation.run(i);
+			}
+			long nanos = System.nanoTime() - start;
+			totalBytes += allocatedBytes() - bytes;
+			totalNanos += nanos;
+			bestNanos = Math.min(bestNanos, nanos);
+		}
+
+		long ops = (long)rounds * opsPerRound;
+		System.out.println(String.format("%-40s %9.1f ns/op (best %9.1f) %12.0f ops/s %8.1f B/op",
+			name, (double)totalNanos / ops, (double)bestNanos / opsPerRound,
+			ops * 1e9 / totalNanos, (double)totalBytes / ops));
+	}
+
+	private static long allocatedBytes()
+	{
+		com.sun.management.ThreadMXBean bean =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
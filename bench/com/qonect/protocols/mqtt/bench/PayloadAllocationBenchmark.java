@@ -0,0 +1,96 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.lang.management.ManagementFactory;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttMessageWrapper;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+
+/*
+ * Bytes allocated per inbound message by the payload handling in
+ *  MqttService.messageArrived, before and after the payload view was
+ *  introduced. Needs a HotSpot JVM for per-thread allocation counters.
+ *
+ *  Usage: PayloadAllocationBenchmark [payloadBytes] [messages]
+ */
+public class PayloadAllocationBenchmark
+{
+	private static volatile Object sink;
+
+	private interface Path
+	{
+		void handle(IMqttMessage message) throws Throwable;
+	}
+
+	public static void main(String[] args) throws Throwable
+	{
+		int payloadBytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		final MqttMessage paho = new MqttMessage(new byte[payloadBytes]);
+
+		Path before = new Path() {
+			@Override
+			public void handle(IMqttMessage message) throws Throwable {
+				// debug line built unconditionally, payload fetched twice
+				String log = "messageArrived: topic=t, message="+new String(message.getPayload());
+				sink = log;
+				sink = message.getPayload();
+			}
+		};
+		Path afterDebugOff = new Path() {
+			@Override
+			public void handle(IMqttMessage message) throws Throwable {
+				sink = message.getPayload();
+			}
+		};
+		Path afterDebugOn = new Path() {
+			@Override
+			public void handle(IMqttMessage message) throws Throwable {
+				byte[] payload = message.getPayload();
+				sink = "messageArrived: topic=t, message="+message.getPayloadString();
+				// a second consumer of the text reuses the decoded string
+				sink = message.getPayloadString();
+				sink = payload;
+			}
+		};
+		Path view = new Path() {
+			@Override
+			public void handle(IMqttMessage message) throws Throwable {
+				sink = message.getPayloadBuffer();
+			}
+		};
+
+		System.out.println("payload="+payloadBytes+" bytes, messages="+messages);
+		run("before", before, paho, messages);
+		run("after, debug off", afterDebugOff, paho, messages);
+		run("after, debug on", afterDebugOn, paho, messages);
+		run("payload buffer view", view, paho, messages);
+	}
+
+	private static void run(String name, Path path, MqttMessage paho, int messages) throws Throwable
+	{
+		// warm up so that JIT allocations do not end up in the measurement
+		for(int i = 0; i < messages / 10; i++){
+			path.handle(new PahoMqttMessageWrapper(paho));
+		}
+
+		long before = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i = 0; i < messages; i++){
+			path.handle(new PahoMqttMessageWrapper(paho));
+		}
+		long nanos = System.nanoTime() - start;
+		long allocated = allocatedBytes() - before;
+
+		System.out.println(name+": "+(allocated / messages)+" B/msg, "+(nanos / messages)+" ns/msg");
+	}
+
+	private static long allocatedBytes()
+	{
+		com.sun.management.ThreadMXBean bean =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,103 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.qonect.protocols.mqtt.impl.codec.MqttDeflateCodec;
+import com.qonect.protocols.mqtt.impl.codec.MqttDictionaryCodec;
+import com.qonect.protocols.mqtt.interfaces.IMqttPayloadCodec;
+
+/*
+ * Compression ratio and cost per payload of the deflate codecs, on
+ *  generated JSON telemetry of a few sizes. The dictionary is trained on
+ *  a different set of messages than the one measured.
+ *
+ *  Usage: PayloadCodecBenchmark [rounds] [opsPerRound]
+ */
+public class PayloadCodecBenchmark
+{
+	private static final String[] KEYS = { "temperature", "humidity", "pressure", "battery", 
+		"signalStrength", "latitude", "longitude", "accelerationX", "accelerationY", "accelerationZ" };
+
+	public static void main(String[] args) throws Throwable
+	{
+		MicroBenchmark bench = MicroBenchmark.fromArgs(args.length > 0 ? args : new String[]{ "5", "20000" });
+
+		Random random = new Random(42);
+		List<byte[]> training = new ArrayList<byte[]>();
+		for(int i = 0; i < 500; i++){
+			training.add(telemetry(random, 1 + random.nextInt(KEYS.length)));
+		}
+		byte[] dictionary = MqttDictionaryCodec.train(training, MqttDictionaryCodec.DEFAULT_DICTIONARY_SIZE);
+		System.out.println("dictionary="+dictionary.length+" bytes");
+
+		IMqttPayloadCodec deflate = new MqttDeflateCodec();
+		IMqttPayloadCodec trained = new MqttDictionaryCodec(2, dictionary);
+
+		for(int fields : new int[]{ 2, 5, 10 })
+		{
+			List<byte[]> messages = new ArrayList<byte[]>();
+			for(int i = 0; i < 256; i++){
+				messages.add(telemetry(random, fields));
+			}
+			System.out.println();
+			System.out.println(fields+" fields, ~"+messages.get(0).length+" bytes");
+			measure(bench, "deflate", deflate, messages);
+			measure(bench, "deflate+dictionary", trained, messages);
+		}
+	}
+
+	private static void measure(MicroBenchmark bench, String name, final IMqttPayloadCodec codec,
+		final List<byte[]> messages) throws Throwable
+	{
+		long original = 0;
+		long encoded = 0;
+		final List<byte[]> encodedMessages = new ArrayList<byte[]>();
+		for(byte[] message : messages)
+		{
+			byte[] e = codec.encode(message, 1);
+			// sent as it is, behind the header byte, when it does not shrink
+			byte[] sent = e != null ? e : new byte[message.length + 1];
+			original += message.length;
+			encoded += sent.length;
+			encodedMessages.add(e);
+
+			if(e != null && !Arrays.equals(message, codec.decode(e, 1, e.length - 1))){
+				throw new IllegalStateException(name+" does not round-trip");
+			}
+		}
+		System.out.println(String.format("%-40s ratio %.2f (%d -> %d bytes)", name,
+			(double)original / encoded, original / messages.size(), encoded / messages.size()));
+
+		final int mask = messages.size() - 1;
+		bench.run(name+" encode", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) throws Throwable {
+				MicroBenchmark.sink = codec.encode(messages.get(i & mask), 1);
+			}
+		});
+		bench.run(name+" decode", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) throws Throwable {
+				byte[] e = encodedMessages.get(i & mask);
+				if(e != null){
+					MicroBenchmark.sink = codec.decode(e, 1, e.length - 1);
+				}
+			}
+		});
+	}
+
+	private static byte[] telemetry(Random random, int fields)
+	{
+		StringBuilder json = new StringBuilder("{\"device\":\"sensor-");
+		json.append(1000 + random.nextInt(9000)).append("\",\"timestamp\":")
+			.append(1400000000000L + random.nextInt(1000000000));
+		for(int i = 0; i < fields; i++){
+			json.append(",\"").append(KEYS[i]).append("\":")
+				.append(Math.round(random.nextDouble() * 100000) / 100.0);
+		}
+		return json.append('}').toString().getBytes();
+	}
+}
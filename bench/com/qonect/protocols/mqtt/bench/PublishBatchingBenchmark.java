@@ -0,0 +1,142 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.qonect.protocols.mqtt.impl.MqttBatchEnvelope;
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttPublishBatcher;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryToken;
+
+/*
+ * Bytes on the wire and messages per second for small QoS 1 publishes sent
+ *  one by one and through MqttPublishBatcher with various batch budgets.
+ *  Wire bytes are those of the MQTT 3.1 PUBLISH and PUBACK packets, without
+ *  TCP/IP overhead - which batching saves on as well. With a broker, the
+ *  messages are also published and the rate at which the broker
+ *  acknowledges them is measured.
+ *
+ *  Usage: PublishBatchingBenchmark [messages] [payloadBytes] [host port]
+ */
+public class PublishBatchingBenchmark
+{
+	private static final String TOPIC = "devices/1234/telemetry";
+	private static final int[] BATCH_BYTES = { 1024, 4 * 1024, 16 * 1024 };
+
+	public static void main(String[] args) throws Throwable
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		IMqttClient client = args.length > 3 ? connect(args[2], Integer.parseInt(args[3])) : null;
+
+		byte[] payload = new byte[payloadBytes];
+		System.out.println("messages="+messages+", payload="+payloadBytes+" bytes, topic="+TOPIC);
+		System.out.println("mode,publishes,wireBytes,wireBytesPerMsg,msgPerSecond");
+
+		long unbatchedBytes = (long)messages * (publishBytes(TOPIC, payloadBytes) + 4);
+		String rate = "-";
+		if(client != null){
+			send(client, payload, messages / 10);
+			long start = System.nanoTime();
+			send(client, payload, messages);
+			rate = ""+(long)(messages * 1e9 / (System.nanoTime() - start));
+		}
+		System.out.println("unbatched,"+messages+","+unbatchedBytes+","+(unbatchedBytes / messages)+","+rate);
+
+		for(int maxBytes : BATCH_BYTES){
+			runBatched(client, payload, messages, maxBytes);
+		}
+
+		if(client != null){
+			client.disconnect();
+		}
+	}
+
+	private static void runBatched(final IMqttClient client, byte[] payload, int messages,
+		int maxBytes) throws Throwable
+	{
+		final List<IMqttDeliveryToken> tokens = new ArrayList<IMqttDeliveryToken>();
+		final long[] wire = new long[2];
+		final Throwable[] failure = new Throwable[1];
+
+		MqttPublishBatcher batcher = new MqttPublishBatcher(new MqttPublishBatcher.Sink() {
+			@Override
+			public void publishBatch(String topic, byte[] envelope, int messageCount) {
+				wire[0]++;
+				wire[1] += publishBytes(topic, envelope.length) + 4;
+				if(client == null){
+					// what the receiving side has to do
+					MqttBatchEnvelope.decode(envelope);
+					return;
+				}
+				try
+				{
+					MqttMessage message = new MqttMessage(envelope);
+					message.setQoS(1);
+					tokens.add(client.publishAsync(new MqttTopic(topic), message));
+				}
+				catch(Throwable e)
+				{
+					failure[0] = e;
+				}
+			}
+		});
+		// batches close on size; the linger only picks up the tail
+		batcher.setBatching(TOPIC, 1000, maxBytes);
+
+		long start = System.nanoTime();
+		for(int i = 0; i < messages; i++){
+			batcher.offer(TOPIC, payload);
+		}
+		batcher.close(60 * 1000);
+		for(IMqttDeliveryToken token : tokens){
+			token.waitForCompletion();
+		}
+		long nanos = System.nanoTime() - start;
+		if(failure[0] != null){
+			throw failure[0];
+		}
+
+		System.out.println("batched "+maxBytes+"B,"+wire[0]+","+wire[1]+","+(wire[1] / messages)
+			+","+(long)(messages * 1e9 / nanos));
+	}
+
+	private static IMqttClient connect(String host, int port) throws Throwable
+	{
+		IMqttClient client = new PahoMqttClientFactory().create(host, port,
+			"bench-"+System.nanoTime() % 100000, null);
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		client.connect(options);
+		return client;
+	}
+
+	private static void send(IMqttClient client, byte[] payload, int messages) throws Throwable
+	{
+		MqttTopic topic = new MqttTopic(TOPIC);
+		MqttMessage message = new MqttMessage(payload);
+		message.setQoS(1);
+
+		IMqttDeliveryToken[] tokens = new IMqttDeliveryToken[messages];
+		for(int i = 0; i < messages; i++){
+			tokens[i] = client.publishAsync(topic, message);
+		}
+		for(IMqttDeliveryToken token : tokens){
+			token.waitForCompletion();
+		}
+	}
+
+	/*
+	 * Size of a QoS 1 PUBLISH packet
+	 */
+	private static int publishBytes(String topic, int payloadLength)
+	{
+		int remaining = 2 + topic.length() + 2 + payloadLength;
+		int lengthBytes = remaining < 128 ? 1 : remaining < 16384 ? 2 : remaining < 2097152 ? 3 : 4;
+		return 1 + lengthBytes + remaining;
+	}
+}
@@ -0,0 +1,137 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttSubscriptionSet;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Time from starting to reconnect until the subscriptions are in place,
+ *  for growing topic sets, against a LoopbackBroker that keeps the session:
+ *  sending every topic again, as the Service used to, next to sending
+ *  only what MqttSubscriptionSet says changed - here, one topic swapped
+ *  for another before every reconnect. Finishes by checking that a
+ *  message on the last topic added still arrives.
+ *
+ *  Usage: ResubscribeBenchmark [reconnects] [topicCounts, e.g. 100,1000,5000]
+ */
+public class ResubscribeBenchmark
+{
+	public static void main(String[] args) throws Throwable
+	{
+		int reconnects = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String[] topicCounts = (args.length > 1 ? args[1] : "100,1000,5000").split(",");
+
+		LoopbackBroker broker = new LoopbackBroker();
+		broker.start();
+
+		System.out.println("reconnects="+reconnects);
+		System.out.println("topics,fullMillis,deltaMillis");
+		try
+		{
+			for(String topicCount : topicCounts){
+				int topics = Integer.parseInt(topicCount.trim());
+				double full = run(broker, topics, reconnects, false);
+				double delta = run(broker, topics, reconnects, true);
+				System.out.println(topics+","+String.format("%.2f", full)+","+String.format("%.2f", delta));
+			}
+		}
+		finally
+		{
+			broker.close();
+		}
+	}
+
+	/*
+	 * Average milliseconds per reconnect
+	 */
+	private static double run(LoopbackBroker broker, int topics, int reconnects, boolean delta) throws Throwable
+	{
+		PahoMqttClientFactory factory = new PahoMqttClientFactory();
+		String clientId = "resub-"+topics+(delta ? "-delta" : "-full");
+		IMqttClient client = factory.create(broker.getHost(), broker.getPort(), clientId, null);
+
+		final CountDownLatch arrived = new CountDownLatch(1);
+		client.setCallback(new IMqttCallback() {
+			@Override
+			public void messageArrived(IMqttTopic topic, IMqttMessage message) {
+				arrived.countDown();
+			}
+
+			@Override
+			public void connectionLost(Throwable throwable) {
+			}
+		});
+
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(false);
+		options.setKeepAliveInterval((short)60);
+
+		MqttSubscriptionSet subscriptions = new MqttSubscriptionSet();
+		for(int i = 0; i < topics; i++){
+			subscriptions.subscribe("bench/resub/"+i, 1);
+		}
+		client.connect(options);
+		sync(client, subscriptions);
+
+		long nanos = 0;
+		String last = null;
+		for(int r = 0; r < reconnects; r++)
+		{
+			client.disconnect();
+
+			// what changed while we were away
+			subscriptions.unsubscribe("bench/resub/"+r);
+			last = "bench/resub/new/"+r;
+			subscriptions.subscribe(last, 1);
+
+			long start = System.nanoTime();
+			client.connect(options);
+			if(delta){
+				sync(client, subscriptions);
+			}
+			else{
+				IMqttTopic[] all = subscriptions.getTopics().toArray(new IMqttTopic[0]);
+				client.subscribe(all);
+				subscriptions.confirmSubscribed(all);
+			}
+			nanos += System.nanoTime() - start;
+		}
+
+		IMqttClient publisher = factory.create(broker.getHost(), broker.getPort(), clientId+"-pub", null);
+		publisher.connect(options);
+		MqttMessage message = new MqttMessage(new byte[]{1});
+		message.setQoS(1);
+		publisher.publish(new MqttTopic(last), message);
+		if(!arrived.await(10, TimeUnit.SECONDS)){
+			System.err.println(clientId+": message on "+last+" did not arrive");
+		}
+		publisher.disconnect();
+		client.disconnect();
+
+		return nanos / 1e6 / reconnects;
+	}
+
+	private static void sync(IMqttClient client, MqttSubscriptionSet subscriptions) throws Throwable
+	{
+		MqttSubscriptionSet.Delta delta = subscriptions.diff();
+		IMqttTopic[] unsubscribe = delta.getUnsubscribe();
+		if(unsubscribe.length > 0){
+			client.unsubscribe(unsubscribe);
+			subscriptions.confirmUnsubscribed(unsubscribe);
+		}
+		IMqttTopic[] subscribe = delta.getSubscribe();
+		if(subscribe.length > 0){
+			client.subscribe(subscribe);
+			subscriptions.confirmSubscribed(subscribe);
+		}
+	}
+}
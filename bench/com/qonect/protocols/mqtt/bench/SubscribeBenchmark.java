@@ -0,0 +1,119 @@
+package com.qonect.protocols.mqtt.bench;
+
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttSubscribeException;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientWrapper;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Time to subscribe to growing topic sets against a LoopbackBroker: one
+ *  SUBSCRIBE for everything, as PahoMqttClientWrapper used to send, next
+ *  to size-bounded chunks that are all sent before waiting for the first
+ *  SUBACK. Finishes by subscribing to a set with a few invalid filters in
+ *  it, and checking that exactly those are reported as refused.
+ *
+ *  Usage: SubscribeBenchmark [rounds] [topicCounts, e.g. 100,1000,10000] [chunkBytes]
+ */
+public class SubscribeBenchmark
+{
+	public static void main(String[] args) throws Throwable
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String[] topicCounts = (args.length > 1 ? args[1] : "100,1000,10000").split(",");
+		int chunkBytes = args.length > 2 ? Integer.parseInt(args[2]) : PahoMqttClientWrapper.DEFAULT_SUBSCRIBE_CHUNK_BYTES;
+
+		LoopbackBroker broker = new LoopbackBroker();
+		broker.start();
+
+		System.out.println("rounds="+rounds+", chunk="+chunkBytes+" bytes");
+		System.out.println("topics,singleMillis,chunkedMillis");
+		try
+		{
+			for(String topicCount : topicCounts){
+				int topics = Integer.parseInt(topicCount.trim());
+				run(broker, topics, rounds, 0);
+				run(broker, topics, rounds, chunkBytes);
+				double single = run(broker, topics, rounds, 0);
+				double chunked = run(broker, topics, rounds, chunkBytes);
+				System.out.println(topics+","+String.format("%.2f", single)+","+String.format("%.2f", chunked));
+			}
+			checkRefused(broker, chunkBytes);
+		}
+		finally
+		{
+			broker.close();
+		}
+	}
+
+	/*
+	 * Average milliseconds per subscribe; chunkBytes 0 is a single SUBSCRIBE
+	 */
+	private static double run(LoopbackBroker broker, int topics, int rounds, int chunkBytes) throws Throwable
+	{
+		PahoMqttClientWrapper client = connect(broker, "sub-"+topics+"-"+chunkBytes, chunkBytes);
+
+		IMqttTopic[] filters = new IMqttTopic[topics];
+		for(int i = 0; i < topics; i++){
+			filters[i] = topic("bench/subscribe/"+i+"/+/state", 1);
+		}
+
+		long nanos = 0;
+		for(int r = 0; r < rounds; r++){
+			long start = System.nanoTime();
+			client.subscribe(filters);
+			nanos += System.nanoTime() - start;
+		}
+		client.disconnect();
+
+		return nanos / 1e6 / rounds;
+	}
+
+	private static void checkRefused(LoopbackBroker broker, int chunkBytes) throws Throwable
+	{
+		PahoMqttClientWrapper client = connect(broker, "sub-refused", chunkBytes);
+
+		int topics = 2000;
+		IMqttTopic[] filters = new IMqttTopic[topics];
+		for(int i = 0; i < topics; i++){
+			filters[i] = topic(i % 500 == 7 ? "bench/bad/#/"+i : "bench/good/"+i, 1);
+		}
+
+		try
+		{
+			client.subscribe(filters);
+			System.err.println("refused: no topic was reported as refused");
+		}
+		catch(MqttSubscribeException e)
+		{
+			IMqttTopic[] failed = e.getFailedTopics();
+			boolean ok = failed.length == topics / 500 && e.getSubscribedTopics().length == topics - failed.length;
+			for(IMqttTopic topic : failed){
+				ok &= topic.getName().startsWith("bench/bad/");
+			}
+			System.out.println("refused: "+failed.length+" of "+topics+" reported, "+(ok ? "as expected" : "NOT as expected"));
+		}
+		client.disconnect();
+	}
+
+	private static PahoMqttClientWrapper connect(LoopbackBroker broker, String clientId, int chunkBytes) throws Throwable
+	{
+		PahoMqttClientWrapper client = (PahoMqttClientWrapper)new PahoMqttClientFactory()
+			.create(broker.getHost(), broker.getPort(), clientId, null);
+		client.setSubscribeChunkBytes(chunkBytes);
+
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setKeepAliveInterval((short)60);
+		client.connect(options);
+		return client;
+	}
+
+	private static IMqttTopic topic(String filter, int qos)
+	{
+		MqttTopic topic = new MqttTopic(filter);
+		topic.setQoS(qos);
+		return topic;
+	}
+}
@@ -0,0 +1,118 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.MqttTopicPolicies;
+import com.qonect.protocols.mqtt.impl.MqttTopicPolicy;
+import com.qonect.protocols.mqtt.impl.MqttTopicTrie;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * The cost of resolving the policy of a message through MqttTopicPolicies,
+ *  next to matching every filter of the table against the topic in turn,
+ *  for a table of a few dozen filters. Finishes by publishing through the
+ *  resolved policies to a LoopbackBroker, and checking that a new
+ *  subscriber gets the retained message at the QoS its policy gives it.
+ *
+ *  Usage: TopicPolicyBenchmark [rounds] [opsPerRound]
+ */
+public class TopicPolicyBenchmark
+{
+	private static final int FILTERS = 50;
+
+	public static void main(String[] args) throws Throwable
+	{
+		final MqttTopicPolicies policies = new MqttTopicPolicies();
+		final String[] filters = new String[FILTERS];
+		final MqttTopicPolicy[] values = new MqttTopicPolicy[FILTERS];
+		for(int i = 0; i < FILTERS; i++){
+			filters[i] = "fleet/site"+i+"/+/"+(i % 2 == 0 ? "alarm" : "#");
+			values[i] = new MqttTopicPolicy(i % 3, i % 2 == 0, i % 2);
+			policies.setPolicy(filters[i], values[i]);
+		}
+
+		final String[] topics = new String[256];
+		for(int i = 0; i < topics.length; i++){
+			topics[i] = "fleet/site"+(i % (FILTERS + 10))+"/dev"+i+"/"+(i % 3 == 0 ? "alarm" : "telemetry");
+		}
+
+		MicroBenchmark bench = MicroBenchmark.fromArgs(args);
+		bench.run("resolved", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = policies.getPolicy(topics[i & 255]);
+			}
+		});
+		bench.run("scan", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				String topic = topics[i & 255];
+				MqttTopicPolicy policy = MqttTopicPolicy.DEFAULT;
+				for(int f = 0; f < FILTERS; f++){
+					if(MqttTopicTrie.matches(filters[f], topic))policy = values[f];
+				}
+				MicroBenchmark.sink = policy;
+			}
+		});
+
+		checkRetained(policies);
+	}
+
+	private static void checkRetained(MqttTopicPolicies policies) throws Throwable
+	{
+		String topic = "fleet/site4/dev1/alarm";
+		MqttTopicPolicy policy = policies.getPolicy(topic);
+
+		LoopbackBroker broker = new LoopbackBroker();
+		broker.start();
+		try
+		{
+			PahoMqttClientFactory factory = new PahoMqttClientFactory();
+			MqttConnectOptions options = new MqttConnectOptions();
+			options.setCleanSession(true);
+			options.setKeepAliveInterval((short)60);
+
+			IMqttClient publisher = factory.create(broker.getHost(), broker.getPort(), "policy-pub", null);
+			publisher.connect(options);
+			publisher.publish(new MqttTopic(topic), policy.newMessage(new byte[]{1}));
+			publisher.disconnect();
+
+			final CountDownLatch arrived = new CountDownLatch(1);
+			final boolean[] retained = new boolean[1];
+			final int[] qos = new int[1];
+			IMqttClient subscriber = factory.create(broker.getHost(), broker.getPort(), "policy-sub", null);
+			subscriber.setCallback(new IMqttCallback() {
+				@Override
+				public void messageArrived(IMqttTopic topic, IMqttMessage message) {
+					retained[0] = message.isRetained();
+					qos[0] = topic.getQoS();
+					arrived.countDown();
+				}
+
+				@Override
+				public void connectionLost(Throwable throwable) {
+				}
+			});
+			subscriber.connect(options);
+			MqttTopic filter = new MqttTopic(topic);
+			filter.setQoS(policies.getPolicy(topic).getQoS());
+			subscriber.subscribe(filter);
+
+			boolean ok = arrived.await(10, TimeUnit.SECONDS) && retained[0] && qos[0] == policy.getQoS();
+			System.out.println("retained: "+policy+", received retained="+retained[0]+" qos="+qos[0]
+				+", "+(ok ? "as expected" : "NOT as expected"));
+			subscriber.disconnect();
+		}
+		finally
+		{
+			broker.close();
+		}
+	}
+}
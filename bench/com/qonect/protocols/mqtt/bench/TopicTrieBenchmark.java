@@ -0,0 +1,100 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.qonect.protocols.mqtt.impl.MqttTopicTrie;
+
+/*
+ * Compares routing a message through MqttTopicTrie with testing every
+ *  registered filter in turn, which is what per-handler filtering amounts to.
+ *
+ *  Usage: TopicTrieBenchmark [filters] [messages]
+ *
+ *  Filters look like fleet/<site>/<device>/<sensor> with some levels
+ *  replaced by '+' or a trailing '#'.
+ */
+public class TopicTrieBenchmark
+{
+	public static void main(String[] args)
+	{
+		int filterCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		Random random = new Random(42);
+		List<String> filters = new ArrayList<String>(filterCount);
+		MqttTopicTrie<Integer> trie = new MqttTopicTrie<Integer>();
+		for(int i = 0; i < filterCount; i++){
+			String filter = randomFilter(random);
+			filters.add(filter);
+			trie.add(filter, Integer.valueOf(i));
+		}
+
+		String[] topics = new String[4096];
+		for(int i = 0; i < topics.length; i++){
+			topics[i] = "fleet/site"+random.nextInt(100)+"/dev"+random.nextInt(1000)+"/s"+random.nextInt(10);
+		}
+
+		System.out.println("filters="+filterCount+", messages="+messageCount);
+
+		// warm up both paths before measuring
+		runTrie(trie, topics, messageCount / 10);
+		runLinear(filters, topics, Math.min(messageCount, 100000) / 100);
+
+		long start = System.nanoTime();
+		long matched = runTrie(trie, topics, messageCount);
+		long trieNanos = System.nanoTime() - start;
+		report("trie", messageCount, trieNanos, matched);
+
+		// the linear scan is orders of magnitude slower, so measure fewer
+		int linearMessages = Math.max(1, messageCount / 100);
+		start = System.nanoTime();
+		matched = runLinear(filters, topics, linearMessages);
+		long linearNanos = System.nanoTime() - start;
+		report("linear", linearMessages, linearNanos, matched);
+	}
+
+	private static long runTrie(MqttTopicTrie<Integer> trie, String[] topics, int messages)
+	{
+		List<Integer> result = new ArrayList<Integer>();
+		long matched = 0;
+		for(int i = 0; i < messages; i++){
+			trie.match(topics[i & (topics.length - 1)], result);
+			matched += result.size();
+			result.clear();
+		}
+		return matched;
+	}
+
+	private static long runLinear(List<String> filters, String[] topics, int messages)
+	{
+		long matched = 0;
+		for(int i = 0; i < messages; i++){
+			String topic = topics[i & (topics.length - 1)];
+			for(int f = 0; f < filters.size(); f++){
+				if(MqttTopicTrie.matches(filters.get(f), topic)){
+					matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	private static void report(String name, int messages, long nanos, long matched)
+	{
+		System.out.println(name+": "+(long)(messages / (nanos / 1e9))+" msg/s, "
+			+(nanos / messages)+" ns/msg, avg matches "+((double)matched / messages));
+	}
+
+	private static String randomFilter(Random random)
+	{
+		String site = random.nextInt(50) == 0 ? "+" : "site"+random.nextInt(100);
+		String device = random.nextInt(5) == 0 ? "+" : "dev"+random.nextInt(1000);
+		if(random.nextInt(20) == 0){
+			return "fleet/"+site+"/"+device+"/#";
+		}
+		String sensor = random.nextInt(4) == 0 ? "+" : "s"+random.nextInt(10);
+		return "fleet/"+site+"/"+device+"/"+sensor;
+	}
+}
@@ -0,0 +1,120 @@
+package com.qonect.protocols.mqtt.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.qonect.protocols.mqtt.impl.MqttWakeLockManager;
+import com.qonect.protocols.mqtt.interfaces.IMqttWakeLock;
+
+/*
+ * Platform wake lock calls made while handling bursts of messages, with a
+ *  new lock per message - as the Service used to - and through
+ *  MqttWakeLockManager with several linger times. On a device every
+ *  acquire and release of a lock that is not held is a call into the
+ *  system server; here a fake lock counts them.
+ *
+ *  Usage: WakeLockBenchmark [bursts] [burstSize] [gapMillis]
+ */
+public class WakeLockBenchmark
+{
+	private static final long[] LINGER_MILLIS = { 0, 50, 500 };
+
+	/*
+	 * Behaves like a PowerManager.WakeLock that is not reference counted
+	 */
+	private static class FakeWakeLock implements IMqttWakeLock
+	{
+		static long created;
+		static long platformCalls;
+
+		long heldUntil = Long.MIN_VALUE;
+		boolean held;
+
+		FakeWakeLock()
+		{
+			created++;
+		}
+
+		@Override
+		public void acquire()
+		{
+			if(!isHeld())platformCalls++;
+			held = true;
+			heldUntil = Long.MAX_VALUE;
+		}
+
+		@Override
+		public void acquire(long timeoutMillis)
+		{
+			if(!isHeld())platformCalls++;
+			held = true;
+			heldUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+
+		@Override
+		public void release()
+		{
+			if(isHeld())platformCalls++;
+			held = false;
+		}
+
+		boolean isHeld()
+		{
+			if(held && heldUntil != Long.MAX_VALUE && heldUntil - System.nanoTime() <= 0){
+				// timed out; the platform released it on its own
+				platformCalls++;
+				held = false;
+			}
+			return held;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int burstSize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		long gapMillis = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+		System.out.println("bursts="+bursts+", burstSize="+burstSize+", gap="+gapMillis+"ms");
+		System.out.println("mode,locksCreated,platformCalls,callsPerMessage");
+
+		reset();
+		for(int b = 0; b < bursts; b++)
+		{
+			for(int i = 0; i < burstSize; i++){
+				FakeWakeLock lock = new FakeWakeLock();
+				lock.acquire();
+				lock.release();
+			}
+			Thread.sleep(gapMillis);
+		}
+		report("perMessage", bursts * burstSize);
+
+		for(long linger : LINGER_MILLIS)
+		{
+			reset();
+			MqttWakeLockManager manager = new MqttWakeLockManager(new FakeWakeLock(), linger);
+			for(int b = 0; b < bursts; b++)
+			{
+				for(int i = 0; i < burstSize; i++){
+					manager.acquire();
+					manager.release();
+				}
+				Thread.sleep(gapMillis);
+			}
+			manager.close();
+			report("linger"+linger+"ms", bursts * burstSize);
+		}
+	}
+
+	private static void reset()
+	{
+		FakeWakeLock.created = 0;
+		FakeWakeLock.platformCalls = 0;
+	}
+
+	private static void report(String mode, int messages)
+	{
+		System.out.println(mode+","+FakeWakeLock.created+","+FakeWakeLock.platformCalls
+			+","+String.format("%.3f", (double)FakeWakeLock.platformCalls / messages));
+	}
+}
@@ -0,0 +1,140 @@
+package com.qonect.protocols.mqtt.impl.paho;
+
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.qonect.protocols.mqtt.bench.MicroBenchmark;
+import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+import com.qonect.protocols.mqtt.service.MqttMessageDispatcher;
+
+/*
+ * What the wrapper layer around the Paho client costs per operation, as a
+ *  baseline for optimizing it: wrapping inbound messages, converting
+ *  outbound ones, building subscribe arrays and getting a message from the
+ *  Paho callback to our own. Lives in the wrapper's package to reach its
+ *  package-private parts; no broker is needed.
+ *
+ *  Usage: PahoWrapperBenchmark [rounds] [opsPerRound] [payloadBytes]
+ */
+public class PahoWrapperBenchmark
+{
+	public static void main(String[] args) throws Throwable
+	{
+		MicroBenchmark bench = MicroBenchmark.fromArgs(args);
+		int payloadBytes = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+		// never connected, so nothing goes over the wire
+		final PahoMqttClientWrapper wrapper = 
+			new PahoMqttClientWrapper("tcp://localhost:1883", "bench", null);
+		final MqttClient paho = new MqttClient("tcp://localhost:1883", "bench-topics", null);
+
+		final MqttTopic pahoTopic = paho.getTopic("devices/1234/status");
+		final MqttMessage pahoMessage = new MqttMessage(new byte[payloadBytes]);
+		final IMqttTopic topic = new com.qonect.protocols.mqtt.impl.MqttTopic("devices/1234/status");
+		final IMqttMessage message = new com.qonect.protocols.mqtt.impl.MqttMessage(new byte[payloadBytes]);
+
+		System.out.println("payload="+payloadBytes+" bytes");
+
+		bench.run("inbound: wrap topic and message", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = new PahoMqttTopicWrapper(pahoTopic);
+				MicroBenchmark.sink = new PahoMqttMessageWrapper(pahoMessage);
+			}
+		});
+
+		bench.run("inbound: wrap and read payload", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) throws Throwable {
+				MicroBenchmark.sink = new PahoMqttTopicWrapper(pahoTopic).getName();
+				MicroBenchmark.sink = new PahoMqttMessageWrapper(pahoMessage).getPayload();
+			}
+		});
+
+		bench.run("publish: convert message", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) throws Throwable {
+				MicroBenchmark.sink = PahoMqttClientWrapper.toPahoMessage(message);
+			}
+		});
+
+		bench.run("publish: look up topic", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) {
+				MicroBenchmark.sink = paho.getTopic(topic.getName());
+			}
+		});
+
+		for(final int count : new int[]{ 1, 10, 100 })
+		{
+			final IMqttTopic[] topics = new IMqttTopic[count];
+			for(int i = 0; i < count; i++){
+				topics[i] = new com.qonect.protocols.mqtt.impl.MqttTopic("devices/"+i+"/status");
+			}
+			bench.run("subscribe: build arrays, "+count+" topics", new MicroBenchmark.Operation() {
+				@Override
+				public void run(int i) {
+					String[] topicarray = new String[count];
+					int[] prioarray = new int[count];
+					PahoMqttClientWrapper.toPahoSubscription(topics, topicarray, prioarray);
+					MicroBenchmark.sink = topicarray;
+					MicroBenchmark.sink = prioarray;
+				}
+			});
+		}
+
+		wrapper.setCallback(new IMqttCallback() {
+			@Override
+			public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception {
+				MicroBenchmark.sink = message;
+			}
+			@Override
+			public void connectionLost(Throwable throwable) {
+			}
+		});
+		bench.run("callback: paho to IMqttCallback", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) throws Throwable {
+				wrapper.pahoCallback.messageArrived(pahoTopic, pahoMessage);
+			}
+		});
+
+		// the path MqttService takes to in-process listeners
+		final MqttMessageDispatcher dispatcher = new MqttMessageDispatcher();
+		dispatcher.register(new MqttMessageDispatcher.Listener() {
+			@Override
+			public void messagesArrived(List<MqttMessageDispatcher.ReceivedMessage> messages) {
+				MicroBenchmark.sink = messages;
+			}
+		});
+		wrapper.setCallback(new IMqttCallback() {
+			@Override
+			public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception {
+				try
+				{
+					dispatcher.dispatch(topic.getName(), message.getPayload());
+				}
+				catch(MqttException e)
+				{
+					throw new Exception(e);
+				}
+			}
+			@Override
+			public void connectionLost(Throwable throwable) {
+			}
+		});
+		bench.run("callback: paho to dispatcher listener", new MicroBenchmark.Operation() {
+			@Override
+			public void run(int i) throws Throwable {
+				wrapper.pahoCallback.messageArrived(pahoTopic, pahoMessage);
+			}
+		});
+		dispatcher.shutdown();
+	}
+}
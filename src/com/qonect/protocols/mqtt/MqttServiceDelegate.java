@@ -4,15 +4,30 @@ import java.util.ArrayList;
 import java.util.List;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 
+import com.qonect.protocols.mqtt.impl.MqttInboundQueue;
+import com.qonect.protocols.mqtt.impl.MqttStateMachine;
+import com.qonect.protocols.mqtt.impl.MqttTopicTrie;
+import com.qonect.protocols.mqtt.impl.codec.MqttDeflateCodec;
+import com.qonect.protocols.mqtt.impl.codec.MqttPayloadCodecs;
+import com.qonect.protocols.mqtt.service.MqttMessageDispatcher;
+import com.qonect.protocols.mqtt.service.MqttMessageDispatcher.ReceivedMessage;
 import com.qonect.protocols.mqtt.service.MqttService;
 import com.qonect.protocols.mqtt.service.MqttService.ConnectionStatus;
 
 public class MqttServiceDelegate
 {
+	public static final String TOPIC_FILTER_ALL = "#";
+	
 	public interface MessageHandler{
 		public void handleMessage(String topic, byte[] payload);
 	}
@@ -40,6 +55,131 @@ public class MqttServiceDelegate
         context.startService(actionIntent);
 	}
 	
+	/*
+	 * Has publishes to topic collected for up to lingerMillis, or until they 
+	 *  add up to maxBytes, and sent as one message; messages received on 
+	 *  topic are split up again before they reach the handlers. Both sides 
+	 *  of a topic need to turn this on. A linger of 0 turns it off.
+	 */
+	public static void setPublishBatching(Context context, String topic, long lingerMillis, int maxBytes)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_PUBLISH_BATCHING_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_PUBLISH_BATCHING_TOPIC, topic);
+        actionIntent.putExtra(MqttService.MQTT_PUBLISH_BATCHING_LINGER, lingerMillis);
+        actionIntent.putExtra(MqttService.MQTT_PUBLISH_BATCHING_MAX_BYTES, maxBytes);
+        context.startService(actionIntent);
+	}
+	
+	/*
+	 * Has payloads on the topics matching topicFilter deflated on the way 
+	 *  out and inflated on the way in. Both sides of a topic need to turn 
+	 *  this on.
+	 */
+	public static void setPayloadCompression(Context context, String topicFilter)
+	{
+		setPayloadCodec(context, topicFilter, MqttDeflateCodec.ID, null);
+	}
+	
+	/*
+	 * As above, with a dictionary of strings common in the payloads - see 
+	 *  MqttDictionaryCodec.train(). Publisher and subscribers must use the 
+	 *  same dictionary under the same ID, from 2 to 255.
+	 */
+	public static void setPayloadCompression(Context context, String topicFilter, int dictionaryId, byte[] dictionary)
+	{
+		setPayloadCodec(context, topicFilter, dictionaryId, dictionary);
+	}
+	
+	public static void clearPayloadCompression(Context context, String topicFilter)
+	{
+		setPayloadCodec(context, topicFilter, MqttPayloadCodecs.ID_NONE, null);
+	}
+	
+	private static void setPayloadCodec(Context context, String topicFilter, int codecId, byte[] dictionary)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_PAYLOAD_CODEC_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_PAYLOAD_CODEC_FILTER, topicFilter);
+        actionIntent.putExtra(MqttService.MQTT_PAYLOAD_CODEC_ID, codecId);
+        if(dictionary != null){
+        	actionIntent.putExtra(MqttService.MQTT_PAYLOAD_CODEC_DICTIONARY, dictionary);
+        }
+        context.startService(actionIntent);
+	}
+	
+	/*
+	 * What happens to messages received on the topics matching topicFilter
+	 *  while the handlers are behind; null goes back to the default (BLOCK)
+	 */
+	public static void setOverloadPolicy(Context context, String topicFilter, MqttInboundQueue.OverflowPolicy policy)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_INBOUND_POLICY_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_INBOUND_POLICY_FILTER, topicFilter);
+        if(policy != null){
+        	actionIntent.putExtra(MqttService.MQTT_INBOUND_POLICY_NAME, policy.name());
+        }
+        context.startService(actionIntent);
+	}
+	
+	/*
+	 * Publishes messages on the topics matching topicFilter at qos, retained
+	 *  or not; those with a priority above MqttTopicPolicy.PRIORITY_NORMAL 
+	 *  skip batching and go ahead of messages queued while offline. qos is 
+	 *  also what subscribe() without a QoS uses.
+	 */
+	public static void setTopicPolicy(Context context, String topicFilter, int qos, boolean retained, int priority)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_TOPIC_POLICY_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_FILTER, topicFilter);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_QOS, qos);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_RETAINED, retained);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_PRIORITY, priority);
+        context.startService(actionIntent);
+	}
+	
+	public static void clearTopicPolicy(Context context, String topicFilter)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_TOPIC_POLICY_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_FILTER, topicFilter);
+        context.startService(actionIntent);
+	}
+	
+	/*
+	 * Subscribes to topicFilter at qos while the Service is running, and
+	 *  whenever it reconnects
+	 */
+	public static void subscribe(Context context, String topicFilter, int qos)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_TOPIC_SUBSCRIBE_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_FILTER, topicFilter);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_QOS, qos);
+        context.startService(actionIntent);
+	}
+	
+	/*
+	 * As above, at the QoS the policy of topicFilter gives it
+	 */
+	public static void subscribe(Context context, String topicFilter)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_TOPIC_SUBSCRIBE_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_FILTER, topicFilter);
+        context.startService(actionIntent);
+	}
+	
+	public static void unsubscribe(Context context, String topicFilter)
+	{
+		Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_TOPIC_UNSUBSCRIBE_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_TOPIC_FILTER, topicFilter);
+        context.startService(actionIntent);
+	}
+	
 	public static class StatusReceiver extends BroadcastReceiver  
 	{
 		private List<StatusHandler> statusHandlers = new ArrayList<StatusHandler>();
@@ -74,26 +214,150 @@ public class MqttServiceDelegate
 	        String statusMsg = notificationData.getString(
 	        		MqttService.MQTT_STATUS_MSG);	
 			
+	        deliver(statusCode, statusMsg);
+		} 
+		
+		public void deliver(ConnectionStatus status, String reason)
+		{
 	        for(StatusHandler statusHandler : statusHandlers){
-	        	statusHandler.handleStatus(statusCode, statusMsg);
+	        	statusHandler.handleStatus(status, reason);
 	        }
-		} 
+		}
+	}
+	
+	/*
+	 * Connects a StatusReceiver to the service: when it runs in our own 
+	 *  process, status changes are passed on as they happen, through its 
+	 *  LocalBinder, and posted to the main thread; otherwise we keep 
+	 *  receiving the status broadcasts.
+	 */
+	public static class StatusChannel implements ServiceConnection, MqttStateMachine.Listener<ConnectionStatus>
+	{
+		private final StatusReceiver receiver;
+		private final Handler mainHandler = new Handler(Looper.getMainLooper());
+		
+		private Context context;
+		private volatile MqttService service;
+		private boolean receiverRegistered = false;
+		
+		public StatusChannel(StatusReceiver receiver){
+			this.receiver = receiver;
+		}
+		
+		public void open(Context context){
+			this.context = context;
+			
+			// broadcasts until (and unless) we are bound directly
+			registerReceiver();
+			
+			context.bindService(new Intent(context, MqttService.class), this, 0);
+		}
+		
+		public void close(){
+			if(context == null){
+				return;
+			}
+			
+			if(service != null){
+				service.unregisterStatusListener(this);
+				service = null;
+			}
+			unregisterReceiver();
+			
+			context.unbindService(this);
+			context = null;
+		}
+		
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder){
+			if(context == null){
+				return;
+			}
+			
+			if(binder instanceof MqttService.LocalBinder){
+				@SuppressWarnings("unchecked")
+				MqttService boundService = ((MqttService.LocalBinder<MqttService>)binder).getService();
+				if(boundService != null){
+					service = boundService;
+					service.registerStatusListener(this);
+					unregisterReceiver();
+					
+					// what we would have got from rebroadcastStatus()
+					receiver.deliver(service.getConnectionStatus(), service.getStatusDescription());
+				}
+			}
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name){
+			service = null;
+			if(context != null){
+				registerReceiver();
+			}
+		}
+		
+		@Override
+		public void onStateChanged(ConnectionStatus from, final ConnectionStatus to, long millisInPrevious){
+			final MqttService current = service;
+			if(current == null){
+				return;
+			}
+			final String reason = current.getStatusDescription();
+			
+			// called on a service thread - handlers expect the main thread
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(service != null){
+						receiver.deliver(to, reason);
+					}
+				}
+			});
+		}
+		
+		private void registerReceiver(){
+			if(!receiverRegistered){
+				context.registerReceiver(receiver, 
+					new IntentFilter(MqttService.MQTT_STATUS_INTENT));
+				receiverRegistered = true;
+			}
+		}
+		
+		private void unregisterReceiver(){
+			if(receiverRegistered){
+				context.unregisterReceiver(receiver);
+				receiverRegistered = false;
+			}
+		}
 	}
 	
 	public static class MessageReceiver extends BroadcastReceiver  
 	{  		
-		private List<MessageHandler> messageHandlers = new ArrayList<MessageHandler>();
+		// handlers are looked up by topic filter, so a message only costs as 
+		//  much as the depth of its topic - not the number of handlers
+		private MqttTopicTrie<MessageHandler> messageHandlers = new MqttTopicTrie<MessageHandler>();
 		
+		/*
+		 * Registers a handler for all topics
+		 */
 		public void registerHandler(MessageHandler handler){
-			if(!messageHandlers.contains(handler)){
-				messageHandlers.add(handler);
-			}
+			registerHandler(TOPIC_FILTER_ALL, handler);
+		}
+		
+		/*
+		 * Registers a handler for the topics matching topicFilter, which may 
+		 *  contain the '+' and '#' wildcards
+		 */
+		public void registerHandler(String topicFilter, MessageHandler handler){
+			messageHandlers.add(topicFilter, handler);
 		}
 		
 		public void unregisterHandler(MessageHandler handler){
-			if(messageHandlers.contains(handler)){
-				messageHandlers.remove(handler);
-			}
+			messageHandlers.removeAll(handler);
+		}
+		
+		public void unregisterHandler(String topicFilter, MessageHandler handler){
+			messageHandlers.remove(topicFilter, handler);
 		}
 		
 		public void clearHandlers(){
@@ -111,9 +375,209 @@ public class MqttServiceDelegate
 	        String topic = notificationData.getString(MqttService.MQTT_MSG_RECEIVED_TOPIC);  
 	        byte[] payload  = notificationData.getByteArray(MqttService.MQTT_MSG_RECEIVED_MSG);    	  
 	        
-	        for(MessageHandler messageHandler : messageHandlers){
+	        deliver(topic, payload);
+	    }
+	    
+	    /*
+	     * Hands a message to every handler whose filter matches its topic. 
+	     *  The matches are collected per call, so a handler may cause another
+	     *  deliver() without upsetting this one
+	     */
+	    public void deliver(String topic, byte[] payload)
+	    {
+	        List<MessageHandler> handlers = messageHandlers.match(topic, new ArrayList<MessageHandler>(2));
+	        for(MessageHandler messageHandler : handlers){
 	        	messageHandler.handleMessage(topic, payload);
 	        }
 	    }  
 	} 
+	
+	/*
+	 * Connects a MessageReceiver to the service the cheapest way available. 
+	 *  When the service runs in our own process, messages are handed over 
+	 *  directly through its LocalBinder - optionally in batches - and posted 
+	 *  to the main thread, so handlers run on the same thread as they would 
+	 *  for a broadcast. From another process, the binder is a proxy and we 
+	 *  keep receiving broadcasts, which we ask the service to keep sending.
+	 *  The service keeps broadcasting either way unless told otherwise with
+	 *  MqttService.setSkipBroadcastWhenBound(), which is only safe when no 
+	 *  receiver in its process is registered without a MessageChannel.
+	 */
+	public static class MessageChannel implements ServiceConnection, MqttMessageDispatcher.Listener
+	{
+		private final MessageReceiver receiver;
+		private final int maxBatchSize;
+		private final long maxDelayMillis;
+		private final Handler mainHandler = new Handler(Looper.getMainLooper());
+		
+		private Context context;
+		private MqttService service;
+		private boolean receiverRegistered = false;
+		private boolean broadcastSubscribed = false;
+		private boolean replayLastValues = false;
+		
+		/*
+		 * Delivers every message as soon as it arrives
+		 */
+		public MessageChannel(MessageReceiver receiver){
+			this(receiver, 1, 0);
+		}
+		
+		/*
+		 * Delivers direct messages in batches of up to maxBatchSize, at most 
+		 *  maxDelayMillis after the first message of a batch arrived
+		 */
+		public MessageChannel(MessageReceiver receiver, int maxBatchSize, long maxDelayMillis){
+			this.receiver = receiver;
+			this.maxBatchSize = maxBatchSize;
+			this.maxDelayMillis = maxDelayMillis;
+		}
+		
+		public void open(Context context){
+			this.context = context;
+			
+			// broadcasts until (and unless) we are bound directly
+			registerReceiver();
+			
+			context.bindService(new Intent(context, MqttService.class), this, 0);
+		}
+		
+		/*
+		 * Call before stopping the service: from another process, this tells 
+		 *  the service to stop broadcasting to us, which would start it again
+		 */
+		public void close(){
+			if(context == null){
+				return;
+			}
+			
+			if(service != null){
+				service.unregisterMessageListener(this);
+				service = null;
+			}
+			unsubscribeBroadcasts();
+			unregisterReceiver();
+			
+			context.unbindService(this);
+			context = null;
+		}
+		
+		/*
+		 * Once bound directly, hands the receiver the last message on each 
+		 *  topic the service still has, before any new ones, so that 
+		 *  handlers can show the current state straight away. A message 
+		 *  that arrives meanwhile may be handed over twice, never out of 
+		 *  order. Call before open().
+		 */
+		public void setReplayLastValues(boolean replay){
+			this.replayLastValues = replay;
+		}
+		
+		/*
+		 * The last message on every topic matching topicFilter, straight 
+		 *  from the service; empty until bound directly
+		 */
+		public List<ReceivedMessage> getLastValues(String topicFilter){
+			MqttService boundService = service;
+			if(boundService == null){
+				return new ArrayList<ReceivedMessage>();
+			}
+			return boundService.getLastValues(topicFilter);
+		}
+		
+		/*
+		 * True if messages are delivered without broadcasts
+		 */
+		public boolean isDirect(){
+			return service != null;
+		}
+		
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder){
+			if(context == null){
+				return;
+			}
+			
+			if(binder instanceof MqttService.LocalBinder){
+				@SuppressWarnings("unchecked")
+				MqttService boundService = ((MqttService.LocalBinder<MqttService>)binder).getService();
+				if(boundService != null){
+					service = boundService;
+					service.registerMessageListener(this, maxBatchSize, maxDelayMillis);
+					unsubscribeBroadcasts();
+					unregisterReceiver();
+					
+					// registered first, so that nothing newer than the 
+					//  snapshot is missed; new messages are posted behind it
+					if(replayLastValues){
+						for(ReceivedMessage message : service.getLastValues(TOPIC_FILTER_ALL)){
+							receiver.deliver(message.getTopic(), message.getPayload());
+						}
+					}
+					return;
+				}
+			}
+			
+			// the service lives in another process
+			subscribeBroadcasts();
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name){
+			service = null;
+			broadcastSubscribed = false;
+			if(context != null){
+				registerReceiver();
+			}
+		}
+		
+		@Override
+		public void messagesArrived(final List<ReceivedMessage> messages){
+			// called on a service thread - handlers expect the main thread
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(service == null){
+						return;
+					}
+					for(ReceivedMessage message : messages){
+						receiver.deliver(message.getTopic(), message.getPayload());
+					}
+				}
+			});
+		}
+		
+		private void registerReceiver(){
+			if(!receiverRegistered){
+				context.registerReceiver(receiver, 
+					new IntentFilter(MqttService.MQTT_MSG_RECEIVED_INTENT));
+				receiverRegistered = true;
+			}
+		}
+		
+		private void unregisterReceiver(){
+			if(receiverRegistered){
+				context.unregisterReceiver(receiver);
+				receiverRegistered = false;
+			}
+		}
+		
+		private void subscribeBroadcasts(){
+			if(!broadcastSubscribed){
+				Intent intent = new Intent(context, MqttService.class);
+				intent.setAction(MqttService.MQTT_BROADCAST_SUBSCRIBE_INTENT);
+				context.startService(intent);
+				broadcastSubscribed = true;
+			}
+		}
+		
+		private void unsubscribeBroadcasts(){
+			if(broadcastSubscribed){
+				Intent intent = new Intent(context, MqttService.class);
+				intent.setAction(MqttService.MQTT_BROADCAST_UNSUBSCRIBE_INTENT);
+				context.startService(intent);
+				broadcastSubscribed = false;
+			}
+		}
+	}
 }
@@ -14,6 +14,7 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import com.qonect.protocols.mqtt.MqttServiceDelegate.MessageChannel;
 import com.qonect.protocols.mqtt.MqttServiceDelegate.MessageHandler;
 import com.qonect.protocols.mqtt.MqttServiceDelegate.MessageReceiver;
 import com.qonect.protocols.mqtt.MqttServiceDelegate.StatusHandler;
@@ -25,7 +26,11 @@ public class MqttTestActivity extends Activity implements MessageHandler, Status
 {	
 	private static final Logger LOG = Logger.getLogger(MqttTestActivity.class);
 	
+	// the service subscribes to it, so what we publish comes back to us
+	private static final String TEST_TOPIC = "test-topic";
+	
 	private MessageReceiver msgReceiver;
+	private MessageChannel msgChannel;
 	private StatusReceiver statusReceiver;
 	
 	private TextView timestampView, topicView, messageView, statusView;
@@ -56,7 +61,7 @@ public class MqttTestActivity extends Activity implements MessageHandler, Status
 			public void onClick(View v) {
 				MqttServiceDelegate.publish(
 					MqttTestActivity.this, 
-					"the-topic-that-is-now-unused-in-service!", 
+					TEST_TOPIC, 
 					publishEditView.getText().toString().getBytes());
 			}
 		});
@@ -74,25 +79,31 @@ public class MqttTestActivity extends Activity implements MessageHandler, Status
 	{ 
 		LOG.debug("onDestroy");
 		
-		MqttServiceDelegate.stopService(this);
-		
+		// before stopping the service - unbinding may need to tell it to
+		//  stop broadcasting to us
 		unbindMessageReceiver();
 		unbindStatusReceiver();
 		
+		MqttServiceDelegate.stopService(this);
+		
 	    super.onDestroy(); 
 	}
 	
 	private void bindMessageReceiver(){
 		msgReceiver = new MessageReceiver();
 		msgReceiver.registerHandler(this);
-		registerReceiver(msgReceiver, 
-			new IntentFilter(MqttService.MQTT_MSG_RECEIVED_INTENT));
+		
+		// messages come straight from the service when it runs in our process,
+		//  and as broadcasts when it doesn't
+		msgChannel = new MessageChannel(msgReceiver);
+		msgChannel.open(this);
 	}
 	
 	private void unbindMessageReceiver(){
 		if(msgReceiver != null){
+			msgChannel.close();
+			msgChannel = null;
 			msgReceiver.unregisterHandler(this);
-			unregisterReceiver(msgReceiver);
 			msgReceiver = null;
 		}
 	}
@@ -120,7 +131,9 @@ public class MqttTestActivity extends Activity implements MessageHandler, Status
 	public void handleMessage(String topic, byte[] payload) {
 		String message = new String(payload);
 		
-		LOG.debug("handleMessage: topic="+topic+", message="+message);
+		if(LOG.isDebugEnabled()){
+			LOG.debug("handleMessage: topic="+topic+", message="+message);
+		}
 				
 		if(timestampView != null)timestampView.setText("When: "+getCurrentTimestamp());
 		if(topicView != null)topicView.setText("Topic: "+topic);
@@ -0,0 +1,179 @@
+package com.qonect.protocols.mqtt.impl;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttKeepAliveStore;
+
+/*
+ * Learns, per network, the longest time a connection may sit idle before a
+ *  NAT or firewall on the way to the broker drops it, so that pings are sent
+ *  no more often than that network needs.
+ *
+ *  Starting from the minimum interval, the interval is doubled after every
+ *  ping that got an answer. Once a ping has failed, the next intervals are
+ *  a binary search between the longest interval that worked and the shortest
+ *  one that did not, until the two are within the configured precision.
+ *  A failure at an interval that used to work halves what is known to work.
+ *  After a number of pings at the learned interval, probing upward resumes,
+ *  in case the network has become more lenient.
+ */
+public class MqttAdaptiveKeepAlive
+{
+	private static final Logger LOG = Logger.getLogger(MqttAdaptiveKeepAlive.class);
+
+	public static final long DEFAULT_PRECISION_MILLIS = 30 * 1000;
+	public static final int DEFAULT_REPROBE_AFTER = 50;
+
+	private final IMqttKeepAliveStore store;
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+	private final long precisionMillis;
+	private final int reprobeAfter;
+
+	private String network;
+
+	// longest idle time that survived on this network, 0 if none yet
+	private long goodMillis;
+	// shortest idle time that did not, 0 if none yet
+	private long failedMillis;
+	private long intervalMillis;
+	private int stableSuccesses;
+
+	public MqttAdaptiveKeepAlive(IMqttKeepAliveStore store, long minIntervalMillis, long maxIntervalMillis)
+	{
+		this(store, minIntervalMillis, maxIntervalMillis, DEFAULT_PRECISION_MILLIS, DEFAULT_REPROBE_AFTER);
+	}
+
+	public MqttAdaptiveKeepAlive(IMqttKeepAliveStore store, long minIntervalMillis, long maxIntervalMillis,
+		long precisionMillis, int reprobeAfter)
+	{
+		this.store = store;
+		this.minIntervalMillis = minIntervalMillis;
+		this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+		this.precisionMillis = precisionMillis;
+		this.reprobeAfter = reprobeAfter;
+		this.intervalMillis = minIntervalMillis;
+	}
+
+	/*
+	 * Switches to what was learned about network before, if anything
+	 */
+	public synchronized void setNetwork(String network)
+	{
+		if(network.equals(this.network)){
+			return;
+		}
+
+		this.network = network;
+		goodMillis = store.getLong(key("good"), 0);
+		failedMillis = store.getLong(key("failed"), 0);
+		stableSuccesses = 0;
+		update();
+
+		LOG.debug("setNetwork: "+this);
+	}
+
+	public synchronized String getNetwork()
+	{
+		return network;
+	}
+
+	/*
+	 * How long to wait, after the last traffic, before the next ping
+	 */
+	public synchronized long getIntervalMillis()
+	{
+		return intervalMillis;
+	}
+
+	/*
+	 * True once the search has converged for the current network
+	 */
+	public synchronized boolean isStable()
+	{
+		return failedMillis > 0 && failedMillis - Math.max(goodMillis, minIntervalMillis) <= precisionMillis;
+	}
+
+	/*
+	 * The connection was idle for idleMillis and a ping still got an answer
+	 */
+	public synchronized void onPingSucceeded(long idleMillis)
+	{
+		idleMillis = Math.min(idleMillis, maxIntervalMillis);
+		if(idleMillis > goodMillis){
+			goodMillis = idleMillis;
+		}
+		if(failedMillis > 0 && goodMillis >= failedMillis){
+			// the failure was not down to the idle time after all
+			failedMillis = 0;
+		}
+
+		if(isStable() && ++stableSuccesses >= reprobeAfter){
+			failedMillis = 0;
+			stableSuccesses = 0;
+		}
+
+		update();
+		save();
+		LOG.debug("onPingSucceeded: idle="+idleMillis+"ms, "+this);
+	}
+
+	/*
+	 * The connection was idle for idleMillis and then turned out to be dead
+	 */
+	public synchronized void onPingFailed(long idleMillis)
+	{
+		if(idleMillis <= goodMillis){
+			// something that used to work no longer does
+			goodMillis = idleMillis / 2 >= minIntervalMillis ? idleMillis / 2 : 0;
+			failedMillis = idleMillis;
+		}
+		else if(failedMillis == 0 || idleMillis < failedMillis){
+			failedMillis = idleMillis;
+		}
+		stableSuccesses = 0;
+
+		update();
+		save();
+		LOG.debug("onPingFailed: idle="+idleMillis+"ms, "+this);
+	}
+
+	public synchronized String toString()
+	{
+		return "MqttAdaptiveKeepAlive{network="+network+", interval="+intervalMillis
+			+"ms, good="+goodMillis+"ms, failed="+failedMillis+"ms, stable="+isStable()+"}";
+	}
+
+	private void update()
+	{
+		long lower = Math.max(goodMillis, minIntervalMillis);
+
+		if(goodMillis == 0){
+			// nothing confirmed yet, start at the bottom
+			intervalMillis = minIntervalMillis;
+		}
+		else if(failedMillis == 0){
+			intervalMillis = Math.min(lower * 2, maxIntervalMillis);
+		}
+		else if(isStable()){
+			intervalMillis = lower;
+		}
+		else {
+			intervalMillis = lower + (failedMillis - lower) / 2;
+		}
+	}
+
+	private void save()
+	{
+		if(network == null){
+			return;
+		}
+		store.putLong(key("good"), goodMillis);
+		store.putLong(key("failed"), failedMillis);
+	}
+
+	private String key(String name)
+	{
+		return network+"."+name;
+	}
+}
@@ -0,0 +1,136 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Several payloads for the same topic, packed into the payload of a single
+ *  PUBLISH.
+ *
+ *  Layout: magic 0xB7 'B', version 1, count (varint), then for every
+ *  message its length (varint) followed by its bytes. Varints are 7 bits
+ *  per byte, least significant first, high bit set on all but the last.
+ */
+public final class MqttBatchEnvelope
+{
+	private static final byte MAGIC_0 = (byte)0xB7;
+	private static final byte MAGIC_1 = 'B';
+	private static final byte VERSION = 1;
+
+	// magic, version and the largest count we write
+	public static final int HEADER_BYTES = 3 + 5;
+
+	private MqttBatchEnvelope()
+	{
+	}
+
+	/*
+	 * Bytes a message of the given size adds to an envelope
+	 */
+	public static int encodedSize(int payloadLength)
+	{
+		return varintSize(payloadLength) + payloadLength;
+	}
+
+	public static byte[] encode(List<byte[]> payloads)
+	{
+		int size = 3 + varintSize(payloads.size());
+		for(byte[] payload : payloads){
+			size += encodedSize(payload.length);
+		}
+
+		byte[] envelope = new byte[size];
+		envelope[0] = MAGIC_0;
+		envelope[1] = MAGIC_1;
+		envelope[2] = VERSION;
+		int offset = writeVarint(envelope, 3, payloads.size());
+		for(byte[] payload : payloads){
+			offset = writeVarint(envelope, offset, payload.length);
+			System.arraycopy(payload, 0, envelope, offset, payload.length);
+			offset += payload.length;
+		}
+		return envelope;
+	}
+
+	/*
+	 * Only checks the header; decode() still fails on a malformed body
+	 */
+	public static boolean isEnvelope(byte[] payload)
+	{
+		return payload != null && payload.length >= 4
+			&& payload[0] == MAGIC_0 && payload[1] == MAGIC_1 && payload[2] == VERSION;
+	}
+
+	/*
+	 * The payloads in the envelope, in the order they were published, or
+	 *  null if this is not a well-formed envelope
+	 */
+	public static List<byte[]> decode(byte[] envelope)
+	{
+		if(!isEnvelope(envelope)){
+			return null;
+		}
+
+		int[] position = { 3 };
+		int count = readVarint(envelope, position);
+		// every message takes at least one byte for its length
+		if(count < 0 || count > envelope.length - position[0]){
+			return null;
+		}
+
+		List<byte[]> payloads = new ArrayList<byte[]>(count);
+		for(int i = 0; i < count; i++)
+		{
+			int length = readVarint(envelope, position);
+			if(length < 0 || length > envelope.length - position[0]){
+				return null;
+			}
+			byte[] payload = new byte[length];
+			System.arraycopy(envelope, position[0], payload, 0, length);
+			position[0] += length;
+			payloads.add(payload);
+		}
+
+		// trailing bytes mean this was not one of ours after all
+		return position[0] == envelope.length ? payloads : null;
+	}
+
+	private static int varintSize(int value)
+	{
+		int size = 1;
+		while((value >>>= 7) != 0){
+			size++;
+		}
+		return size;
+	}
+
+	private static int writeVarint(byte[] buffer, int offset, int value)
+	{
+		while((value & ~0x7F) != 0){
+			buffer[offset++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte)value;
+		return offset;
+	}
+
+	/*
+	 * Returns -1 when the varint runs past the end or does not fit an int
+	 */
+	private static int readVarint(byte[] buffer, int[] position)
+	{
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7)
+		{
+			if(position[0] >= buffer.length){
+				return -1;
+			}
+			int b = buffer[position[0]++];
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+		return -1;
+	}
+}
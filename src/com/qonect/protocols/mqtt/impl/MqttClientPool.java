@@ -0,0 +1,401 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttClientFactory;
+import com.qonect.protocols.mqtt.interfaces.IMqttConnectOptions;
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryToken;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttPersistence;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Spreads subscriptions and publishes over several connections to the same
+ *  broker, each with its own socket and its own client callback thread.
+ *
+ *  Every topic (or topic filter) is assigned to one connection by a
+ *  consistent hash of its name, so everything published to a topic goes
+ *  out over the same connection, and everything received for a
+ *  subscription comes in over the same connection - in order. Nothing is
+ *  ordered across topics. Changing the pool size moves only about 1/size
+ *  of the topics to another connection.
+ *
+ *  Overlapping filters, such as "a/#" and "a/b", usually hash to different
+ *  connections. The broker then sends a message matching both of them
+ *  once on each connection, and the callback sees it twice. A single
+ *  client would get it once, because the broker merges overlapping
+ *  subscriptions of one session. Subscribe through a pool only to filters
+ *  that do not overlap, or let handlers tolerate duplicates.
+ *
+ *  Connection 0 uses the given client ID, so that a pool of 1 behaves like
+ *  a single client; the others append "-<index>", truncating the ID to
+ *  stay within the 23 characters MQTT 3.1 allows.
+ *
+ *  The callback is called from every connection's thread, so it has to be
+ *  thread-safe. connectionLost is reported once when the first connection
+ *  drops; connect() then brings back the ones that are down.
+ */
+public class MqttClientPool implements IMqttClient
+{
+	private static final Logger LOG = Logger.getLogger(MqttClientPool.class);
+
+	public static final int MAX_CLIENT_ID_LENGTH = 23;
+
+	// points per connection on the hash ring; more points spread topics
+	//  more evenly
+	private static final int POINTS_PER_CONNECTION = 64;
+
+	/*
+	 * Every connection needs its own store for in-flight messages
+	 */
+	public interface PersistenceFactory
+	{
+		public IMqttPersistence create(int connection);
+	}
+
+	private final IMqttClient[] clients;
+	private final String[] clientIds;
+
+	// the hash ring: sorted points, and the connection each belongs to
+	private final int[] ringPoints;
+	private final int[] ringOwners;
+
+	private volatile IMqttCallback callback;
+	private final AtomicBoolean lost = new AtomicBoolean();
+
+	public MqttClientPool(IMqttClientFactory factory, String host, int port, String clientId,
+		int size, PersistenceFactory persistence) throws MqttException
+	{
+		if(size < 1){
+			throw new IllegalArgumentException("size="+size);
+		}
+		LOG.debug("init(host="+host+", port="+port+", clientId="+clientId+", size="+size+")");
+
+		clients = new IMqttClient[size];
+		clientIds = new String[size];
+		for(int i = 0; i < size; i++)
+		{
+			clientIds[i] = deriveClientId(clientId, i);
+			clients[i] = factory.create(host, port, clientIds[i],
+				persistence != null ? persistence.create(i) : null);
+			clients[i].setCallback(new ConnectionCallback());
+		}
+
+		long[] points = new long[size * POINTS_PER_CONNECTION];
+		for(int i = 0; i < size; i++){
+			for(int p = 0; p < POINTS_PER_CONNECTION; p++){
+				// hash in the high half, owner in the low half, so that
+				//  sorting keeps them together
+				int hash = hash(i+"#"+p);
+				points[i * POINTS_PER_CONNECTION + p] = ((long)hash << 32) | i;
+			}
+		}
+		Arrays.sort(points);
+		ringPoints = new int[points.length];
+		ringOwners = new int[points.length];
+		for(int i = 0; i < points.length; i++){
+			ringPoints[i] = (int)(points[i] >> 32);
+			ringOwners[i] = (int)points[i];
+		}
+	}
+
+	/*
+	 * The client ID used by the given connection
+	 */
+	public static String deriveClientId(String clientId, int connection)
+	{
+		if(connection == 0){
+			return clientId.length() > MAX_CLIENT_ID_LENGTH
+				? clientId.substring(0, MAX_CLIENT_ID_LENGTH) : clientId;
+		}
+
+		String suffix = "-"+connection;
+		int keep = Math.min(clientId.length(), MAX_CLIENT_ID_LENGTH - suffix.length());
+		return clientId.substring(0, keep) + suffix;
+	}
+
+	public int size()
+	{
+		return clients.length;
+	}
+
+	public String getClientId(int connection)
+	{
+		return clientIds[connection];
+	}
+
+	/*
+	 * The connection that carries everything for the given topic or filter
+	 */
+	public int connectionFor(String topic)
+	{
+		if(clients.length == 1){
+			return 0;
+		}
+
+		int hash = hash(topic);
+		int index = Arrays.binarySearch(ringPoints, hash);
+		if(index < 0){
+			// first point clockwise from the hash, wrapping around
+			index = -index - 1;
+			if(index == ringPoints.length)index = 0;
+		}
+		return ringOwners[index];
+	}
+
+	@Override
+	public void setCallback(IMqttCallback callback) throws MqttException
+	{
+		this.callback = callback;
+	}
+
+	@Override
+	public void publish(IMqttTopic topic, IMqttMessage message) throws MqttException
+	{
+		clients[connectionFor(topic.getName())].publish(topic, message);
+	}
+
+	@Override
+	public IMqttDeliveryToken publishAsync(IMqttTopic topic, IMqttMessage message) throws MqttException
+	{
+		return clients[connectionFor(topic.getName())].publishAsync(topic, message);
+	}
+
+	@Override
+	public void subscribe(IMqttTopic topic) throws IllegalArgumentException, MqttException
+	{
+		clients[connectionFor(topic.getName())].subscribe(topic);
+	}
+
+	/*
+	 * One subscribe per connection, for the topics it is responsible for.
+	 *  A connection that fails does not stop the others; what failed is
+	 *  reported for all of them together.
+	 */
+	@Override
+	public void subscribe(IMqttTopic[] topics) throws IllegalArgumentException, MqttException
+	{
+		List<List<IMqttTopic>> shards = shard(topics);
+		Map<IMqttTopic, Integer> granted = new IdentityHashMap<IMqttTopic, Integer>();
+		Throwable failure = null;
+		for(int i = 0; i < clients.length; i++)
+		{
+			List<IMqttTopic> shard = shards.get(i);
+			if(shard.isEmpty())continue;
+
+			IMqttTopic[] array = shard.toArray(new IMqttTopic[shard.size()]);
+			try
+			{
+				clients[i].subscribe(array);
+			}
+			catch(MqttSubscribeException e)
+			{
+				for(int j = 0; j < array.length; j++){
+					granted.put(array[j], Integer.valueOf(e.getGrantedQoS()[j]));
+				}
+				if(failure == null)failure = e;
+			}
+			catch(MqttException e)
+			{
+				for(IMqttTopic topic : array){
+					granted.put(topic, Integer.valueOf(MqttSubscribeException.FAILURE));
+				}
+				if(failure == null)failure = e;
+			}
+		}
+
+		if(failure != null){
+			int[] result = new int[topics.length];
+			for(int i = 0; i < topics.length; i++){
+				Integer qos = granted.get(topics[i]);
+				result[i] = qos != null ? qos.intValue() : topics[i].getQoS();
+			}
+			throw new MqttSubscribeException(topics, result, failure);
+		}
+	}
+
+	@Override
+	public void unsubscribe(IMqttTopic topic) throws MqttException
+	{
+		clients[connectionFor(topic.getName())].unsubscribe(topic);
+	}
+
+	/*
+	 * One UNSUBSCRIBE per connection, to the connection that subscribed
+	 */
+	@Override
+	public void unsubscribe(IMqttTopic[] topics) throws MqttException
+	{
+		List<List<IMqttTopic>> shards = shard(topics);
+		for(int i = 0; i < clients.length; i++)
+		{
+			List<IMqttTopic> shard = shards.get(i);
+			if(!shard.isEmpty()){
+				clients[i].unsubscribe(shard.toArray(new IMqttTopic[shard.size()]));
+			}
+		}
+	}
+
+	private List<List<IMqttTopic>> shard(IMqttTopic[] topics)
+	{
+		List<List<IMqttTopic>> shards = new ArrayList<List<IMqttTopic>>(clients.length);
+		for(int i = 0; i < clients.length; i++){
+			shards.add(new ArrayList<IMqttTopic>());
+		}
+		for(IMqttTopic topic : topics){
+			shards.get(connectionFor(topic.getName())).add(topic);
+		}
+		return shards;
+	}
+
+	/*
+	 * True only while every connection is up
+	 */
+	@Override
+	public boolean isConnected()
+	{
+		for(IMqttClient client : clients){
+			if(!client.isConnected())return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Connects the connections that are down. If one fails, the others are
+	 *  disconnected again, so that the pool is either up or down as a whole.
+	 */
+	@Override
+	public void connect(IMqttConnectOptions options) throws MqttException
+	{
+		lost.set(false);
+
+		for(int i = 0; i < clients.length; i++)
+		{
+			if(clients[i].isConnected()){
+				continue;
+			}
+
+			try
+			{
+				clients[i].connect(options);
+			}
+			catch (MqttException e)
+			{
+				LOG.error("connect: connection "+i+" ("+clientIds[i]+") failed", e);
+				disconnectQuietly();
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public void disconnect() throws MqttException, MqttPersistenceException
+	{
+		// disconnect them all, then report the first problem
+		MqttException failed = null;
+		MqttPersistenceException persistenceFailed = null;
+		for(IMqttClient client : clients)
+		{
+			try
+			{
+				client.disconnect();
+			}
+			catch (MqttException e)
+			{
+				if(failed == null)failed = e;
+			}
+			catch (MqttPersistenceException e)
+			{
+				if(persistenceFailed == null)persistenceFailed = e;
+			}
+		}
+		if(failed != null){
+			throw failed;
+		}
+		if(persistenceFailed != null){
+			throw persistenceFailed;
+		}
+	}
+
+	/*
+	 * Pings every connection; each has its own NAT mapping to keep open
+	 */
+	@Override
+	public void ping() throws MqttException
+	{
+		for(IMqttClient client : clients){
+			client.ping();
+		}
+	}
+
+	private void disconnectQuietly()
+	{
+		try
+		{
+			disconnect();
+		}
+		catch (MqttException e)
+		{
+			LOG.debug("disconnectQuietly", e);
+		}
+		catch (MqttPersistenceException e)
+		{
+			LOG.debug("disconnectQuietly", e);
+		}
+	}
+
+	private class ConnectionCallback implements IMqttCallback
+	{
+		@Override
+		public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception
+		{
+			IMqttCallback c = callback;
+			if(c != null){
+				c.messageArrived(topic, message);
+			}
+		}
+
+		@Override
+		public void connectionLost(Throwable throwable)
+		{
+			// the pool as a whole is down now; tell the callback once, not
+			//  once per connection
+			if(!lost.compareAndSet(false, true)){
+				return;
+			}
+
+			IMqttCallback c = callback;
+			if(c != null){
+				c.connectionLost(throwable);
+			}
+		}
+	}
+
+	/*
+	 * FNV-1a over the characters, with a final mix so that similar names
+	 *  end up far apart on the ring
+	 */
+	static int hash(String s)
+	{
+		int h = 0x811c9dc5;
+		for(int i = 0; i < s.length(); i++){
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -7,6 +7,10 @@ public class MqttConnectOptions implements IMqttConnectOptions
 	//isCleanSession
 	private boolean isClean ;
 	
+	// 0 would make the Paho client ping continuously, and time out on the
+	//  first ping that is not answered at once
+	private int keepAliveSeconds = 60;
+	
 	@Override
 	public void setCleanSession(boolean cleanStart)
 	{
@@ -17,8 +21,7 @@ public class MqttConnectOptions implements IMqttConnectOptions
 	@Override
 	public void setKeepAliveInterval(short keepAliveSeconds)
 	{
-		// TODO Auto-generated method stub
-		
+		this.keepAliveSeconds = keepAliveSeconds;
 	}
 
 	@Override
@@ -45,8 +48,7 @@ public class MqttConnectOptions implements IMqttConnectOptions
 	@Override
 	public int getKeepAliveInterval()
 	{
-		// TODO Auto-generated method stub
-		return 0;
+		return keepAliveSeconds;
 	}
 
 	@Override
@@ -0,0 +1,322 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Runs the connection lifecycle as a stream of commands, handled one at a
+ *  time on a single thread, so that the connection state is only ever
+ *  touched from that thread and needs no locks.
+ *
+ *  Calls that block on the broker - connecting, pinging, publishing - do
+ *  not belong on that thread, or they would hold up every command behind
+ *  them. They are handed to a second thread with runBlocking(), run there
+ *  in the order they were handed over, and report back by sending a
+ *  command.
+ *
+ *  A command of a mergeable type is dropped when one of the same type is
+ *  still waiting, so that a flurry of connectivity changes or reconnect
+ *  alarms is handled once; with sendLater(), a caller can let more of
+ *  them gather first.
+ *
+ *  If given a wake lock, every command and every blocking call keeps the
+ *  CPU awake until it is done.
+ */
+public class MqttConnectionActor
+{
+	private static final Logger LOG = Logger.getLogger(MqttConnectionActor.class);
+
+	public enum CommandType
+	{
+		// an Intent the Service was started with, or null
+		START(false),
+		// time to try connecting again
+		RECONNECT(true),
+		PUBLISH(false),
+		// time to ping the broker
+		PING(true),
+		NETWORK_CHANGED(true),
+		CONNECTION_LOST(true),
+		// subscriptions were added or removed
+		SUBSCRIPTIONS_CHANGED(true),
+		// results of blocking calls
+		CONNECTED(false),
+		CONNECT_FAILED(false),
+		PING_SUCCEEDED(false),
+		PING_FAILED(false),
+		// the user asked us to disconnect
+		DISCONNECT(false),
+		// the Service is going away
+		STOP(false);
+
+		final boolean mergeable;
+
+		private CommandType(boolean mergeable)
+		{
+			this.mergeable = mergeable;
+		}
+	}
+
+	public interface Handler
+	{
+		/*
+		 * Called on the actor thread only
+		 */
+		public void handle(CommandType type, Object argument);
+	}
+
+	private static final class Command
+	{
+		final CommandType type;
+		final Object argument;
+
+		Command(CommandType type, Object argument)
+		{
+			this.type = type;
+			this.argument = argument;
+		}
+	}
+
+	private final Handler handler;
+	private final MqttWakeLockManager wakeLock;
+	private final ScheduledThreadPoolExecutor actorThread;
+	private final ExecutorService ioThread;
+
+	// guarded by pending
+	private final LinkedList<Command> pending = new LinkedList<Command>();
+	private boolean scheduled;
+	private boolean stopped;
+
+	// metrics
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong merged = new AtomicLong();
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drainPending();
+		}
+	};
+
+	/*
+	 * wakeLock may be null
+	 */
+	public MqttConnectionActor(Handler handler, MqttWakeLockManager wakeLock)
+	{
+		this.handler = handler;
+		this.wakeLock = wakeLock;
+		this.actorThread = new ScheduledThreadPoolExecutor(1, daemonThreads("MqttConnection"));
+		// commands waiting for their delay are dropped on shutdown, as any
+		//  sent after it would be
+		this.actorThread.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.ioThread = Executors.newSingleThreadExecutor(daemonThreads("MqttIO"));
+	}
+
+	/*
+	 * Queues a command; returns false if it was merged into one already
+	 *  waiting, or if the actor has been shut down
+	 */
+	public boolean send(CommandType type, Object argument)
+	{
+		synchronized(pending)
+		{
+			if(stopped){
+				LOG.debug("send: shut down, dropping "+type);
+				return false;
+			}
+
+			if(type.mergeable){
+				for(Command command : pending){
+					if(command.type == type){
+						merged.incrementAndGet();
+						return false;
+					}
+				}
+			}
+
+			pending.add(new Command(type, argument));
+			acquire();
+			if(!scheduled){
+				scheduled = true;
+				actorThread.execute(drain);
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Sends the command delayMillis from now. Meant for mergeable commands,
+	 *  which are then merged with those sent in the meantime; nothing keeps
+	 *  the CPU awake while waiting.
+	 */
+	public void sendLater(final CommandType type, final Object argument, long delayMillis)
+	{
+		try
+		{
+			actorThread.schedule(new Runnable() {
+				@Override
+				public void run() {
+					send(type, argument);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException e)
+		{
+			LOG.debug("sendLater: shut down, dropping "+type);
+		}
+	}
+
+	/*
+	 * Runs task on the I/O thread, after the blocking calls handed over
+	 *  before it
+	 */
+	public void runBlocking(final Runnable task)
+	{
+		acquire();
+		try
+		{
+			ioThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						task.run();
+					}
+					catch(RuntimeException e)
+					{
+						LOG.error("runBlocking: task failed", e);
+					}
+					finally
+					{
+						release();
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			LOG.error("runBlocking: shut down, dropping task", e);
+			release();
+		}
+	}
+
+	/*
+	 * Commands handled so far, and commands dropped because one of the
+	 *  same type was already waiting
+	 */
+	public long getHandledCount()
+	{
+		return handled.get();
+	}
+
+	public long getMergedCount()
+	{
+		return merged.get();
+	}
+
+	/*
+	 * Handles the commands already sent and finishes the blocking calls they
+	 *  make, waiting up to timeoutMillis; commands sent after this are dropped
+	 */
+	public void shutdown(long timeoutMillis)
+	{
+		synchronized(pending)
+		{
+			stopped = true;
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try
+		{
+			actorThread.shutdown();
+			if(!actorThread.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)){
+				LOG.error("shutdown: commands still being handled after "+timeoutMillis+"ms");
+			}
+
+			// only now that no more blocking calls can be handed over
+			ioThread.shutdown();
+			long remaining = Math.max(0, deadline - System.nanoTime());
+			if(!ioThread.awaitTermination(remaining, TimeUnit.NANOSECONDS)){
+				LOG.error("shutdown: blocking calls still running after "+timeoutMillis+"ms");
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String toString()
+	{
+		int waiting;
+		synchronized(pending)
+		{
+			waiting = pending.size();
+		}
+		return "MqttConnectionActor{pending="+waiting+", handled="+handled.get()+", merged="+merged.get()+"}";
+	}
+
+	private void drainPending()
+	{
+		while(true)
+		{
+			Command command;
+			synchronized(pending)
+			{
+				command = pending.poll();
+				if(command == null){
+					scheduled = false;
+					return;
+				}
+			}
+
+			try
+			{
+				handler.handle(command.type, command.argument);
+			}
+			catch(RuntimeException e)
+			{
+				LOG.error("drainPending: "+command.type+" failed", e);
+			}
+			finally
+			{
+				handled.incrementAndGet();
+				release();
+			}
+		}
+	}
+
+	private void acquire()
+	{
+		if(wakeLock != null){
+			wakeLock.acquire();
+		}
+	}
+
+	private void release()
+	{
+		if(wakeLock != null){
+			wakeLock.release();
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name)
+	{
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,242 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Remembers the messages seen recently, so that one delivered again - a
+ *  QoS 1 redelivery after a reconnect, or a publisher sending it twice -
+ *  can be recognised and handled only once.
+ *
+ *  Messages are known by a 64 bit key: by default a fingerprint of topic
+ *  and payload, which also takes the same payload sent on purpose twice
+ *  within the window for a duplicate. Callers should therefore record
+ *  every message but only drop one the broker flags as a redelivery, or
+ *  use a KeyFunction that takes an ID the application puts in its
+ *  payloads instead.
+ *
+ *  Keys are kept in two fixed-size hash tables: new ones go into the
+ *  current table, which becomes the previous one, replacing it, every
+ *  windowMillis or when it holds capacity keys. A key is therefore
+ *  remembered for at least windowMillis unless more than capacity
+ *  messages arrive in that time, and memory use does not grow. The window
+ *  is measured with System.nanoTime(), so changing the clock does not
+ *  change it.
+ */
+public class MqttDeduplicator
+{
+	/*
+	 * The key a message is known by; 0 is as good as any other
+	 */
+	public interface KeyFunction
+	{
+		long keyOf(String topic, byte[] payload);
+	}
+
+	/*
+	 * 64 bit hash of topic and payload, eight bytes or four characters at
+	 *  a time
+	 */
+	public static final KeyFunction FINGERPRINT = new KeyFunction() {
+		@Override
+		public long keyOf(String topic, byte[] payload) {
+			long hash = SEED;
+			int length = topic.length();
+			int i = 0;
+			for(; i + 4 <= length; i += 4){
+				hash = mix(hash, topic.charAt(i) | (long)topic.charAt(i + 1) << 16
+					| (long)topic.charAt(i + 2) << 32 | (long)topic.charAt(i + 3) << 48);
+			}
+			long tail = 0;
+			for(; i < length; i++){
+				tail = tail << 16 | topic.charAt(i);
+			}
+			// the lengths keep topic and payload apart
+			hash = mix(hash, tail);
+			hash = mix(hash, (long)length << 32 | payload.length);
+
+			i = 0;
+			for(; i + 8 <= payload.length; i += 8){
+				hash = mix(hash, (payload[i] & 0xffL) | (payload[i + 1] & 0xffL) << 8
+					| (payload[i + 2] & 0xffL) << 16 | (payload[i + 3] & 0xffL) << 24
+					| (payload[i + 4] & 0xffL) << 32 | (payload[i + 5] & 0xffL) << 40
+					| (payload[i + 6] & 0xffL) << 48 | (payload[i + 7] & 0xffL) << 56);
+			}
+			tail = 0;
+			for(; i < payload.length; i++){
+				tail = tail << 8 | (payload[i] & 0xffL);
+			}
+			hash = mix(hash, tail);
+
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			return hash ^ hash >>> 33;
+		}
+	};
+
+	private static final long SEED = 0xcbf29ce484222325L;
+
+	// stands in for key 0, which marks an empty slot
+	private static final long ZERO_KEY = 0x9e3779b97f4a7c15L;
+
+	private final KeyFunction keyFunction;
+	private final int capacity;
+	private final long windowMillis;
+	private final long windowNanos;
+
+	// open addressing, at most half full
+	private long[] current;
+	private long[] previous;
+	private int currentSize;
+	// System.nanoTime()
+	private long rotatedAt;
+
+	// metrics
+	private long hits;
+	private long misses;
+	private long rotations;
+
+	public MqttDeduplicator(int capacity, long windowMillis)
+	{
+		this(capacity, windowMillis, FINGERPRINT);
+	}
+
+	public MqttDeduplicator(int capacity, long windowMillis, KeyFunction keyFunction)
+	{
+		if(capacity <= 0 || windowMillis <= 0){
+			throw new IllegalArgumentException("capacity and window must be positive");
+		}
+		this.keyFunction = keyFunction;
+		this.capacity = capacity;
+		this.windowMillis = windowMillis;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+
+		int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+		this.current = new long[size];
+		this.previous = new long[size];
+		this.rotatedAt = System.nanoTime();
+	}
+
+	/*
+	 * Whether a message with this topic and payload was seen within the
+	 *  window; either way it counts as seen from now on
+	 */
+	public boolean isDuplicate(String topic, byte[] payload)
+	{
+		return isDuplicate(keyFunction.keyOf(topic, payload));
+	}
+
+	public synchronized boolean isDuplicate(long key)
+	{
+		if(key == 0){
+			key = ZERO_KEY;
+		}
+
+		long now = System.nanoTime();
+		if(now - rotatedAt >= windowNanos){
+			// nothing in the current table is older than the window, but
+			//  after two windows without a message the previous one is
+			if(now - rotatedAt >= 2 * windowNanos){
+				Arrays.fill(current, 0);
+				currentSize = 0;
+			}
+			rotate(now);
+		}
+
+		if(contains(current, key)){
+			hits++;
+			return true;
+		}
+
+		boolean seen = contains(previous, key);
+		if(seen){
+			hits++;
+		}
+		else {
+			misses++;
+		}
+
+		// new, or seen in the previous window and kept for another one
+		if(currentSize >= capacity){
+			rotate(now);
+		}
+		insert(current, key);
+		currentSize++;
+		return seen;
+	}
+
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+
+	/*
+	 * How often the tables were swapped, for a window or because one was full
+	 */
+	public synchronized long getRotationCount()
+	{
+		return rotations;
+	}
+
+	/*
+	 * What the tables take, in bytes
+	 */
+	public int getMemoryBytes()
+	{
+		return 2 * 8 * current.length;
+	}
+
+	public synchronized String toString()
+	{
+		return "MqttDeduplicator{capacity="+capacity+", windowMillis="+windowMillis
+			+", hits="+hits+", misses="+misses+", rotations="+rotations+"}";
+	}
+
+	private void rotate(long now)
+	{
+		long[] cleared = previous;
+		Arrays.fill(cleared, 0);
+		previous = current;
+		current = cleared;
+		currentSize = 0;
+		rotatedAt = now;
+		rotations++;
+	}
+
+	private static boolean contains(long[] table, long key)
+	{
+		int mask = table.length - 1;
+		for(int i = slot(key, mask); ; i = (i + 1) & mask){
+			long k = table[i];
+			if(k == key)return true;
+			if(k == 0)return false;
+		}
+	}
+
+	private static void insert(long[] table, long key)
+	{
+		int mask = table.length - 1;
+		int i = slot(key, mask);
+		while(table[i] != 0){
+			i = (i + 1) & mask;
+		}
+		table[i] = key;
+	}
+
+	private static long mix(long hash, long value)
+	{
+		hash = (hash ^ value) * 0xff51afd7ed558ccdL;
+		return hash ^ hash >>> 29;
+	}
+
+	private static int slot(long key, int mask)
+	{
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int)(h >>> 32) & mask;
+	}
+}
@@ -0,0 +1,145 @@
+package com.qonect.protocols.mqtt.impl;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryListener;
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryToken;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Completion handle for an asynchronous publish. Client implementations
+ *  call complete() or fail() exactly once; the listener, if any, is run on
+ *  the thread that does so.
+ */
+public class MqttDeliveryToken implements IMqttDeliveryToken
+{
+	private final IMqttTopic topic;
+	private final IMqttMessage message;
+
+	private boolean complete;
+	private Throwable exception;
+	private IMqttDeliveryListener listener;
+
+	public MqttDeliveryToken(IMqttTopic topic, IMqttMessage message)
+	{
+		this.topic = topic;
+		this.message = message;
+	}
+
+	@Override
+	public IMqttTopic getTopic()
+	{
+		return topic;
+	}
+
+	@Override
+	public IMqttMessage getMessage()
+	{
+		return message;
+	}
+
+	@Override
+	public synchronized boolean isComplete()
+	{
+		return complete;
+	}
+
+	@Override
+	public synchronized Throwable getException()
+	{
+		return exception;
+	}
+
+	@Override
+	public void waitForCompletion() throws MqttException
+	{
+		waitForCompletion(0);
+	}
+
+	/*
+	 * Waits until the message is delivered or has failed; a timeout of 0
+	 *  waits forever.
+	 */
+	@Override
+	public synchronized void waitForCompletion(long timeoutMillis) throws MqttException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		while(!complete)
+		{
+			long remaining = timeoutMillis == 0 ? 0 : deadline - System.currentTimeMillis();
+			if(timeoutMillis != 0 && remaining <= 0){
+				throw new MqttException("Timed out waiting for delivery");
+			}
+
+			try
+			{
+				wait(remaining);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new MqttException(e);
+			}
+		}
+
+		if(exception != null){
+			throw new MqttException("Delivery failed", exception);
+		}
+	}
+
+	@Override
+	public void setListener(IMqttDeliveryListener listener)
+	{
+		boolean alreadyComplete;
+		synchronized(this)
+		{
+			this.listener = listener;
+			alreadyComplete = complete;
+		}
+
+		if(alreadyComplete && listener != null){
+			notifyListener(listener);
+		}
+	}
+
+	public void complete()
+	{
+		finish(null);
+	}
+
+	public void fail(Throwable throwable)
+	{
+		finish(throwable);
+	}
+
+	private void finish(Throwable throwable)
+	{
+		IMqttDeliveryListener l;
+		synchronized(this)
+		{
+			if(complete)return;
+			complete = true;
+			exception = throwable;
+			l = listener;
+			notifyAll();
+		}
+
+		if(l != null){
+			notifyListener(l);
+		}
+	}
+
+	private void notifyListener(IMqttDeliveryListener l)
+	{
+		if(exception == null){
+			l.deliveryComplete(this);
+		}
+		else {
+			l.deliveryFailed(this, exception);
+		}
+	}
+
+	public String toString(){
+		return "MqttDeliveryToken{topic="+topic.getName()+", complete="+complete+"}";
+	}
+}
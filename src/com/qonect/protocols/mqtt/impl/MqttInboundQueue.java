@@ -0,0 +1,391 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Takes received messages off the client's callback thread, so that a slow
+ *  consumer does not hold up reading from the socket - and with it the
+ *  keep alive - and hands them to the target callback on a pool of worker
+ *  threads.
+ *
+ *  Every topic is served by one worker, chosen by its hash, so messages on
+ *  a topic arrive in order. Each worker has a bounded ring of its own. What
+ *  happens when a ring is full is decided per topic:
+ *  - BLOCK: the callback thread waits for room, pushing back on the broker
+ *  - DROP_OLDEST: the oldest queued message makes room
+ *  - CONFLATE: a message replaces the one still queued for the same topic,
+ *     if there is one, and the oldest makes room otherwise
+ *
+ *  The client acknowledges a message once it is queued, so messages still
+ *  queued when the process dies are lost, whatever their QoS.
+ *  connectionLost is passed on straight away.
+ *
+ *  If given a wake lock, every message keeps the CPU awake from when the
+ *  client thread hands it over until the target has handled it, or it
+ *  was conflated or dropped.
+ */
+public class MqttInboundQueue implements IMqttCallback
+{
+	private static final Logger LOG = Logger.getLogger(MqttInboundQueue.class);
+
+	public enum OverflowPolicy
+	{
+		BLOCK,
+		DROP_OLDEST,
+		CONFLATE
+	}
+
+	private static final class Entry
+	{
+		final IMqttTopic topic;
+		IMqttMessage message;
+		final boolean conflated;
+
+		Entry(IMqttTopic topic, IMqttMessage message, boolean conflated)
+		{
+			this.topic = topic;
+			this.message = message;
+			this.conflated = conflated;
+		}
+	}
+
+	private final class Shard implements Runnable
+	{
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition notEmpty = lock.newCondition();
+		final Condition notFull = lock.newCondition();
+
+		// guarded by lock
+		final Entry[] ring;
+		int head;
+		int count;
+		// the queued entry of every conflated topic
+		final Map<String, Entry> latest = new HashMap<String, Entry>();
+
+		Shard(int capacity)
+		{
+			ring = new Entry[capacity];
+		}
+
+		void offer(IMqttTopic topic, IMqttMessage message, OverflowPolicy policy)
+			throws InterruptedException
+		{
+			boolean conflate = policy == OverflowPolicy.CONFLATE;
+
+			lock.lock();
+			try
+			{
+				if(conflate)
+				{
+					Entry queued = latest.get(topic.getName());
+					if(queued != null){
+						queued.message = message;
+						conflatedCount.incrementAndGet();
+						// the queued entry already holds the wake lock
+						release();
+						return;
+					}
+				}
+
+				if(count == ring.length)
+				{
+					if(policy == OverflowPolicy.BLOCK){
+						while(count == ring.length && running){
+							notFull.await();
+						}
+						if(!running){
+							droppedCount.incrementAndGet();
+							release();
+							return;
+						}
+					}
+					else {
+						removeHead();
+						droppedCount.incrementAndGet();
+						release();
+					}
+				}
+
+				Entry entry = new Entry(topic, message, conflate);
+				ring[(head + count) % ring.length] = entry;
+				count++;
+				if(conflate){
+					latest.put(topic.getName(), entry);
+				}
+				notEmpty.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Called with the lock held, on a non-empty ring
+		 */
+		Entry removeHead()
+		{
+			Entry entry = ring[head];
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			count--;
+			if(entry.conflated && latest.get(entry.topic.getName()) == entry){
+				latest.remove(entry.topic.getName());
+			}
+			notFull.signal();
+			return entry;
+		}
+
+		int depth()
+		{
+			lock.lock();
+			try
+			{
+				return count;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				Entry entry;
+				lock.lock();
+				try
+				{
+					while(count == 0)
+					{
+						if(!running){
+							return;
+						}
+						notEmpty.await();
+					}
+					entry = removeHead();
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+
+				try
+				{
+					target.messageArrived(entry.topic, entry.message);
+				}
+				catch(Exception e)
+				{
+					LOG.error("run: delivering message on "+entry.topic.getName()+" failed", e);
+				}
+				finally
+				{
+					release();
+				}
+				deliveredCount.incrementAndGet();
+			}
+		}
+	}
+
+	private final IMqttCallback target;
+	private final MqttWakeLockManager wakeLock;
+	private final OverflowPolicy defaultPolicy;
+	private final MqttTopicFilterMap<OverflowPolicy> policies = new MqttTopicFilterMap<OverflowPolicy>();
+	private final Shard[] shards;
+	private final Thread[] workers;
+	private volatile boolean running = true;
+
+	// metrics, shared by all shards
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong conflatedCount = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+
+	public MqttInboundQueue(IMqttCallback target, int workers, int capacity, OverflowPolicy defaultPolicy)
+	{
+		this(target, workers, capacity, defaultPolicy, null);
+	}
+
+	/*
+	 * capacity is shared out evenly between the workers; wakeLock may be null
+	 */
+	public MqttInboundQueue(IMqttCallback target, int workers, int capacity, OverflowPolicy defaultPolicy,
+		MqttWakeLockManager wakeLock)
+	{
+		if(workers < 1){
+			throw new IllegalArgumentException("workers="+workers);
+		}
+
+		this.target = target;
+		this.wakeLock = wakeLock;
+		this.defaultPolicy = defaultPolicy;
+		this.shards = new Shard[workers];
+		this.workers = new Thread[workers];
+
+		int perShard = Math.max(1, capacity / workers);
+		for(int i = 0; i < workers; i++){
+			shards[i] = new Shard(perShard);
+			this.workers[i] = new Thread(shards[i], "MqttInbound-"+i);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	/*
+	 * What to do with messages on the topics matching filter when their
+	 *  queue is full; null goes back to the default
+	 */
+	public void setPolicy(String filter, OverflowPolicy policy)
+	{
+		policies.put(filter, policy);
+		LOG.debug("setPolicy(filter="+filter+", policy="+policy+")");
+	}
+
+	public OverflowPolicy getPolicy(String topic)
+	{
+		OverflowPolicy policy = policies.get(topic);
+		return policy != null ? policy : defaultPolicy;
+	}
+
+	@Override
+	public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception
+	{
+		if(!running){
+			droppedCount.incrementAndGet();
+			return;
+		}
+
+		String name = topic.getName();
+		Shard shard = shards[shards.length == 1 ? 0 : (name.hashCode() & 0x7FFFFFFF) % shards.length];
+
+		// taken on the client thread, so that the CPU cannot sleep between
+		//  the message being queued and a worker getting to it
+		acquire();
+		try
+		{
+			shard.offer(topic, message, getPolicy(name));
+		}
+		catch(InterruptedException e)
+		{
+			release();
+			throw e;
+		}
+	}
+
+	@Override
+	public void connectionLost(Throwable throwable)
+	{
+		target.connectionLost(throwable);
+	}
+
+	/*
+	 * Messages queued, over all workers
+	 */
+	public int getDepth()
+	{
+		int depth = 0;
+		for(Shard shard : shards){
+			depth += shard.depth();
+		}
+		return depth;
+	}
+
+	public int getCapacity()
+	{
+		return shards.length * shards[0].ring.length;
+	}
+
+	/*
+	 * Messages thrown away to make room, or because we were shutting down
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	/*
+	 * Messages that replaced one still queued for their topic
+	 */
+	public long getConflatedCount()
+	{
+		return conflatedCount.get();
+	}
+
+	public long getDeliveredCount()
+	{
+		return deliveredCount.get();
+	}
+
+	/*
+	 * Delivers what is queued, waiting up to timeoutMillis for it, and
+	 *  stops the workers; messages arriving after this are dropped
+	 */
+	public void shutdown(long timeoutMillis)
+	{
+		running = false;
+		for(Shard shard : shards)
+		{
+			shard.lock.lock();
+			try
+			{
+				shard.notEmpty.signalAll();
+				shard.notFull.signalAll();
+			}
+			finally
+			{
+				shard.lock.unlock();
+			}
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try
+		{
+			for(Thread worker : workers){
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(remaining > 0){
+					worker.join(remaining);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String toString()
+	{
+		return "MqttInboundQueue{depth="+getDepth()+"/"+getCapacity()+", delivered="+deliveredCount.get()
+			+", dropped="+droppedCount.get()+", conflated="+conflatedCount.get()+"}";
+	}
+
+	private void acquire()
+	{
+		if(wakeLock != null){
+			wakeLock.acquire();
+		}
+	}
+
+	private void release()
+	{
+		if(wakeLock != null){
+			wakeLock.release();
+		}
+	}
+}
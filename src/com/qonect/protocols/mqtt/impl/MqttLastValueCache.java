@@ -0,0 +1,168 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * The last message received on each topic, so that a consumer that comes
+ *  late can show the current state without asking the broker for it.
+ *
+ *  Kept within maxBytes, counting payload and topic plus an estimate of
+ *  what an entry takes besides; when a new message does not fit, the
+ *  topics least recently received or looked up are dropped first.
+ *  Payloads are not copied, so they must not be modified.
+ */
+public class MqttLastValueCache
+{
+	// a map entry, the Entry, the topic String and the array headers,
+	//  roughly, on a 32 bit VM
+	private static final int ENTRY_OVERHEAD = 96;
+
+	public static final class Entry
+	{
+		private final String topic;
+		private final byte[] payload;
+		private final long receivedAt;
+
+		Entry(String topic, byte[] payload, long receivedAt)
+		{
+			this.topic = topic;
+			this.payload = payload;
+			this.receivedAt = receivedAt;
+		}
+
+		public String getTopic()
+		{
+			return topic;
+		}
+
+		public byte[] getPayload()
+		{
+			return payload;
+		}
+
+		/*
+		 * System.currentTimeMillis() when the message was put in
+		 */
+		public long getReceivedAt()
+		{
+			return receivedAt;
+		}
+	}
+
+	private final long maxBytes;
+
+	// in access order, least recently used first
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes;
+
+	// metrics
+	private long evictions;
+
+	public MqttLastValueCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/*
+	 * Makes payload the last value of topic. A message too large for the
+	 *  whole budget is not kept, and neither is what topic had before.
+	 */
+	public synchronized void put(String topic, byte[] payload)
+	{
+		int size = sizeOf(topic, payload);
+		if(size > maxBytes){
+			remove(topic);
+			return;
+		}
+
+		Entry previous = entries.put(topic, new Entry(topic, payload, System.currentTimeMillis()));
+		if(previous != null){
+			bytes -= sizeOf(previous.topic, previous.payload);
+		}
+		bytes += size;
+
+		Iterator<Entry> eldest = entries.values().iterator();
+		while(bytes > maxBytes && eldest.hasNext()){
+			Entry entry = eldest.next();
+			eldest.remove();
+			bytes -= sizeOf(entry.topic, entry.payload);
+			evictions++;
+		}
+	}
+
+	/*
+	 * Forgets topic, e.g. because its retained message was cleared;
+	 *  returns false if there was nothing to forget
+	 */
+	public synchronized boolean remove(String topic)
+	{
+		Entry entry = entries.remove(topic);
+		if(entry == null){
+			return false;
+		}
+		bytes -= sizeOf(entry.topic, entry.payload);
+		return true;
+	}
+
+	/*
+	 * The last message on topic, or null if there is none
+	 */
+	public synchronized Entry get(String topic)
+	{
+		return entries.get(topic);
+	}
+
+	/*
+	 * The last message on every topic matching filter, least recently
+	 *  used first; does not count as using them
+	 */
+	public synchronized List<Entry> snapshot(String filter)
+	{
+		MqttTopicTrie.validateFilter(filter);
+
+		List<Entry> result = new ArrayList<Entry>();
+		for(Entry entry : entries.values()){
+			if(MqttTopicTrie.matches(filter, entry.topic)){
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/*
+	 * What the entries are counted as taking, at most maxBytes
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public synchronized long getEvictionCount()
+	{
+		return evictions;
+	}
+
+	public synchronized String toString()
+	{
+		return "MqttLastValueCache{topics="+entries.size()+", bytes="+bytes+"/"+maxBytes+", evictions="+evictions+"}";
+	}
+
+	private static int sizeOf(String topic, byte[] payload)
+	{
+		return ENTRY_OVERHEAD + 2 * topic.length() + payload.length;
+	}
+}
@@ -1,11 +1,18 @@
 package com.qonect.protocols.mqtt.impl;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
 
 public class MqttMessage implements IMqttMessage {
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private byte[] payload;
+	private String payloadString;
 	private int qos = 0;
+	private boolean retained = false;
 	
 	public MqttMessage(String content) {
 		this(content.getBytes());
@@ -24,11 +31,23 @@ public class MqttMessage implements IMqttMessage {
 	public byte[] getPayload() throws MqttException {
 		return this.payload;
 	}
+	
+	@Override
+	public ByteBuffer getPayloadBuffer() throws MqttException {
+		return ByteBuffer.wrap(this.payload).asReadOnlyBuffer();
+	}
+	
+	@Override
+	public String getPayloadString() throws MqttException {
+		if(payloadString == null){
+			payloadString = new String(this.payload, UTF8);
+		}
+		return payloadString;
+	}
 
 	@Override
 	public boolean isRetained() {
-		// TODO Auto-generated method stub
-		return false;
+		return retained;
 	}
 
 	@Override
@@ -40,4 +59,11 @@ public class MqttMessage implements IMqttMessage {
 	public void setQoS(int qos) {
 		this.qos = qos;
 	}
+	
+	/*
+	 * Whether the broker should keep this message for new subscribers
+	 */
+	public void setRetained(boolean retained) {
+		this.retained = retained;
+	}
 }
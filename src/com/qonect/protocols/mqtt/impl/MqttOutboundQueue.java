@@ -0,0 +1,335 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttPersistence;
+
+/*
+ * Bounded, disk-backed store-and-forward queue for outbound publishes.
+ *  Messages are accepted in any connection state, kept in an
+ *  IMqttPersistence under increasing sequence keys and published in
+ *  order, in batches, once a connected client is handed to drain().
+ *
+ *  Record layout: byte flags (QoS in the low two bits, RETAINED), short
+ *  topicLength, topic (UTF-8), payload
+ */
+public class MqttOutboundQueue
+{
+	private static final Logger LOG = Logger.getLogger(MqttOutboundQueue.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String KEY_PREFIX = "q-";
+
+	// in the flags byte of a record
+	private static final int RETAINED = 0x04;
+
+	/*
+	 * BLOCK waits for drain() to make room, so it only applies to offers
+	 *  from threads that do not drain; the others get DROP_NEWEST instead
+	 */
+	public enum OverflowPolicy
+	{
+		DROP_OLDEST,    // make room by discarding the oldest queued message
+		DROP_NEWEST,    // refuse the message that does not fit
+		BLOCK           // wait for room, up to the offer timeout
+	}
+
+	private static final class Entry
+	{
+		final long sequence;
+		final int size;
+
+		Entry(long sequence, int size)
+		{
+			this.sequence = sequence;
+			this.size = size;
+		}
+	}
+
+	private final IMqttPersistence persistence;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final OverflowPolicy overflowPolicy;
+	private final long blockTimeoutMillis;
+
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private long queuedBytes;
+	private long nextSequence;
+	private boolean open;
+
+	// metrics
+	private long enqueuedCount;
+	private long droppedCount;
+	private long drainedCount;
+	private long lastDrainCount;
+	private long lastDrainMillis;
+
+	public MqttOutboundQueue(IMqttPersistence persistence, int maxMessages, long maxBytes,
+		OverflowPolicy overflowPolicy, long blockTimeoutMillis)
+	{
+		this.persistence = persistence;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+	}
+
+	/*
+	 * Opens the backing store and reloads messages left over from a previous
+	 *  run, oldest first.
+	 */
+	public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException
+	{
+		persistence.open(clientId, serverURI);
+
+		List<Long> sequences = new ArrayList<Long>();
+		Enumeration<String> keys = persistence.keys();
+		while(keys.hasMoreElements()){
+			String key = keys.nextElement();
+			if(key.startsWith(KEY_PREFIX)){
+				sequences.add(Long.valueOf(Long.parseLong(key.substring(KEY_PREFIX.length()), 16)));
+			}
+		}
+		Collections.sort(sequences);
+
+		entries.clear();
+		queuedBytes = 0;
+		for(Long sequence : sequences){
+			byte[] record = persistence.get(key(sequence.longValue()));
+			entries.addLast(new Entry(sequence.longValue(), record.length));
+			queuedBytes += record.length;
+		}
+		nextSequence = sequences.isEmpty() ? 0 : sequences.get(sequences.size() - 1).longValue() + 1;
+		open = true;
+
+		LOG.debug("open: "+entries.size()+" queued messages, "+queuedBytes+" bytes");
+	}
+
+	public synchronized void close() throws MqttPersistenceException
+	{
+		open = false;
+		entries.clear();
+		queuedBytes = 0;
+		notifyAll();
+		persistence.close();
+	}
+
+	/*
+	 * Queues a message. Returns false if it was dropped because the queue is
+	 *  full (DROP_NEWEST, or BLOCK after the timeout ran out).
+	 */
+	public boolean offer(String topic, byte[] payload, int qos) throws MqttPersistenceException
+	{
+		return offer(topic, payload, qos, false, true);
+	}
+
+	/*
+	 * mayWait is false on the thread that calls drain(), which would wait
+	 *  for itself; a full BLOCK queue then refuses the message straight away
+	 */
+	public synchronized boolean offer(String topic, byte[] payload, int qos, boolean retained,
+		boolean mayWait) throws MqttPersistenceException
+	{
+		if(!open){
+			throw new MqttPersistenceException("Outbound queue is not open");
+		}
+
+		byte[] topicBytes = topic.getBytes(UTF8);
+		byte[] header = new byte[3 + topicBytes.length];
+		header[0] = (byte)(qos | (retained ? RETAINED : 0));
+		header[1] = (byte)(topicBytes.length >>> 8);
+		header[2] = (byte)topicBytes.length;
+		System.arraycopy(topicBytes, 0, header, 3, topicBytes.length);
+		int size = header.length + payload.length;
+
+		if(!makeRoom(size, mayWait)){
+			droppedCount++;
+			LOG.warn("offer: queue full, dropping message for "+topic);
+			return false;
+		}
+
+		long sequence = nextSequence++;
+		persistence.put(key(sequence), header, 0, header.length, payload, 0, payload.length);
+		entries.addLast(new Entry(sequence, size));
+		queuedBytes += size;
+		enqueuedCount++;
+		return true;
+	}
+
+	/*
+	 * Publishes queued messages oldest first, batchSize at a time, until the
+	 *  queue is empty or a publish fails. The store is not locked while the
+	 *  client is publishing. Returns the number of messages sent.
+	 */
+	public int drain(IMqttClient client, int batchSize) throws MqttPersistenceException
+	{
+		long start = System.currentTimeMillis();
+		int sent = 0;
+
+		try
+		{
+			while(true)
+			{
+				List<Entry> batch = new ArrayList<Entry>(batchSize);
+				List<byte[]> records = new ArrayList<byte[]>(batchSize);
+				synchronized(this)
+				{
+					if(!open)break;
+					for(Entry entry : entries){
+						if(batch.size() == batchSize)break;
+						batch.add(entry);
+						records.add(persistence.get(key(entry.sequence)));
+					}
+				}
+				if(batch.isEmpty())break;
+
+				for(int i = 0; i < batch.size(); i++)
+				{
+					try
+					{
+						publish(client, records.get(i));
+					}
+					catch (MqttException e)
+					{
+						LOG.error("drain: publish failed after "+sent+" messages", e);
+						return sent;
+					}
+					remove(batch.get(i));
+					sent++;
+				}
+			}
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				drainedCount += sent;
+				lastDrainCount = sent;
+				lastDrainMillis = System.currentTimeMillis() - start;
+			}
+		}
+
+		LOG.debug("drain: sent "+sent+" messages in "+lastDrainMillis+"ms");
+		return sent;
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public synchronized long getQueuedBytes()
+	{
+		return queuedBytes;
+	}
+
+	public synchronized long getEnqueuedCount()
+	{
+		return enqueuedCount;
+	}
+
+	public synchronized long getDroppedCount()
+	{
+		return droppedCount;
+	}
+
+	public synchronized long getDrainedCount()
+	{
+		return drainedCount;
+	}
+
+	/*
+	 * Messages per second achieved by the most recent drain.
+	 */
+	public synchronized double getLastDrainRate()
+	{
+		if(lastDrainCount == 0)return 0;
+		return lastDrainCount * 1000.0 / Math.max(1, lastDrainMillis);
+	}
+
+	public synchronized String toString()
+	{
+		return "MqttOutboundQueue{size="+entries.size()+", bytes="+queuedBytes
+			+", enqueued="+enqueuedCount+", dropped="+droppedCount
+			+", drained="+drainedCount+", lastDrainRate="+getLastDrainRate()+"/s}";
+	}
+
+	private boolean makeRoom(int size, boolean mayWait) throws MqttPersistenceException
+	{
+		long deadline = System.currentTimeMillis() + blockTimeoutMillis;
+
+		while(isFull(size))
+		{
+			switch(overflowPolicy)
+			{
+				case DROP_OLDEST:
+					if(entries.isEmpty())return false;
+					Entry oldest = entries.peekFirst();
+					persistence.remove(key(oldest.sequence));
+					entries.removeFirst();
+					queuedBytes -= oldest.size;
+					droppedCount++;
+					break;
+				case BLOCK:
+					long remaining = deadline - System.currentTimeMillis();
+					if(!mayWait || remaining <= 0 || !open)return false;
+					try
+					{
+						wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					break;
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isFull(int size)
+	{
+		return entries.size() >= maxMessages
+			|| (!entries.isEmpty() && queuedBytes + size > maxBytes);
+	}
+
+	private synchronized void remove(Entry entry) throws MqttPersistenceException
+	{
+		// a DROP_OLDEST offer may already have discarded it
+		if(entries.peekFirst() != entry)return;
+
+		persistence.remove(key(entry.sequence));
+		entries.removeFirst();
+		queuedBytes -= entry.size;
+		notifyAll();
+	}
+
+	private static void publish(IMqttClient client, byte[] record) throws MqttException
+	{
+		int topicLength = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+		String topic = new String(record, 1 + 2, topicLength, UTF8);
+		byte[] payload = new byte[record.length - 3 - topicLength];
+		System.arraycopy(record, 3 + topicLength, payload, 0, payload.length);
+
+		MqttMessage message = new MqttMessage(payload);
+		message.setQoS(record[0] & 0x03);
+		message.setRetained((record[0] & RETAINED) != 0);
+		client.publish(new MqttTopic(topic), message);
+	}
+
+	private static String key(long sequence)
+	{
+		return KEY_PREFIX+Long.toHexString(sequence);
+	}
+}
@@ -0,0 +1,245 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Collects publishes to chatty topics and sends them as one
+ *  MqttBatchEnvelope per topic, saving a fixed header, topic name and
+ *  acknowledgement per message.
+ *
+ *  Batching is opted into per topic. A batch goes out lingerMillis after
+ *  its first message, or as soon as adding a message would take the
+ *  envelope past maxBytes - whichever comes first. Batches are handed to
+ *  the Sink on a single thread, in the order they were closed.
+ */
+public class MqttPublishBatcher
+{
+	private static final Logger LOG = Logger.getLogger(MqttPublishBatcher.class);
+
+	public interface Sink
+	{
+		public void publishBatch(String topic, byte[] envelope, int messageCount);
+	}
+
+	private final class Batch implements Runnable
+	{
+		final String topic;
+		final long lingerMillis;
+		final int maxBytes;
+
+		// guarded by this
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		int bytes = MqttBatchEnvelope.HEADER_BYTES;
+		ScheduledFuture<?> flushTask;
+
+		Batch(String topic, long lingerMillis, int maxBytes)
+		{
+			this.topic = topic;
+			this.lingerMillis = lingerMillis;
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized void add(byte[] payload)
+		{
+			int size = MqttBatchEnvelope.encodedSize(payload.length);
+			if(!payloads.isEmpty() && bytes + size > maxBytes){
+				close();
+			}
+			payloads.add(payload);
+			bytes += size;
+
+			if(bytes >= maxBytes){
+				// this one alone fills the budget
+				close();
+			}
+			else if(flushTask == null){
+				flushTask = scheduler.schedule(this, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/*
+		 * The linger time is up
+		 */
+		@Override
+		public void run()
+		{
+			List<byte[]> batch;
+			synchronized(this)
+			{
+				flushTask = null;
+				if(payloads.isEmpty()){
+					return;
+				}
+				batch = payloads;
+				payloads = new ArrayList<byte[]>();
+				bytes = MqttBatchEnvelope.HEADER_BYTES;
+			}
+			send(topic, batch);
+		}
+
+		/*
+		 * Queues what was collected for sending. Called with the lock held,
+		 *  so that batches are queued in the order they were closed.
+		 */
+		void close()
+		{
+			if(flushTask != null){
+				flushTask.cancel(false);
+				flushTask = null;
+			}
+			if(payloads.isEmpty()){
+				return;
+			}
+
+			final List<byte[]> batch = payloads;
+			payloads = new ArrayList<byte[]>();
+			bytes = MqttBatchEnvelope.HEADER_BYTES;
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					send(topic, batch);
+				}
+			});
+		}
+	}
+
+	private final Map<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+	private final Sink sink;
+	private final ScheduledExecutorService scheduler;
+
+	// metrics
+	private volatile long batchedMessages;
+	private volatile long sentBatches;
+
+	public MqttPublishBatcher(Sink sink)
+	{
+		this.sink = sink;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MqttBatch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Batches publishes to topic from now on; a linger of 0 or less turns
+	 *  batching off again, sending whatever was collected
+	 */
+	public void setBatching(String topic, long lingerMillis, int maxBytes)
+	{
+		Batch previous = batches.remove(topic);
+		if(previous != null){
+			synchronized(previous)
+			{
+				previous.close();
+			}
+		}
+
+		if(lingerMillis > 0){
+			batches.put(topic, new Batch(topic, lingerMillis,
+				Math.max(maxBytes, MqttBatchEnvelope.HEADER_BYTES + 1)));
+		}
+		LOG.debug("setBatching(topic="+topic+", lingerMillis="+lingerMillis+", maxBytes="+maxBytes+")");
+	}
+
+	public boolean isBatched(String topic)
+	{
+		return batches.containsKey(topic);
+	}
+
+	/*
+	 * Adds the message to its topic's batch; returns false, leaving the
+	 *  message to the caller, if the topic is not batched
+	 */
+	public boolean offer(String topic, byte[] payload)
+	{
+		Batch batch = batches.get(topic);
+		if(batch == null){
+			return false;
+		}
+		batch.add(payload);
+		return true;
+	}
+
+	/*
+	 * Sends everything collected so far without waiting for the linger time
+	 */
+	public void flush()
+	{
+		for(Batch batch : batches.values()){
+			synchronized(batch)
+			{
+				batch.close();
+			}
+		}
+	}
+
+	/*
+	 * Sends what was collected, waiting up to timeoutMillis for it to be
+	 *  handed to the Sink, and stops the batching thread
+	 */
+	public void close(long timeoutMillis)
+	{
+		flush();
+		batches.clear();
+		scheduler.shutdown();
+
+		try
+		{
+			if(!scheduler.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)){
+				LOG.error("close: batches still being sent after "+timeoutMillis+"ms");
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getBatchedMessages()
+	{
+		return batchedMessages;
+	}
+
+	public long getSentBatches()
+	{
+		return sentBatches;
+	}
+
+	public String toString()
+	{
+		return "MqttPublishBatcher{topics="+batches.size()+", messages="+batchedMessages
+			+", batches="+sentBatches+"}";
+	}
+
+	/*
+	 * Only ever called on the batching thread
+	 */
+	private void send(String topic, List<byte[]> payloads)
+	{
+		batchedMessages += payloads.size();
+		sentBatches++;
+
+		try
+		{
+			sink.publishBatch(topic, MqttBatchEnvelope.encode(payloads), payloads.size());
+		}
+		catch(RuntimeException e)
+		{
+			LOG.error("send: batch of "+payloads.size()+" for "+topic+" failed", e);
+		}
+	}
+}
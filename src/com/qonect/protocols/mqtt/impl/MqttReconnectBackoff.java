@@ -0,0 +1,133 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.Random;
+
+/*
+ * Decides how long to wait before each attempt to get a lost connection
+ *  back, and measures how long getting it back took.
+ *
+ *  The first attempt is made straight away. After that the delay doubles
+ *  with every attempt, from initialDelayMillis up to maxDelayMillis, and a
+ *  random part of up to jitter times the delay is taken off, so that a fleet
+ *  of clients dropped by the same outage does not come back all at once.
+ */
+public class MqttReconnectBackoff
+{
+	public static final long DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+	public static final double DEFAULT_JITTER = 0.5;
+
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final double jitter;
+	private final Random random;
+
+	private int attempts;
+	// when the connection was lost, -1 while connected
+	private long disconnectedAt = -1;
+
+	// metrics
+	private long reconnectCount;
+	private long lastReconnectMillis;
+	private long maxReconnectMillis;
+	private long totalReconnectMillis;
+
+	public MqttReconnectBackoff()
+	{
+		this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_JITTER, new Random());
+	}
+
+	public MqttReconnectBackoff(long initialDelayMillis, long maxDelayMillis, double jitter, Random random)
+	{
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.jitter = jitter;
+		this.random = random;
+	}
+
+	/*
+	 * The connection was lost at nowMillis; time to reconnect is counted
+	 *  from the first loss until the next onConnected()
+	 */
+	public synchronized void onDisconnected(long nowMillis)
+	{
+		if(disconnectedAt < 0){
+			disconnectedAt = nowMillis;
+		}
+	}
+
+	/*
+	 * Delay before the next attempt: 0 for the first one
+	 */
+	public synchronized long nextDelayMillis()
+	{
+		int attempt = attempts++;
+		if(attempt == 0){
+			return 0;
+		}
+
+		// doubling, without overflowing on long outages
+		long delay = initialDelayMillis << Math.min(attempt - 1, 30);
+		if(delay <= 0 || delay > maxDelayMillis){
+			delay = maxDelayMillis;
+		}
+		return delay - (long)(delay * jitter * random.nextDouble());
+	}
+
+	/*
+	 * Starts over from an immediate attempt, e.g. because we are on a new
+	 *  network and the old delays no longer say anything
+	 */
+	public synchronized void reset()
+	{
+		attempts = 0;
+	}
+
+	public synchronized void onConnected(long nowMillis)
+	{
+		if(disconnectedAt >= 0){
+			lastReconnectMillis = nowMillis - disconnectedAt;
+			maxReconnectMillis = Math.max(maxReconnectMillis, lastReconnectMillis);
+			totalReconnectMillis += lastReconnectMillis;
+			reconnectCount++;
+			disconnectedAt = -1;
+		}
+		attempts = 0;
+	}
+
+	public synchronized int getAttempts()
+	{
+		return attempts;
+	}
+
+	public synchronized long getReconnectCount()
+	{
+		return reconnectCount;
+	}
+
+	/*
+	 * Time from losing the connection until it was back, for the most
+	 *  recent reconnect
+	 */
+	public synchronized long getLastReconnectMillis()
+	{
+		return lastReconnectMillis;
+	}
+
+	public synchronized long getMaxReconnectMillis()
+	{
+		return maxReconnectMillis;
+	}
+
+	public synchronized long getAverageReconnectMillis()
+	{
+		return reconnectCount == 0 ? 0 : totalReconnectMillis / reconnectCount;
+	}
+
+	public synchronized String toString()
+	{
+		return "MqttReconnectBackoff{attempts="+attempts+", reconnects="+reconnectCount
+			+", lastReconnect="+lastReconnectMillis+"ms, maxReconnect="+maxReconnectMillis
+			+"ms, avgReconnect="+getAverageReconnectMillis()+"ms}";
+	}
+}
@@ -0,0 +1,223 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/*
+ * The state of a connection, changed only along the transitions it was
+ *  given, and by compare-and-set, so that two threads cannot both take it
+ *  out of the same state.
+ *
+ *  Keeps how long was spent in every state, measured with System.nanoTime()
+ *  so that clock changes do not skew it; together with the states that
+ *  count as up, this gives the uptime and availability. The wall-clock time
+ *  of the last change is kept as a plain long, for display only.
+ *
+ *  Listeners are called on the thread that made the change, after it was
+ *  made, and should return quickly. Moving to the state we are already in
+ *  is not a change: the time in it keeps counting and nobody is told.
+ */
+public class MqttStateMachine<S extends Enum<S>>
+{
+	private static final Logger LOG = Logger.getLogger(MqttStateMachine.class);
+
+	public interface Listener<S>
+	{
+		/*
+		 * millisInPrevious is how long we were in from
+		 */
+		public void onStateChanged(S from, S to, long millisInPrevious);
+	}
+
+	/*
+	 * The current state and when we entered it, replaced as a whole
+	 */
+	private static final class Snapshot<S>
+	{
+		final S state;
+		final long enteredNanos;
+		final long enteredMillis;
+
+		Snapshot(S state, long enteredNanos, long enteredMillis)
+		{
+			this.state = state;
+			this.enteredNanos = enteredNanos;
+			this.enteredMillis = enteredMillis;
+		}
+	}
+
+	private final Map<S, EnumSet<S>> transitions;
+	private final EnumSet<S> upStates;
+	private final AtomicReference<Snapshot<S>> current;
+	private final long startNanos;
+	// nanoseconds spent in each state, by ordinal, not counting the current stay
+	private final AtomicLongArray nanosInState;
+	private final List<Listener<S>> listeners = new CopyOnWriteArrayList<Listener<S>>();
+
+	/*
+	 * upStates are the states that count towards uptime
+	 */
+	public MqttStateMachine(Class<S> type, S initial, EnumSet<S> upStates)
+	{
+		this.transitions = new EnumMap<S, EnumSet<S>>(type);
+		for(S state : type.getEnumConstants()){
+			transitions.put(state, EnumSet.noneOf(type));
+		}
+		this.upStates = upStates;
+		this.startNanos = System.nanoTime();
+		this.current = new AtomicReference<Snapshot<S>>(
+			new Snapshot<S>(initial, startNanos, System.currentTimeMillis()));
+		this.nanosInState = new AtomicLongArray(type.getEnumConstants().length);
+	}
+
+	/*
+	 * Allows going from from to each of to; staying in the same state is
+	 *  always allowed. Meant for setting up, before the machine is shared.
+	 */
+	public MqttStateMachine<S> allow(S from, EnumSet<S> to)
+	{
+		transitions.get(from).addAll(to);
+		return this;
+	}
+
+	public boolean isAllowed(S from, S to)
+	{
+		return from == to || transitions.get(from).contains(to);
+	}
+
+	public S getState()
+	{
+		return current.get().state;
+	}
+
+	/*
+	 * Wall-clock time of the last change, in milliseconds since the epoch
+	 */
+	public long getChangedAtMillis()
+	{
+		return current.get().enteredMillis;
+	}
+
+	/*
+	 * Moves to to from whatever the state is, if that transition is allowed;
+	 *  returns false, leaving the state alone, if it is not
+	 */
+	public boolean moveTo(S to)
+	{
+		while(true)
+		{
+			Snapshot<S> from = current.get();
+			if(!isAllowed(from.state, to)){
+				LOG.error("moveTo: "+from.state+" -> "+to+" not allowed");
+				return false;
+			}
+			if(swap(from, to)){
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Moves to to only if the state is still expected
+	 */
+	public boolean compareAndSet(S expected, S to)
+	{
+		Snapshot<S> from = current.get();
+		if(from.state != expected){
+			return false;
+		}
+		if(!isAllowed(expected, to)){
+			LOG.error("compareAndSet: "+expected+" -> "+to+" not allowed");
+			return false;
+		}
+		return swap(from, to);
+	}
+
+	public void addListener(Listener<S> listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener<S> listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/*
+	 * Time spent in state so far, including the current stay
+	 */
+	public long getMillisInState(S state)
+	{
+		long nanos = nanosInState.get(state.ordinal());
+		Snapshot<S> now = current.get();
+		if(now.state == state){
+			nanos += System.nanoTime() - now.enteredNanos;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/*
+	 * Time spent in the up states
+	 */
+	public long getUptimeMillis()
+	{
+		long millis = 0;
+		for(S state : upStates){
+			millis += getMillisInState(state);
+		}
+		return millis;
+	}
+
+	/*
+	 * Share of the time since this was created spent in the up states,
+	 *  from 0 to 1
+	 */
+	public double getAvailability()
+	{
+		long total = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		return total > 0 ? Math.min(1.0, (double)getUptimeMillis() / total) : 0;
+	}
+
+	public String toString()
+	{
+		return "MqttStateMachine{state="+getState()+", uptime="+getUptimeMillis()+"ms"
+			+", availability="+String.format("%.4f", getAvailability())+"}";
+	}
+
+	private boolean swap(Snapshot<S> from, S to)
+	{
+		if(from.state == to){
+			return true;
+		}
+
+		long now = System.nanoTime();
+		if(!current.compareAndSet(from, new Snapshot<S>(to, now, System.currentTimeMillis()))){
+			return false;
+		}
+
+		long stayed = now - from.enteredNanos;
+		nanosInState.addAndGet(from.state.ordinal(), stayed);
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(stayed);
+		for(Listener<S> listener : listeners)
+		{
+			try
+			{
+				listener.onStateChanged(from.state, to, millis);
+			}
+			catch(RuntimeException e)
+			{
+				LOG.error("swap: listener failed", e);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,83 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * A subscribe that did not get every topic: says, per topic, what QoS the
+ *  broker granted or that it refused it. Topics are refused one by one by
+ *  the broker, or together with the rest of their SUBSCRIBE when that
+ *  could not be sent or was not acknowledged; the cause is the first such
+ *  failure.
+ */
+public class MqttSubscribeException extends MqttException
+{
+	private static final long serialVersionUID = -3806170946512926413L;
+
+	// in place of a granted QoS, as in an MQTT 3.1.1 SUBACK
+	public static final int FAILURE = 0x80;
+
+	private final IMqttTopic[] topics;
+	private final int[] granted;
+
+	/*
+	 * granted holds, for each of topics, the QoS granted or FAILURE
+	 */
+	public MqttSubscribeException(IMqttTopic[] topics, int[] granted, Throwable cause)
+	{
+		super(describe(topics, granted), cause);
+		this.topics = topics;
+		this.granted = granted;
+	}
+
+	public IMqttTopic[] getTopics()
+	{
+		return topics;
+	}
+
+	public int[] getGrantedQoS()
+	{
+		return granted;
+	}
+
+	/*
+	 * The topics we are now subscribed to, as they were asked for; the QoS
+	 *  the broker granted may be lower, see getGrantedQoS()
+	 */
+	public IMqttTopic[] getSubscribedTopics()
+	{
+		List<IMqttTopic> subscribed = new ArrayList<IMqttTopic>();
+		for(int i = 0; i < topics.length; i++){
+			if(granted[i] != FAILURE){
+				subscribed.add(topics[i]);
+			}
+		}
+		return subscribed.toArray(new IMqttTopic[subscribed.size()]);
+	}
+
+	public IMqttTopic[] getFailedTopics()
+	{
+		List<IMqttTopic> failed = new ArrayList<IMqttTopic>();
+		for(int i = 0; i < topics.length; i++){
+			if(granted[i] == FAILURE){
+				failed.add(topics[i]);
+			}
+		}
+		return failed.toArray(new IMqttTopic[failed.size()]);
+	}
+
+	private static String describe(IMqttTopic[] topics, int[] granted)
+	{
+		int failed = 0;
+		String first = null;
+		for(int i = 0; i < topics.length; i++){
+			if(granted[i] == FAILURE){
+				if(first == null)first = topics[i].getName();
+				failed++;
+			}
+		}
+		return "Subscribing failed for "+failed+" of "+topics.length+" topics, first "+first;
+	}
+}
@@ -0,0 +1,191 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * The topic filters we want to be subscribed to, next to the ones the
+ *  broker has confirmed, so that only the difference needs to be sent:
+ *  after a change, or after reconnecting to a session the broker kept.
+ *
+ *  Changes only touch the wanted set; diff() says what to send, and
+ *  confirmSubscribed() / confirmUnsubscribed() record what the broker
+ *  acknowledged, so that a change made while a diff is on its way is
+ *  picked up by the next one. sessionLost() forgets what the broker had,
+ *  after which the next diff is everything.
+ */
+public class MqttSubscriptionSet
+{
+	/*
+	 * What to send to get the broker from what it has to what we want
+	 */
+	public static final class Delta
+	{
+		private final List<IMqttTopic> subscribe;
+		private final List<IMqttTopic> unsubscribe;
+
+		Delta(List<IMqttTopic> subscribe, List<IMqttTopic> unsubscribe)
+		{
+			this.subscribe = subscribe;
+			this.unsubscribe = unsubscribe;
+		}
+
+		public IMqttTopic[] getSubscribe()
+		{
+			return subscribe.toArray(new IMqttTopic[subscribe.size()]);
+		}
+
+		public IMqttTopic[] getUnsubscribe()
+		{
+			return unsubscribe.toArray(new IMqttTopic[unsubscribe.size()]);
+		}
+
+		public boolean isEmpty()
+		{
+			return subscribe.isEmpty() && unsubscribe.isEmpty();
+		}
+
+		public String toString()
+		{
+			return "Delta{subscribe="+subscribe.size()+", unsubscribe="+unsubscribe.size()+"}";
+		}
+	}
+
+	// filter -> QoS; in the order they were added, which is the order they
+	//  are subscribed in
+	private final Map<String, Integer> wanted = new LinkedHashMap<String, Integer>();
+	private final Map<String, Integer> confirmed = new HashMap<String, Integer>();
+
+	// metrics
+	private long sentSubscriptions;
+	private long sentUnsubscriptions;
+
+	/*
+	 * Returns false if we already wanted filter at qos
+	 */
+	public synchronized boolean subscribe(String filter, int qos)
+	{
+		MqttTopicTrie.validateFilter(filter);
+		if(qos < 0 || qos > 2){
+			throw new IllegalArgumentException("QoS must be 0, 1 or 2: "+qos);
+		}
+		Integer previous = wanted.put(filter, Integer.valueOf(qos));
+		return previous == null || previous.intValue() != qos;
+	}
+
+	/*
+	 * Returns false if we did not want filter
+	 */
+	public synchronized boolean unsubscribe(String filter)
+	{
+		return wanted.remove(filter) != null;
+	}
+
+	public synchronized boolean contains(String filter)
+	{
+		return wanted.containsKey(filter);
+	}
+
+	/*
+	 * The filters we want, with their QoS
+	 */
+	public synchronized List<IMqttTopic> getTopics()
+	{
+		List<IMqttTopic> topics = new ArrayList<IMqttTopic>(wanted.size());
+		for(Map.Entry<String, Integer> entry : wanted.entrySet()){
+			topics.add(topic(entry.getKey(), entry.getValue().intValue()));
+		}
+		return Collections.unmodifiableList(topics);
+	}
+
+	public synchronized int size()
+	{
+		return wanted.size();
+	}
+
+	/*
+	 * Filters we want but the broker does not have, or has at another QoS,
+	 *  and filters the broker has that we no longer want
+	 */
+	public synchronized Delta diff()
+	{
+		List<IMqttTopic> subscribe = new ArrayList<IMqttTopic>();
+		for(Map.Entry<String, Integer> entry : wanted.entrySet()){
+			if(!entry.getValue().equals(confirmed.get(entry.getKey()))){
+				subscribe.add(topic(entry.getKey(), entry.getValue().intValue()));
+			}
+		}
+
+		List<IMqttTopic> unsubscribe = new ArrayList<IMqttTopic>();
+		for(String filter : confirmed.keySet()){
+			if(!wanted.containsKey(filter)){
+				unsubscribe.add(topic(filter, 0));
+			}
+		}
+		return new Delta(subscribe, unsubscribe);
+	}
+
+	/*
+	 * The broker acknowledged a SUBSCRIBE for topics
+	 */
+	public synchronized void confirmSubscribed(IMqttTopic[] topics)
+	{
+		for(IMqttTopic topic : topics){
+			confirmed.put(topic.getName(), Integer.valueOf(topic.getQoS()));
+		}
+		sentSubscriptions += topics.length;
+	}
+
+	/*
+	 * The broker acknowledged an UNSUBSCRIBE for topics
+	 */
+	public synchronized void confirmUnsubscribed(IMqttTopic[] topics)
+	{
+		for(IMqttTopic topic : topics){
+			confirmed.remove(topic.getName());
+		}
+		sentUnsubscriptions += topics.length;
+	}
+
+	/*
+	 * The broker no longer has our subscriptions, e.g. because we connected
+	 *  with a clean session
+	 */
+	public synchronized void sessionLost()
+	{
+		confirmed.clear();
+	}
+
+	/*
+	 * Filters subscribed to and unsubscribed from since this was created,
+	 *  counting each filter every time it was sent
+	 */
+	public synchronized long getSentSubscriptions()
+	{
+		return sentSubscriptions;
+	}
+
+	public synchronized long getSentUnsubscriptions()
+	{
+		return sentUnsubscriptions;
+	}
+
+	public synchronized String toString()
+	{
+		return "MqttSubscriptionSet{wanted="+wanted.size()+", confirmed="+confirmed.size()
+			+", sentSubscriptions="+sentSubscriptions+", sentUnsubscriptions="+sentUnsubscriptions+"}";
+	}
+
+	private static IMqttTopic topic(String filter, int qos)
+	{
+		MqttTopic topic = new MqttTopic(filter);
+		topic.setQoS(qos);
+		return topic;
+	}
+}
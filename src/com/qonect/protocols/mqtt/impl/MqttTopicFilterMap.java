@@ -0,0 +1,154 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Settings assigned to topic filters, looked up by topic. Where several
+ *  filters match a topic, the one assigned last wins.
+ *
+ *  Meant for the message path: every assignment builds a new trie of the
+ *  filters, in which each filter's node holds its value and when it was
+ *  assigned, so a lookup walks the topic's levels once and keeps the
+ *  latest match, however many filters there are or topics are looked up.
+ *  Assigning is rare and copies the whole trie; lookups take no lock.
+ *  Unlike MqttTopicTrie, which finds every match, this finds one value.
+ */
+public class MqttTopicFilterMap<T>
+{
+	private static final String SINGLE_LEVEL = "+";
+	private static final String MULTI_LEVEL = "#";
+
+	// not changed once published
+	private static final class Node
+	{
+		Map<String, Node> children;
+		Node singleLevel;
+		Node multiLevel;
+
+		Object value;
+		// position of the assignment, -1 if no filter ends here
+		int order = -1;
+	}
+
+	// in the order assigned; a filter assigned again moves to the end
+	private final LinkedHashMap<String, T> assignments = new LinkedHashMap<String, T>();
+	private volatile Node root = new Node();
+
+	/*
+	 * Assigns value to filter, replacing what it had; null removes it
+	 */
+	public synchronized void put(String filter, T value)
+	{
+		MqttTopicTrie.validateFilter(filter);
+
+		assignments.remove(filter);
+		if(value != null){
+			assignments.put(filter, value);
+		}
+
+		Node built = new Node();
+		int order = 0;
+		for(Map.Entry<String, T> assignment : assignments.entrySet()){
+			Node node = nodeFor(built, assignment.getKey());
+			node.value = assignment.getValue();
+			node.order = order++;
+		}
+		root = built;
+	}
+
+	/*
+	 * The value for topic, or null if no filter matches it
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(String topic)
+	{
+		Node match = find(root, topic, 0, null);
+		return match == null ? null : (T)match.value;
+	}
+
+	public boolean isEmpty()
+	{
+		return root.order < 0 && root.children == null
+			&& root.singleLevel == null && root.multiLevel == null;
+	}
+
+	/************************************************************************/
+	/*    internals                                                         */
+	/************************************************************************/
+
+	private static Node nodeFor(Node node, String filter)
+	{
+		int start = 0;
+		while(start <= filter.length())
+		{
+			int end = levelEnd(filter, start);
+			String level = filter.substring(start, end);
+
+			Node child;
+			if(SINGLE_LEVEL.equals(level)){
+				if(node.singleLevel == null)node.singleLevel = new Node();
+				child = node.singleLevel;
+			}
+			else if(MULTI_LEVEL.equals(level)){
+				if(node.multiLevel == null)node.multiLevel = new Node();
+				child = node.multiLevel;
+			}
+			else {
+				if(node.children == null)node.children = new HashMap<String, Node>();
+				child = node.children.get(level);
+				if(child == null){
+					child = new Node();
+					node.children.put(level, child);
+				}
+			}
+			node = child;
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/*
+	 * The later assigned of best and the filters under node matching the
+	 *  topic from start on
+	 */
+	private static Node find(Node node, String topic, int start, Node best)
+	{
+		boolean wildcardsAllowed = start > 0 || topic.length() == 0 || topic.charAt(0) != '$';
+
+		// '#' matches the remaining levels, and also the parent level itself
+		if(node.multiLevel != null && wildcardsAllowed){
+			best = later(node.multiLevel, best);
+		}
+
+		if(start > topic.length()){
+			return later(node, best);
+		}
+
+		int end = levelEnd(topic, start);
+
+		if(node.children != null){
+			Node child = node.children.get(topic.substring(start, end));
+			if(child != null){
+				best = find(child, topic, end + 1, best);
+			}
+		}
+		if(node.singleLevel != null && wildcardsAllowed){
+			best = find(node.singleLevel, topic, end + 1, best);
+		}
+		return best;
+	}
+
+	private static Node later(Node node, Node best)
+	{
+		if(node.order < 0)return best;
+		return best == null || node.order > best.order ? node : best;
+	}
+
+	private static int levelEnd(String s, int start)
+	{
+		int end = s.indexOf('/', start);
+		return end < 0 ? s.length() : end;
+	}
+}
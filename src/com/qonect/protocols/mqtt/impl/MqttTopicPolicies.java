@@ -0,0 +1,68 @@
+package com.qonect.protocols.mqtt.impl;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Which MqttTopicPolicy applies to a topic. Policies are assigned to topic
+ *  filters; where several filters match a topic, the one assigned last
+ *  wins, and a topic no filter matches gets the default policy. Lookups
+ *  go through the trie MqttTopicFilterMap builds, so resolving the policy
+ *  of a message takes one walk over its levels.
+ *
+ *  The QoS to subscribe to a filter at is looked up the same way, with
+ *  the filter taken as a topic: "sensors/+/temp" gets the policy of
+ *  "sensors/#", but "#" does not.
+ */
+public class MqttTopicPolicies
+{
+	private static final Logger LOG = Logger.getLogger(MqttTopicPolicies.class);
+
+	private final MqttTopicFilterMap<MqttTopicPolicy> policies = new MqttTopicFilterMap<MqttTopicPolicy>();
+	private volatile MqttTopicPolicy defaultPolicy;
+
+	public MqttTopicPolicies()
+	{
+		this(MqttTopicPolicy.DEFAULT);
+	}
+
+	public MqttTopicPolicies(MqttTopicPolicy defaultPolicy)
+	{
+		this.defaultPolicy = defaultPolicy;
+	}
+
+	/*
+	 * Applies policy to the topics matching filter; null removes it.
+	 *  Throws IllegalArgumentException for an invalid filter.
+	 */
+	public void setPolicy(String filter, MqttTopicPolicy policy)
+	{
+		policies.put(filter, policy);
+
+		LOG.debug("setPolicy(filter="+filter+", policy="+policy+")");
+	}
+
+	/*
+	 * The policy for topics no filter matches
+	 */
+	public void setDefaultPolicy(MqttTopicPolicy policy)
+	{
+		if(policy == null){
+			throw new IllegalArgumentException("The default policy cannot be null");
+		}
+		this.defaultPolicy = policy;
+	}
+
+	public MqttTopicPolicy getDefaultPolicy()
+	{
+		return defaultPolicy;
+	}
+
+	/*
+	 * The policy for topic; never null
+	 */
+	public MqttTopicPolicy getPolicy(String topic)
+	{
+		MqttTopicPolicy policy = policies.get(topic);
+		return policy != null ? policy : defaultPolicy;
+	}
+}
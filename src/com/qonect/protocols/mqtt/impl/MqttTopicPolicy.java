@@ -0,0 +1,81 @@
+package com.qonect.protocols.mqtt.impl;
+
+/*
+ * How messages on a topic are published and subscribed to: the QoS,
+ *  whether the broker keeps the last one for new subscribers, and how
+ *  urgent they are. Messages with a priority above PRIORITY_NORMAL are
+ *  never batched, and are published ahead of messages still waiting in
+ *  the outbound queue.
+ */
+public final class MqttTopicPolicy
+{
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_HIGH = 1;
+
+	public static final MqttTopicPolicy DEFAULT = new MqttTopicPolicy(0, false, PRIORITY_NORMAL);
+
+	private final int qos;
+	private final boolean retained;
+	private final int priority;
+
+	public MqttTopicPolicy(int qos, boolean retained, int priority)
+	{
+		if(qos < 0 || qos > 2){
+			throw new IllegalArgumentException("QoS must be 0, 1 or 2: "+qos);
+		}
+		this.qos = qos;
+		this.retained = retained;
+		this.priority = priority;
+	}
+
+	public int getQoS()
+	{
+		return qos;
+	}
+
+	public boolean isRetained()
+	{
+		return retained;
+	}
+
+	public int getPriority()
+	{
+		return priority;
+	}
+
+	public boolean isUrgent()
+	{
+		return priority > PRIORITY_NORMAL;
+	}
+
+	/*
+	 * A message with payload, to be published the way this policy says
+	 */
+	public MqttMessage newMessage(byte[] payload)
+	{
+		MqttMessage message = new MqttMessage(payload);
+		message.setQoS(qos);
+		message.setRetained(retained);
+		return message;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if(!(o instanceof MqttTopicPolicy))return false;
+		MqttTopicPolicy other = (MqttTopicPolicy)o;
+		return qos == other.qos && retained == other.retained && priority == other.priority;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (priority * 31 + qos) * 2 + (retained ? 1 : 0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "MqttTopicPolicy{qos="+qos+", retained="+retained+", priority="+priority+"}";
+	}
+}
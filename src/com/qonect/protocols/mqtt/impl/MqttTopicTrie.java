@@ -0,0 +1,349 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Maps MQTT topic filters to values, so that all values whose filter matches
+ *  a topic can be found by walking the topic's levels once, rather than by
+ *  testing every filter. Supports the '+' (single level) and '#' (remaining
+ *  levels) wildcards; as in the MQTT spec, wildcards at the first level do
+ *  not match topics starting with '$'.
+ *
+ *  Matching takes a shared lock; registering and removing take an exclusive
+ *  one, so a trie can be shared between threads.
+ */
+public class MqttTopicTrie<T>
+{
+	private static final String SINGLE_LEVEL = "+";
+	private static final String MULTI_LEVEL = "#";
+	private static final Object[] EMPTY = new Object[0];
+
+	private static final class Node
+	{
+		Map<String, Node> children;
+		Node singleLevel;
+		Node multiLevel;
+
+		// copy-on-write, registration is rare compared to matching
+		Object[] values = EMPTY;
+
+		boolean isEmpty()
+		{
+			return values.length == 0 && singleLevel == null && multiLevel == null
+				&& (children == null || children.isEmpty());
+		}
+	}
+
+	private final Node root = new Node();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private int size;
+
+	/*
+	 * Registers value under filter. Returns false if it was already there.
+	 */
+	public boolean add(String filter, T value)
+	{
+		validateFilter(filter);
+
+		lock.writeLock().lock();
+		try
+		{
+			Node node = root;
+			int start = 0;
+			while(start <= filter.length())
+			{
+				int end = levelEnd(filter, start);
+				String level = filter.substring(start, end);
+
+				Node child;
+				if(SINGLE_LEVEL.equals(level)){
+					if(node.singleLevel == null)node.singleLevel = new Node();
+					child = node.singleLevel;
+				}
+				else if(MULTI_LEVEL.equals(level)){
+					if(node.multiLevel == null)node.multiLevel = new Node();
+					child = node.multiLevel;
+				}
+				else {
+					if(node.children == null)node.children = new HashMap<String, Node>();
+					child = node.children.get(level);
+					if(child == null){
+						child = new Node();
+						node.children.put(level, child);
+					}
+				}
+				node = child;
+				start = end + 1;
+			}
+
+			for(Object v : node.values){
+				if(v.equals(value))return false;
+			}
+			Object[] values = new Object[node.values.length + 1];
+			System.arraycopy(node.values, 0, values, 0, node.values.length);
+			values[node.values.length] = value;
+			node.values = values;
+			size++;
+			return true;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Removes value from filter. Returns false if it was not registered.
+	 */
+	public boolean remove(String filter, T value)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			return remove(root, filter, 0, value);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Removes value from every filter it is registered under.
+	 */
+	public int removeAll(T value)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			return removeAll(root, value);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			root.children = null;
+			root.singleLevel = null;
+			root.multiLevel = null;
+			root.values = EMPTY;
+			size = 0;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Number of (filter, value) registrations.
+	 */
+	public int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Adds every value whose filter matches topic to result, each value at
+	 *  most once. Returns result.
+	 */
+	public List<T> match(String topic, List<T> result)
+	{
+		lock.readLock().lock();
+		try
+		{
+			collect(root, topic, 0, result);
+			return result;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Tests a single filter against a topic without building a trie.
+	 */
+	public static boolean matches(String filter, String topic)
+	{
+		int f = 0;
+		int t = 0;
+		boolean system = topic.length() > 0 && topic.charAt(0) == '$';
+
+		while(f <= filter.length())
+		{
+			int fEnd = levelEnd(filter, f);
+			boolean first = f == 0;
+
+			if(fEnd - f == 1 && filter.charAt(f) == '#'){
+				return !(first && system);
+			}
+			if(t > topic.length())return false;
+
+			int tEnd = levelEnd(topic, t);
+			if(fEnd - f == 1 && filter.charAt(f) == '+'){
+				if(first && system)return false;
+			}
+			else if(!filter.regionMatches(f, topic, t, fEnd - f) || fEnd - f != tEnd - t){
+				return false;
+			}
+
+			f = fEnd + 1;
+			t = tEnd + 1;
+		}
+		return t > topic.length();
+	}
+
+	public static void validateFilter(String filter)
+	{
+		int start = 0;
+		while(start <= filter.length())
+		{
+			int end = levelEnd(filter, start);
+			for(int i = start; i < end; i++){
+				char c = filter.charAt(i);
+				if((c == '+' || c == '#') && end - start != 1){
+					throw new IllegalArgumentException("Wildcard must occupy a whole level: "+filter);
+				}
+				if(c == '#' && end != filter.length()){
+					throw new IllegalArgumentException("'#' must be the last level: "+filter);
+				}
+			}
+			start = end + 1;
+		}
+	}
+
+	/************************************************************************/
+	/*    internals                                                         */
+	/************************************************************************/
+
+	private void collect(Node node, String topic, int start, List<T> result)
+	{
+		boolean wildcardsAllowed = start > 0 || topic.length() == 0 || topic.charAt(0) != '$';
+
+		// '#' matches the remaining levels, and also the parent level itself
+		if(node.multiLevel != null && wildcardsAllowed){
+			addAll(node.multiLevel.values, result);
+		}
+
+		if(start > topic.length()){
+			addAll(node.values, result);
+			return;
+		}
+
+		int end = levelEnd(topic, start);
+
+		if(node.children != null){
+			Node child = node.children.get(topic.substring(start, end));
+			if(child != null){
+				collect(child, topic, end + 1, result);
+			}
+		}
+		if(node.singleLevel != null && wildcardsAllowed){
+			collect(node.singleLevel, topic, end + 1, result);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addAll(Object[] values, List<T> result)
+	{
+		for(Object value : values){
+			if(!result.contains(value)){
+				result.add((T)value);
+			}
+		}
+	}
+
+	private boolean remove(Node node, String filter, int start, T value)
+	{
+		if(start > filter.length()){
+			return removeValue(node, value);
+		}
+
+		int end = levelEnd(filter, start);
+		String level = filter.substring(start, end);
+
+		boolean removed;
+		if(SINGLE_LEVEL.equals(level)){
+			if(node.singleLevel == null)return false;
+			removed = remove(node.singleLevel, filter, end + 1, value);
+			if(node.singleLevel.isEmpty())node.singleLevel = null;
+		}
+		else if(MULTI_LEVEL.equals(level)){
+			if(node.multiLevel == null)return false;
+			removed = remove(node.multiLevel, filter, end + 1, value);
+			if(node.multiLevel.isEmpty())node.multiLevel = null;
+		}
+		else {
+			Node child = node.children == null ? null : node.children.get(level);
+			if(child == null)return false;
+			removed = remove(child, filter, end + 1, value);
+			if(child.isEmpty())node.children.remove(level);
+		}
+		return removed;
+	}
+
+	private int removeAll(Node node, T value)
+	{
+		int removed = removeValue(node, value) ? 1 : 0;
+
+		if(node.singleLevel != null){
+			removed += removeAll(node.singleLevel, value);
+			if(node.singleLevel.isEmpty())node.singleLevel = null;
+		}
+		if(node.multiLevel != null){
+			removed += removeAll(node.multiLevel, value);
+			if(node.multiLevel.isEmpty())node.multiLevel = null;
+		}
+		if(node.children != null){
+			Iterator<Node> it = node.children.values().iterator();
+			while(it.hasNext()){
+				Node child = it.next();
+				removed += removeAll(child, value);
+				if(child.isEmpty())it.remove();
+			}
+		}
+		return removed;
+	}
+
+	private boolean removeValue(Node node, T value)
+	{
+		Object[] values = node.values;
+		for(int i = 0; i < values.length; i++)
+		{
+			if(values[i].equals(value)){
+				Object[] shrunk = new Object[values.length - 1];
+				System.arraycopy(values, 0, shrunk, 0, i);
+				System.arraycopy(values, i + 1, shrunk, i, values.length - i - 1);
+				node.values = shrunk;
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int levelEnd(String s, int start)
+	{
+		int end = s.indexOf('/', start);
+		return end < 0 ? s.length() : end;
+	}
+}
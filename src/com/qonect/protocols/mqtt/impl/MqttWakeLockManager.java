@@ -0,0 +1,137 @@
+package com.qonect.protocols.mqtt.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttWakeLock;
+
+/*
+ * Keeps the CPU awake while there is work to do, through a single platform
+ *  wake lock that is created once and shared by everything that needs it.
+ *
+ *  References are counted here, so the platform lock is only acquired when
+ *  the first one is taken. When the last one goes, the lock is kept for a
+ *  further lingerMillis - by giving it a timeout, so no thread is needed -
+ *  so that a burst of messages costs one acquire and one release rather
+ *  than one of each per message.
+ */
+public class MqttWakeLockManager
+{
+	private static final Logger LOG = Logger.getLogger(MqttWakeLockManager.class);
+
+	private final IMqttWakeLock lock;
+	private final long lingerMillis;
+
+	// guarded by this
+	private int references;
+	// System.nanoTime() up to which acquire(millis) asked for the lock
+	private long holdUntil;
+	// System.nanoTime() at which the platform lock times out; only
+	//  meaningful while there are no references
+	private long heldUntil;
+	private boolean closed;
+
+	// metrics
+	private volatile long platformAcquires;
+
+	public MqttWakeLockManager(IMqttWakeLock lock, long lingerMillis)
+	{
+		this.lock = lock;
+		this.lingerMillis = lingerMillis;
+		this.holdUntil = this.heldUntil = System.nanoTime();
+	}
+
+	/*
+	 * Keeps the CPU awake until the matching release()
+	 */
+	public synchronized void acquire()
+	{
+		if(closed){
+			return;
+		}
+		if(references++ == 0){
+			// replaces any timeout still running from the last release
+			if(heldUntil - System.nanoTime() <= 0){
+				platformAcquires++;
+			}
+			lock.acquire();
+		}
+	}
+
+	/*
+	 * Keeps the CPU awake for at least millis, without a release(); for
+	 *  work that is handed off to somewhere we cannot follow it
+	 */
+	public synchronized void acquire(long millis)
+	{
+		if(closed){
+			return;
+		}
+		holdUntil = Math.max(holdUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+		if(references == 0){
+			if(heldUntil - System.nanoTime() <= 0){
+				platformAcquires++;
+			}
+			holdFor(remainingMillis(0));
+		}
+	}
+
+	public synchronized void release()
+	{
+		if(closed){
+			return;
+		}
+		if(references == 0){
+			LOG.error("release: not acquired", new IllegalStateException());
+			return;
+		}
+		if(--references > 0){
+			return;
+		}
+
+		holdFor(remainingMillis(lingerMillis));
+	}
+
+	/*
+	 * Releases the platform lock for good; acquiring does nothing after this
+	 */
+	public synchronized void close()
+	{
+		if(closed){
+			return;
+		}
+		closed = true;
+		references = 0;
+		lock.release();
+	}
+
+	/*
+	 * Number of times the platform lock had to be acquired because it had
+	 *  been released or timed out
+	 */
+	public long getPlatformAcquires()
+	{
+		return platformAcquires;
+	}
+
+	private void holdFor(long millis)
+	{
+		if(millis > 0){
+			lock.acquire(millis);
+		}
+		else {
+			lock.release();
+		}
+		heldUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/*
+	 * The longer of atLeastMillis and what acquire(millis) asked for
+	 */
+	private long remainingMillis(long atLeastMillis)
+	{
+		long held = TimeUnit.NANOSECONDS.toMillis(holdUntil - System.nanoTime());
+		return Math.max(atLeastMillis, held);
+	}
+}
@@ -0,0 +1,199 @@
+package com.qonect.protocols.mqtt.impl.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.impl.MqttPersistenceException;
+import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
+import com.qonect.protocols.mqtt.interfaces.IMqttClient;
+import com.qonect.protocols.mqtt.interfaces.IMqttConnectOptions;
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryToken;
+import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
+import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
+
+/*
+ * Runs payloads through the codecs assigned to their topics: encoded on the
+ *  way out to the wrapped client, decoded before they reach the callback.
+ *  Topics without a codec pass through untouched.
+ *
+ *  A received payload that cannot be decoded is dropped and logged; handing
+ *  compressed bytes to handlers that expect the original would do no good.
+ */
+public class MqttCodecClient implements IMqttClient
+{
+	private static final Logger LOG = Logger.getLogger(MqttCodecClient.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final IMqttClient client;
+	private final MqttPayloadCodecs codecs;
+
+	public MqttCodecClient(IMqttClient client, MqttPayloadCodecs codecs)
+	{
+		this.client = client;
+		this.codecs = codecs;
+	}
+
+	@Override
+	public void setCallback(final IMqttCallback callback) throws MqttException
+	{
+		if(callback == null){
+			client.setCallback(null);
+			return;
+		}
+
+		client.setCallback(new IMqttCallback() {
+			@Override
+			public void messageArrived(IMqttTopic topic, IMqttMessage message) throws Exception {
+				byte[] payload;
+				byte[] decoded;
+				try
+				{
+					payload = message.getPayload();
+					decoded = codecs.decode(topic.getName(), payload);
+				}
+				catch(MqttException e)
+				{
+					LOG.error("messageArrived: dropping message on "+topic.getName(), e);
+					return;
+				}
+
+				callback.messageArrived(topic, 
+					decoded == payload ? message : new CodedMessage(message, decoded));
+			}
+
+			@Override
+			public void connectionLost(Throwable throwable) {
+				callback.connectionLost(throwable);
+			}
+		});
+	}
+
+	@Override
+	public void publish(IMqttTopic topic, IMqttMessage message) throws MqttException
+	{
+		client.publish(topic, encode(topic, message));
+	}
+
+	/*
+	 * The token refers to the encoded message
+	 */
+	@Override
+	public IMqttDeliveryToken publishAsync(IMqttTopic topic, IMqttMessage message) throws MqttException
+	{
+		return client.publishAsync(topic, encode(topic, message));
+	}
+
+	@Override
+	public void subscribe(IMqttTopic topic) throws IllegalArgumentException, MqttException
+	{
+		client.subscribe(topic);
+	}
+
+	@Override
+	public void subscribe(IMqttTopic[] topics) throws IllegalArgumentException, MqttException
+	{
+		client.subscribe(topics);
+	}
+
+	@Override
+	public void unsubscribe(IMqttTopic topic) throws MqttException
+	{
+		client.unsubscribe(topic);
+	}
+
+	@Override
+	public void unsubscribe(IMqttTopic[] topics) throws MqttException
+	{
+		client.unsubscribe(topics);
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return client.isConnected();
+	}
+
+	@Override
+	public void connect(IMqttConnectOptions options) throws MqttException
+	{
+		client.connect(options);
+	}
+
+	@Override
+	public void disconnect() throws MqttException, MqttPersistenceException
+	{
+		client.disconnect();
+	}
+
+	@Override
+	public void ping() throws MqttException
+	{
+		client.ping();
+	}
+
+	private IMqttMessage encode(IMqttTopic topic, IMqttMessage message) throws MqttException
+	{
+		byte[] payload = message.getPayload();
+		byte[] encoded = codecs.encode(topic.getName(), payload);
+		return encoded == payload ? message : new CodedMessage(message, encoded);
+	}
+
+	/*
+	 * A message with its payload replaced, and everything else as it was
+	 */
+	private static final class CodedMessage implements IMqttMessage
+	{
+		private final IMqttMessage message;
+		private final byte[] payload;
+		private String payloadString;
+
+		CodedMessage(IMqttMessage message, byte[] payload)
+		{
+			this.message = message;
+			this.payload = payload;
+		}
+
+		@Override
+		public int getQoS()
+		{
+			return message.getQoS();
+		}
+
+		@Override
+		public byte[] getPayload() throws MqttException
+		{
+			return payload;
+		}
+
+		@Override
+		public ByteBuffer getPayloadBuffer() throws MqttException
+		{
+			return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+		}
+
+		@Override
+		public String getPayloadString() throws MqttException
+		{
+			if(payloadString == null){
+				payloadString = new String(payload, UTF8);
+			}
+			return payloadString;
+		}
+
+		@Override
+		public boolean isRetained()
+		{
+			return message.isRetained();
+		}
+
+		@Override
+		public boolean isDuplicate()
+		{
+			return message.isDuplicate();
+		}
+	}
+}
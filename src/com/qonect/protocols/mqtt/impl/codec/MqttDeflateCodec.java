@@ -0,0 +1,144 @@
+package com.qonect.protocols.mqtt.impl.codec;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.interfaces.IMqttPayloadCodec;
+
+/*
+ * Raw deflate (no zlib header or checksum - MQTT has its own framing, and
+ *  TCP its own checksums), optionally primed with a preset dictionary.
+ *
+ *  Deflater and Inflater hold native memory and are expensive to set up,
+ *  so every thread keeps its own pair, together with a work buffer that
+ *  grows to the largest payload it has seen.
+ */
+public class MqttDeflateCodec implements IMqttPayloadCodec
+{
+	public static final int ID = 1;
+
+	// refuses to inflate anything larger, so that a small message cannot
+	//  make us allocate without bound
+	public static final int MAX_DECODED_BYTES = 4 * 1024 * 1024;
+
+	private static final class State
+	{
+		final Deflater deflater;
+		final Inflater inflater = new Inflater(true);
+		byte[] buffer = new byte[1024];
+
+		State(int level)
+		{
+			deflater = new Deflater(level, true);
+		}
+	}
+
+	private final int id;
+	private final int level;
+	private final byte[] dictionary;
+
+	private final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State(level);
+		}
+	};
+
+	public MqttDeflateCodec()
+	{
+		this(ID, Deflater.DEFAULT_COMPRESSION, null);
+	}
+
+	/*
+	 * Both sides need to use the same dictionary under the same ID
+	 */
+	protected MqttDeflateCodec(int id, int level, byte[] dictionary)
+	{
+		if(id < 1 || id > 255){
+			throw new IllegalArgumentException("id="+id);
+		}
+		this.id = id;
+		this.level = level;
+		this.dictionary = dictionary;
+	}
+
+	@Override
+	public int getId()
+	{
+		return id;
+	}
+
+	@Override
+	public byte[] encode(byte[] payload, int reserve) throws MqttException
+	{
+		State s = state.get();
+		Deflater deflater = s.deflater;
+		deflater.reset();
+		if(dictionary != null){
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(payload);
+		deflater.finish();
+
+		// anything that does not fit in the size of the original is no use
+		int limit = reserve + payload.length;
+		if(s.buffer.length < limit){
+			s.buffer = new byte[Math.max(limit, s.buffer.length * 2)];
+		}
+
+		int length = reserve;
+		while(!deflater.finished() && length < limit){
+			length += deflater.deflate(s.buffer, length, limit - length);
+		}
+		if(!deflater.finished()){
+			return null;
+		}
+		return Arrays.copyOf(s.buffer, length);
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int offset, int length) throws MqttException
+	{
+		State s = state.get();
+		Inflater inflater = s.inflater;
+		inflater.reset();
+		if(dictionary != null){
+			inflater.setDictionary(dictionary);
+		}
+		inflater.setInput(data, offset, length);
+
+		try
+		{
+			int decoded = 0;
+			while(!inflater.finished())
+			{
+				if(decoded == s.buffer.length)
+				{
+					if(decoded >= MAX_DECODED_BYTES){
+						throw new MqttException("Payload inflates to more than "+MAX_DECODED_BYTES+" bytes");
+					}
+					s.buffer = Arrays.copyOf(s.buffer, Math.min(s.buffer.length * 2, MAX_DECODED_BYTES));
+				}
+
+				int n = inflater.inflate(s.buffer, decoded, s.buffer.length - decoded);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+					throw new MqttException("Truncated payload");
+				}
+				decoded += n;
+			}
+			return Arrays.copyOf(s.buffer, decoded);
+		}
+		catch(DataFormatException e)
+		{
+			throw new MqttException(e);
+		}
+	}
+
+	public String toString()
+	{
+		return getClass().getSimpleName()+"{id="+id+"}";
+	}
+}
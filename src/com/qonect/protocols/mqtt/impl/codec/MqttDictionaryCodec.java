@@ -0,0 +1,144 @@
+package com.qonect.protocols.mqtt.impl.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/*
+ * Deflate primed with a dictionary of strings that are common in a topic's
+ *  payloads - JSON keys, enum values, units. Small payloads have too little
+ *  repetition of their own for plain deflate to find; with a dictionary
+ *  they can refer back to it from the first byte.
+ *
+ *  Publisher and subscribers must use the same dictionary under the same
+ *  ID; a new dictionary should get a new ID, so that messages compressed
+ *  with the old one are not decoded with the new.
+ */
+public class MqttDictionaryCodec extends MqttDeflateCodec
+{
+	public static final int DEFAULT_DICTIONARY_SIZE = 2 * 1024;
+
+	// length of the strings counted when training; long enough to be worth
+	//  a back reference, short enough to recur across messages
+	private static final int GRAM = 8;
+
+	private final byte[] dictionary;
+
+	public MqttDictionaryCodec(int id, byte[] dictionary)
+	{
+		this(id, Deflater.DEFAULT_COMPRESSION, dictionary);
+	}
+
+	public MqttDictionaryCodec(int id, int level, byte[] dictionary)
+	{
+		super(id, level, dictionary);
+		this.dictionary = dictionary;
+	}
+
+	public byte[] getDictionary()
+	{
+		return dictionary.clone();
+	}
+
+	/*
+	 * Builds a dictionary of at most maxSize bytes from sample payloads:
+	 *  the byte strings that occur in the most samples, merged where they
+	 *  overlap, with the most common last - deflate reaches the end of the
+	 *  dictionary with the shortest distances.
+	 */
+	public static byte[] train(List<byte[]> samples, int maxSize)
+	{
+		// in how many samples every string occurs
+		Map<String, int[]> counts = new HashMap<String, int[]>();
+		for(byte[] sample : samples)
+		{
+			Map<String, Boolean> seen = new HashMap<String, Boolean>();
+			for(int i = 0; i + GRAM <= sample.length; i++)
+			{
+				String gram = latin1(sample, i, GRAM);
+				if(seen.put(gram, Boolean.TRUE) != null){
+					continue;
+				}
+				int[] count = counts.get(gram);
+				if(count == null){
+					counts.put(gram, new int[]{ 1 });
+				}
+				else {
+					count[0]++;
+				}
+			}
+		}
+
+		List<Map.Entry<String, int[]>> ranked = new ArrayList<Map.Entry<String, int[]>>(counts.entrySet());
+		Collections.sort(ranked, new Comparator<Map.Entry<String, int[]>>() {
+			@Override
+			public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+				return b.getValue()[0] - a.getValue()[0];
+			}
+		});
+
+		// grow runs of overlapping strings, most common first, so that
+		//  '"temperat' and 'emperature"' end up as one
+		List<StringBuilder> runs = new ArrayList<StringBuilder>();
+		int size = 0;
+		for(Map.Entry<String, int[]> entry : ranked)
+		{
+			// strings seen in a single sample say nothing about the others
+			if(entry.getValue()[0] < 2 || size >= maxSize){
+				break;
+			}
+
+			String gram = entry.getKey();
+			boolean merged = false;
+			for(StringBuilder run : runs)
+			{
+				if(run.indexOf(gram) >= 0){
+					merged = true;
+				}
+				else if(run.substring(run.length() - (GRAM - 1)).equals(gram.substring(0, GRAM - 1))){
+					run.append(gram.charAt(GRAM - 1));
+					size++;
+					merged = true;
+				}
+				else if(run.substring(0, GRAM - 1).equals(gram.substring(1))){
+					run.insert(0, gram.charAt(0));
+					size++;
+					merged = true;
+				}
+				if(merged)break;
+			}
+			if(!merged){
+				runs.add(new StringBuilder(gram));
+				size += GRAM;
+			}
+		}
+
+		// the first runs hold the most common strings; put them last
+		StringBuilder dictionary = new StringBuilder(size);
+		for(int i = runs.size() - 1; i >= 0; i--){
+			dictionary.append(runs.get(i));
+		}
+		int start = Math.max(0, dictionary.length() - maxSize);
+		byte[] bytes = new byte[dictionary.length() - start];
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = (byte)dictionary.charAt(start + i);
+		}
+		return bytes;
+	}
+
+	/*
+	 * One char per byte, so that any byte string round-trips
+	 */
+	private static String latin1(byte[] bytes, int offset, int length)
+	{
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++){
+			chars[i] = (char)(bytes[offset + i] & 0xFF);
+		}
+		return new String(chars);
+	}
+}
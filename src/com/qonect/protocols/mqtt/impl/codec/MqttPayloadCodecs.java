@@ -0,0 +1,127 @@
+package com.qonect.protocols.mqtt.impl.codec;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.impl.MqttTopicFilterMap;
+import com.qonect.protocols.mqtt.interfaces.IMqttPayloadCodec;
+
+/*
+ * Which codec, if any, the payloads of a topic go through.
+ *
+ *  Codecs are assigned to topic filters; where several filters match a
+ *  topic, the one assigned last wins. Encoded payloads carry the codec ID
+ *  in a header byte, 0 meaning the payload follows as it is - which is
+ *  what is sent when a codec does not make a payload smaller. Received
+ *  payloads are decoded by the codec named in the header, so every codec
+ *  a publisher may use has to be known here, not only the assigned one.
+ *  Empty payloads - a retained message being cleared - carry no header
+ *  and pass through both ways as they are.
+ */
+public class MqttPayloadCodecs
+{
+	private static final Logger LOG = Logger.getLogger(MqttPayloadCodecs.class);
+
+	public static final int ID_NONE = 0;
+
+	private static final IMqttPayloadCodec NONE = new IMqttPayloadCodec() {
+		@Override
+		public int getId() {
+			return ID_NONE;
+		}
+		@Override
+		public byte[] encode(byte[] payload, int reserve) {
+			return null;
+		}
+		@Override
+		public byte[] decode(byte[] data, int offset, int length) {
+			byte[] payload = new byte[length];
+			System.arraycopy(data, offset, payload, 0, length);
+			return payload;
+		}
+	};
+
+	// by ID; copy-on-write, so that decoding needs no lock
+	private volatile IMqttPayloadCodec[] codecs = new IMqttPayloadCodec[256];
+	private final MqttTopicFilterMap<IMqttPayloadCodec> assignments = new MqttTopicFilterMap<IMqttPayloadCodec>();
+
+	public MqttPayloadCodecs()
+	{
+		codecs[ID_NONE] = NONE;
+		register(new MqttDeflateCodec());
+	}
+
+	/*
+	 * Makes codec available for decoding, replacing any with the same ID
+	 */
+	public synchronized void register(IMqttPayloadCodec codec)
+	{
+		IMqttPayloadCodec[] copy = codecs.clone();
+		copy[codec.getId()] = codec;
+		codecs = copy;
+	}
+
+	/*
+	 * Encodes payloads of the topics matching filter with codec; null
+	 *  stops encoding and decoding them
+	 */
+	public synchronized void setCodec(String filter, IMqttPayloadCodec codec)
+	{
+		if(codec != null){
+			register(codec);
+		}
+		assignments.put(filter, codec);
+
+		LOG.debug("setCodec(filter="+filter+", codec="+codec+")");
+	}
+
+	/*
+	 * The codec assigned to topic, or null if its payloads are sent as they are
+	 */
+	public IMqttPayloadCodec getCodec(String topic)
+	{
+		return assignments.get(topic);
+	}
+
+	/*
+	 * The payload to send for topic; the same array if topic has no codec
+	 *  or payload is empty
+	 */
+	public byte[] encode(String topic, byte[] payload) throws MqttException
+	{
+		if(payload.length == 0){
+			return payload;
+		}
+		IMqttPayloadCodec codec = getCodec(topic);
+		if(codec == null){
+			return payload;
+		}
+
+		byte[] encoded = codec.encode(payload, 1);
+		if(encoded == null){
+			encoded = new byte[payload.length + 1];
+			encoded[0] = ID_NONE;
+			System.arraycopy(payload, 0, encoded, 1, payload.length);
+			return encoded;
+		}
+		encoded[0] = (byte)codec.getId();
+		return encoded;
+	}
+
+	/*
+	 * The payload as it was published; the same array if topic has no codec
+	 *  or payload is empty
+	 */
+	public byte[] decode(String topic, byte[] payload) throws MqttException
+	{
+		if(payload.length == 0 || getCodec(topic) == null){
+			return payload;
+		}
+
+		IMqttPayloadCodec codec = codecs[payload[0] & 0xFF];
+		if(codec == null){
+			throw new MqttException("Unknown codec "+(payload[0] & 0xFF)+" on "+topic);
+		}
+		return codec.decode(payload, 1, payload.length - 1);
+	}
+}
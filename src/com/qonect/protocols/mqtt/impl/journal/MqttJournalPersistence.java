@@ -0,0 +1,667 @@
+package com.qonect.protocols.mqtt.impl.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.qonect.protocols.mqtt.impl.MqttPersistenceException;
+import com.qonect.protocols.mqtt.interfaces.IMqttPersistence;
+
+/*
+ * Disk-backed IMqttPersistence built on an append-only, segmented journal.
+ *
+ *  - put/remove append a record to the active segment and update an
+ *    in-memory index of key -> location; no file is created per message
+ *  - a background thread flushes and fsyncs the journal at most every
+ *    syncIntervalMillis (group commit), so a record is durable shortly
+ *    after put returns rather than before
+ *  - once the active segment exceeds segmentSize it is sealed; sealed
+ *    segments without live records are deleted, sparse ones are compacted
+ *    by copying their live records forward
+ *  - open replays all segments to rebuild the index, dropping a torn tail
+ */
+public class MqttJournalPersistence implements IMqttPersistence
+{
+	private static final Logger LOG = Logger.getLogger(MqttJournalPersistence.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 50;
+	public static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+
+	// flush early once this many bytes are staged in memory
+	private static final int FLUSH_THRESHOLD = 256 * 1024;
+
+	private final File baseDirectory;
+	private final long segmentSize;
+	private final long syncIntervalMillis;
+	private final float compactionThreshold;
+
+	private final Object lock = new Object();
+
+	private File directory;
+	private final Map<String, Location> index = new HashMap<String, Location>();
+	private final TreeMap<Long, MqttJournalSegment> segments = new TreeMap<Long, MqttJournalSegment>();
+	private final List<MqttJournalSegment> unsynced = new ArrayList<MqttJournalSegment>();
+	private MqttJournalSegment active;
+	private boolean dirty;
+
+	// the current maintenance thread; a replaced worker exits on its next wake-up
+	private Thread worker;
+
+	private static final class Location
+	{
+		final MqttJournalSegment segment;
+		final long offset;
+		final int recordLength;
+		final int dataOffset;
+		final int dataLength;
+
+		Location(MqttJournalSegment segment, long offset, int recordLength, int dataOffset, int dataLength)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+		}
+	}
+
+	public MqttJournalPersistence(File baseDirectory)
+	{
+		this(baseDirectory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	public MqttJournalPersistence(File baseDirectory, long segmentSize, long syncIntervalMillis,
+		float compactionThreshold)
+	{
+		this.baseDirectory = baseDirectory;
+		this.segmentSize = segmentSize;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	@Override
+	public void open(String clientId, String serverURI) throws MqttPersistenceException
+	{
+		LOG.debug("open(clientId="+clientId+", serverURI="+serverURI+")");
+
+		synchronized(lock)
+		{
+			if(directory != null){
+				closeLocked();
+			}
+
+			File dir = new File(baseDirectory, sanitize(clientId)+"-"+sanitize(serverURI));
+			if(!dir.exists() && !dir.mkdirs()){
+				throw new MqttPersistenceException("Unable to create "+dir.getPath());
+			}
+			directory = dir;
+
+			try
+			{
+				recover();
+			}
+			catch (IOException e)
+			{
+				closeLocked();
+				throw new MqttPersistenceException("Unable to recover journal in "+dir.getPath(), e);
+			}
+
+			worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runWorker();
+				}
+			}, "MqttJournal");
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	@Override
+	public void close() throws MqttPersistenceException
+	{
+		LOG.debug("close");
+
+		Thread stopped;
+		synchronized(lock)
+		{
+			stopped = worker;
+			worker = null;
+			lock.notifyAll();
+		}
+
+		// let the worker finish its current fsync before releasing the files
+		if(stopped != null && stopped != Thread.currentThread()){
+			try
+			{
+				stopped.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized(lock)
+		{
+			if(directory == null)return;
+			try
+			{
+				syncLocked();
+			}
+			catch (IOException e)
+			{
+				throw new MqttPersistenceException("Unable to sync journal", e);
+			}
+			finally
+			{
+				closeLocked();
+			}
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] header, int headerOffset, int headerLength,
+		byte[] payload, int payloadOffset, int payloadLength) throws MqttPersistenceException
+	{
+		byte[] keyBytes = key.getBytes(UTF8);
+
+		synchronized(lock)
+		{
+			checkOpen();
+			try
+			{
+				append(key, keyBytes, header, headerOffset, headerLength,
+					payload, payloadOffset, payloadLength);
+			}
+			catch (IOException e)
+			{
+				throw new MqttPersistenceException("Unable to write "+key, e);
+			}
+		}
+	}
+
+	@Override
+	public byte[] get(String key) throws MqttPersistenceException
+	{
+		synchronized(lock)
+		{
+			checkOpen();
+			Location location = index.get(key);
+			if(location == null){
+				return null;
+			}
+			try
+			{
+				return location.segment.read(location.offset + location.dataOffset, location.dataLength);
+			}
+			catch (IOException e)
+			{
+				throw new MqttPersistenceException("Unable to read "+key, e);
+			}
+		}
+	}
+
+	@Override
+	public void remove(String key) throws MqttPersistenceException
+	{
+		byte[] keyBytes = key.getBytes(UTF8);
+
+		synchronized(lock)
+		{
+			checkOpen();
+			Location location = index.remove(key);
+			if(location == null){
+				return;
+			}
+			try
+			{
+				rollIfFull();
+				active.append(MqttJournalSegment.TYPE_REMOVE, keyBytes, null, 0, 0, null, 0, 0);
+				markDead(location);
+				shadow(active, location);
+				afterAppend();
+			}
+			catch (IOException e)
+			{
+				throw new MqttPersistenceException("Unable to remove "+key, e);
+			}
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) throws MqttPersistenceException
+	{
+		synchronized(lock)
+		{
+			checkOpen();
+			return index.containsKey(key);
+		}
+	}
+
+	@Override
+	public Enumeration<String> keys() throws MqttPersistenceException
+	{
+		synchronized(lock)
+		{
+			checkOpen();
+			return Collections.enumeration(new ArrayList<String>(index.keySet()));
+		}
+	}
+
+	@Override
+	public void clear() throws MqttPersistenceException
+	{
+		LOG.debug("clear");
+
+		synchronized(lock)
+		{
+			checkOpen();
+			index.clear();
+			unsynced.clear();
+			for(MqttJournalSegment segment : segments.values()){
+				segment.delete();
+			}
+			segments.clear();
+			active = null;
+			try
+			{
+				active = createSegment(0);
+			}
+			catch (IOException e)
+			{
+				throw new MqttPersistenceException("Unable to reset journal", e);
+			}
+		}
+	}
+
+	/*
+	 * Number of live keys, mainly for diagnostics and benchmarks.
+	 */
+	public int size()
+	{
+		synchronized(lock)
+		{
+			return index.size();
+		}
+	}
+
+	/*
+	 * Number of segment files currently backing the journal.
+	 */
+	public int getSegmentCount()
+	{
+		synchronized(lock)
+		{
+			return segments.size();
+		}
+	}
+
+	/************************************************************************/
+	/*    write path                                                        */
+	/************************************************************************/
+
+	private void append(String key, byte[] keyBytes, byte[] header, int headerOffset, int headerLength,
+		byte[] payload, int payloadOffset, int payloadLength) throws IOException
+	{
+		rollIfFull();
+
+		int dataLength = headerLength + payloadLength;
+		long offset = active.append(MqttJournalSegment.TYPE_PUT, keyBytes,
+			header, headerOffset, headerLength, payload, payloadOffset, payloadLength);
+		Location location = new Location(active, offset,
+			MqttJournalSegment.RECORD_OVERHEAD + keyBytes.length + dataLength,
+			4 + 1 + 2 + keyBytes.length, dataLength);
+
+		active.liveRecords++;
+		active.liveBytes += location.recordLength;
+
+		Location previous = index.put(key, location);
+		if(previous != null){
+			markDead(previous);
+			shadow(active, previous);
+		}
+		afterAppend();
+	}
+
+	private void afterAppend() throws IOException
+	{
+		dirty = true;
+		if(active.buffered() >= FLUSH_THRESHOLD){
+			active.flush();
+			lock.notifyAll();
+		}
+	}
+
+	private void markDead(Location location)
+	{
+		location.segment.liveRecords--;
+		location.segment.liveBytes -= location.recordLength;
+	}
+
+	/*
+	 * Records that a record in segment supersedes one in an older segment;
+	 *  the older one would come back if segment were deleted first.
+	 */
+	private static void shadow(MqttJournalSegment segment, Location superseded)
+	{
+		if(superseded.segment != segment){
+			segment.maxShadowedSegmentId =
+				Math.max(segment.maxShadowedSegmentId, superseded.segment.id);
+		}
+	}
+
+	private void rollIfFull() throws IOException
+	{
+		if(active.size() < segmentSize)return;
+
+		active.flush();
+		unsynced.add(active);
+		active = createSegment(active.id + 1);
+	}
+
+	private MqttJournalSegment createSegment(long id) throws IOException
+	{
+		MqttJournalSegment segment = new MqttJournalSegment(directory, id);
+		segments.put(Long.valueOf(id), segment);
+		return segment;
+	}
+
+	/************************************************************************/
+	/*    background sync and compaction                                    */
+	/************************************************************************/
+
+	private void runWorker()
+	{
+		while(true)
+		{
+			synchronized(lock)
+			{
+				if(worker != Thread.currentThread())return;
+				try
+				{
+					lock.wait(syncIntervalMillis);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				if(worker != Thread.currentThread())return;
+			}
+
+			try
+			{
+				sync();
+				compact();
+			}
+			catch (IOException e)
+			{
+				LOG.error("journal maintenance failed", e);
+			}
+		}
+	}
+
+	/*
+	 * Flushes staged records under the lock, then fsyncs outside of it so
+	 *  that writers are not held up by the disk.
+	 */
+	private void sync() throws IOException
+	{
+		List<MqttJournalSegment> toSync;
+		synchronized(lock)
+		{
+			if(!dirty || active == null)return;
+			active.flush();
+			toSync = new ArrayList<MqttJournalSegment>(unsynced);
+			toSync.add(active);
+			unsynced.clear();
+			dirty = false;
+		}
+
+		for(MqttJournalSegment segment : toSync){
+			try
+			{
+				segment.sync();
+			}
+			catch (IOException e)
+			{
+				// the segment may have been deleted by clear() in the meantime
+				synchronized(lock)
+				{
+					if(segments.get(Long.valueOf(segment.id)) == segment){
+						throw e;
+					}
+				}
+			}
+		}
+	}
+
+	private void syncLocked() throws IOException
+	{
+		for(MqttJournalSegment segment : unsynced){
+			segment.sync();
+		}
+		unsynced.clear();
+		if(active != null){
+			active.flush();
+			active.sync();
+		}
+		dirty = false;
+	}
+
+	/*
+	 * Deletes sealed segments that no longer hold live records and copies the
+	 *  live records of at most one sparse segment forward. A segment that
+	 *  supersedes records in older segments is kept until those are gone,
+	 *  otherwise recovery would resurrect the old values.
+	 */
+	private void compact() throws IOException
+	{
+		MqttJournalSegment candidate = null;
+		List<String> keys = new ArrayList<String>();
+
+		synchronized(lock)
+		{
+			if(active == null)return;
+
+			Iterator<MqttJournalSegment> it = segments.values().iterator();
+			while(it.hasNext())
+			{
+				MqttJournalSegment segment = it.next();
+				if(segment == active || unsynced.contains(segment))continue;
+
+				if(segment.liveRecords == 0){
+					if(isDeletable(segment)){
+						LOG.debug("compact: deleting "+segment);
+						it.remove();
+						segment.delete();
+					}
+				}
+				else if(candidate == null && segment.liveBytes < segment.size() * compactionThreshold){
+					candidate = segment;
+				}
+			}
+
+			if(candidate == null)return;
+
+			for(Map.Entry<String, Location> entry : index.entrySet()){
+				if(entry.getValue().segment == candidate){
+					keys.add(entry.getKey());
+				}
+			}
+		}
+
+		LOG.debug("compact: moving "+keys.size()+" records out of "+candidate);
+
+		for(String key : keys)
+		{
+			Location location;
+			synchronized(lock)
+			{
+				location = index.get(key);
+			}
+			if(location == null || location.segment != candidate)continue;
+
+			// sealed segments are immutable, so this read needs no lock
+			byte[] data = candidate.read(location.offset + location.dataOffset, location.dataLength);
+
+			synchronized(lock)
+			{
+				if(active == null || index.get(key) != location)continue;
+				append(key, key.getBytes(UTF8), data, 0, data.length, null, 0, 0);
+			}
+		}
+
+		// the moved records must be durable before their originals go
+		sync();
+	}
+
+	private boolean isDeletable(MqttJournalSegment segment)
+	{
+		if(segment.maxShadowedSegmentId < 0)return true;
+		return segments.firstKey().longValue() > segment.maxShadowedSegmentId;
+	}
+
+	/************************************************************************/
+	/*    recovery                                                          */
+	/************************************************************************/
+
+	private void recover() throws IOException
+	{
+		long start = System.nanoTime();
+
+		File[] files = directory.listFiles();
+		List<Long> ids = new ArrayList<Long>();
+		if(files != null){
+			for(File file : files){
+				long id = MqttJournalSegment.parseId(file.getName());
+				if(id >= 0){
+					ids.add(Long.valueOf(id));
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		CRC32 crc = new CRC32();
+		for(Long id : ids)
+		{
+			MqttJournalSegment segment = createSegment(id.longValue());
+			byte[] data = segment.readAll();
+			int valid = replay(segment, data, crc);
+			if(valid < data.length){
+				LOG.warn("recover: truncating "+segment.file.getName()+" from "+data.length+" to "+valid+" bytes");
+				segment.truncate(valid);
+			}
+			unsynced.add(segment);
+		}
+
+		if(segments.isEmpty()){
+			active = createSegment(0);
+		}
+		else {
+			active = segments.lastEntry().getValue();
+			unsynced.remove(active);
+		}
+
+		LOG.debug("recover: "+index.size()+" keys from "+segments.size()+" segments in "
+			+((System.nanoTime() - start) / 1000000)+"ms");
+	}
+
+	/*
+	 * Replays the records of one segment into the index and returns the
+	 *  length of its valid prefix.
+	 */
+	private int replay(MqttJournalSegment segment, byte[] data, CRC32 crc)
+	{
+		int p = 0;
+		while(p + MqttJournalSegment.RECORD_OVERHEAD <= data.length)
+		{
+			int bodyLength = MqttJournalSegment.getInt(data, p);
+			if(bodyLength < 3 || p + 4 + bodyLength + 4 > data.length)break;
+
+			int bodyStart = p + 4;
+			crc.reset();
+			crc.update(data, bodyStart, bodyLength);
+			if((int)crc.getValue() != MqttJournalSegment.getInt(data, bodyStart + bodyLength))break;
+
+			byte type = data[bodyStart];
+			int keyLength = ((data[bodyStart + 1] & 0xff) << 8) | (data[bodyStart + 2] & 0xff);
+			if(3 + keyLength > bodyLength)break;
+			String key = new String(data, bodyStart + 3, keyLength, UTF8);
+			int recordLength = 4 + bodyLength + 4;
+
+			if(type == MqttJournalSegment.TYPE_PUT){
+				Location location = new Location(segment, p, recordLength,
+					4 + 3 + keyLength, bodyLength - 3 - keyLength);
+				segment.liveRecords++;
+				segment.liveBytes += recordLength;
+				Location previous = index.put(key, location);
+				if(previous != null){
+					markDead(previous);
+					shadow(segment, previous);
+				}
+			}
+			else if(type == MqttJournalSegment.TYPE_REMOVE){
+				Location previous = index.remove(key);
+				if(previous != null){
+					markDead(previous);
+					shadow(segment, previous);
+				}
+			}
+			else {
+				break;
+			}
+
+			p += recordLength;
+		}
+		return p;
+	}
+
+	/************************************************************************/
+	/*    helpers                                                           */
+	/************************************************************************/
+
+	private void checkOpen() throws MqttPersistenceException
+	{
+		if(active == null){
+			throw new MqttPersistenceException("Journal is not open");
+		}
+	}
+
+	private void closeLocked()
+	{
+		for(MqttJournalSegment segment : segments.values()){
+			segment.close();
+		}
+		segments.clear();
+		unsynced.clear();
+		index.clear();
+		active = null;
+		directory = null;
+		dirty = false;
+	}
+
+	private static String sanitize(String value)
+	{
+		StringBuilder sb = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return sb.toString();
+	}
+}
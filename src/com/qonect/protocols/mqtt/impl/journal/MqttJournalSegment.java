@@ -0,0 +1,241 @@
+package com.qonect.protocols.mqtt.impl.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * One append-only file of the journal. Records are staged in an in-memory
+ *  buffer and written to the file channel in batches; the owning
+ *  MqttJournalPersistence serialises all mutating calls.
+ *
+ *  Record layout:
+ *    int   bodyLength
+ *    byte  type (PUT / REMOVE)
+ *    short keyLength
+ *    byte[keyLength]  key (UTF-8)
+ *    byte[...]        data (PUT only)
+ *    int   crc32 of the body
+ */
+class MqttJournalSegment
+{
+	static final byte TYPE_PUT = 1;
+	static final byte TYPE_REMOVE = 2;
+
+	static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4;
+
+	private static final String SUFFIX = ".journal";
+	private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+	final long id;
+	final File file;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	// bytes already handed to the file channel
+	private long flushedSize;
+
+	// records appended since the last flush
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private int buffered;
+
+	private final CRC32 crc = new CRC32();
+
+	// bookkeeping for compaction
+	int liveRecords;
+	long liveBytes;
+	long maxShadowedSegmentId = -1;
+
+	MqttJournalSegment(File directory, long id) throws IOException
+	{
+		this.id = id;
+		this.file = new File(directory, fileName(id));
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		this.flushedSize = channel.size();
+	}
+
+	static String fileName(long id)
+	{
+		return String.format("%016x%s", id, SUFFIX);
+	}
+
+	static long parseId(String fileName)
+	{
+		if(!fileName.endsWith(SUFFIX) || fileName.length() != 16 + SUFFIX.length()){
+			return -1;
+		}
+		try
+		{
+			return Long.parseLong(fileName.substring(0, 16), 16);
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	long size()
+	{
+		return flushedSize + buffered;
+	}
+
+	int buffered()
+	{
+		return buffered;
+	}
+
+	/*
+	 * Appends a record and returns its offset in the segment. The data
+	 *  starts at offset + 4 + 1 + 2 + key.length.
+	 */
+	long append(byte type, byte[] key, byte[] header, int headerOffset, int headerLength,
+		byte[] payload, int payloadOffset, int payloadLength)
+	{
+		int bodyLength = 1 + 2 + key.length + headerLength + payloadLength;
+		ensureCapacity(4 + bodyLength + 4);
+
+		long offset = size();
+		byte[] b = buffer;
+		int p = buffered;
+
+		putInt(b, p, bodyLength);
+		p += 4;
+		int bodyStart = p;
+		b[p++] = type;
+		b[p++] = (byte)(key.length >>> 8);
+		b[p++] = (byte)key.length;
+		System.arraycopy(key, 0, b, p, key.length);
+		p += key.length;
+		if(headerLength > 0){
+			System.arraycopy(header, headerOffset, b, p, headerLength);
+			p += headerLength;
+		}
+		if(payloadLength > 0){
+			System.arraycopy(payload, payloadOffset, b, p, payloadLength);
+			p += payloadLength;
+		}
+
+		crc.reset();
+		crc.update(b, bodyStart, bodyLength);
+		putInt(b, p, (int)crc.getValue());
+		p += 4;
+
+		buffered = p;
+		return offset;
+	}
+
+	/*
+	 * Reads length bytes at offset, from the staging buffer if they have not
+	 *  been flushed yet.
+	 */
+	byte[] read(long offset, int length) throws IOException
+	{
+		byte[] data = new byte[length];
+		if(offset >= flushedSize){
+			System.arraycopy(buffer, (int)(offset - flushedSize), data, 0, length);
+			return data;
+		}
+
+		ByteBuffer dst = ByteBuffer.wrap(data);
+		long position = offset;
+		while(dst.hasRemaining()){
+			int n = channel.read(dst, position);
+			if(n < 0){
+				throw new IOException("Unexpected end of "+file.getName()+" at "+position);
+			}
+			position += n;
+		}
+		return data;
+	}
+
+	/*
+	 * Hands the staged records to the file channel. Does not fsync.
+	 */
+	void flush() throws IOException
+	{
+		if(buffered == 0)return;
+
+		ByteBuffer src = ByteBuffer.wrap(buffer, 0, buffered);
+		long position = flushedSize;
+		while(src.hasRemaining()){
+			position += channel.write(src, position);
+		}
+		flushedSize = position;
+		buffered = 0;
+	}
+
+	void sync() throws IOException
+	{
+		channel.force(false);
+	}
+
+	void truncate(long size) throws IOException
+	{
+		channel.truncate(size);
+		flushedSize = size;
+		buffered = 0;
+	}
+
+	/*
+	 * Reads the raw file contents for recovery.
+	 */
+	byte[] readAll() throws IOException
+	{
+		return read(0, (int)flushedSize);
+	}
+
+	void close()
+	{
+		try
+		{
+			raf.close();
+		}
+		catch (IOException e)
+		{
+			// nothing left to release
+		}
+	}
+
+	boolean delete()
+	{
+		close();
+		return file.delete();
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if(buffered + extra <= buffer.length)return;
+
+		int capacity = buffer.length * 2;
+		while(capacity < buffered + extra){
+			capacity *= 2;
+		}
+		byte[] grown = new byte[capacity];
+		System.arraycopy(buffer, 0, grown, 0, buffered);
+		buffer = grown;
+	}
+
+	static void putInt(byte[] b, int p, int v)
+	{
+		b[p] = (byte)(v >>> 24);
+		b[p + 1] = (byte)(v >>> 16);
+		b[p + 2] = (byte)(v >>> 8);
+		b[p + 3] = (byte)v;
+	}
+
+	static int getInt(byte[] b, int p)
+	{
+		return ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16)
+			| ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+	}
+
+	public String toString()
+	{
+		return "MqttJournalSegment{"+file.getName()+", size="+size()+", live="+liveRecords+"}";
+	}
+}
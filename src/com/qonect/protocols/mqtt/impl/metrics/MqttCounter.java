@@ -0,0 +1,51 @@
+package com.qonect.protocols.mqtt.impl.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A count that many threads can add to without contending: every thread
+ *  adds to one of several stripes, chosen by its ID, and reading sums them.
+ *  Stripes sit a cache line apart so that threads on different cores do
+ *  not keep taking the line from each other.
+ */
+public class MqttCounter
+{
+	// longs per cache line
+	private static final int PAD = 8;
+
+	private final AtomicLongArray stripes;
+	private final int mask;
+
+	public MqttCounter()
+	{
+		// a power of two at least the number of cores, at most 16
+		int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+		this.mask = Math.min(Integer.highestOneBit(cores * 2 - 1), 16) - 1;
+		this.stripes = new AtomicLongArray((mask + 1) * PAD);
+	}
+
+	public void increment()
+	{
+		add(1);
+	}
+
+	public void add(long delta)
+	{
+		stripes.addAndGet(stripe(), delta);
+	}
+
+	public long get()
+	{
+		long sum = 0;
+		for(int i = 0; i <= mask; i++){
+			sum += stripes.get(i * PAD);
+		}
+		return sum;
+	}
+
+	private int stripe()
+	{
+		long id = Thread.currentThread().getId();
+		return (int)((id * 0x9E3779B97F4A7C15L) >>> 59 & mask) * PAD;
+	}
+}
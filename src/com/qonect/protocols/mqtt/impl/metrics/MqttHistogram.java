@@ -0,0 +1,119 @@
+package com.qonect.protocols.mqtt.impl.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Distribution of non-negative values, such as latencies in nanoseconds,
+ *  in the manner of HdrHistogram: every power of two is split into
+ *  2^precisionBits buckets of equal width, so any value is known to
+ *  within 1/2^precisionBits of itself, over the whole range of a long,
+ *  in a fixed number of buckets. Recording is an array index computed
+ *  from the value's leading zeros and an atomic increment - no locks and
+ *  no allocation.
+ */
+public class MqttHistogram
+{
+	// 16 buckets per power of two: values within about 6%
+	public static final int DEFAULT_PRECISION_BITS = 4;
+
+	private final int precisionBits;
+	private final int subBuckets;
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public MqttHistogram()
+	{
+		this(DEFAULT_PRECISION_BITS);
+	}
+
+	public MqttHistogram(int precisionBits)
+	{
+		this.precisionBits = precisionBits;
+		this.subBuckets = 1 << precisionBits;
+		this.counts = new AtomicLongArray((64 - precisionBits) * subBuckets);
+	}
+
+	/*
+	 * Negative values count as 0
+	 */
+	public void record(long value)
+	{
+		if(value < 0){
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while(value > (current = max.get())){
+			if(max.compareAndSet(current, value))break;
+		}
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long n = count.get();
+		return n > 0 ? (double)sum.get() / n : 0;
+	}
+
+	/*
+	 * The value below which the given share (0 to 100) of the recorded
+	 *  values fall, as the highest value of its bucket; 0 if empty
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long total = 0;
+		for(int i = 0; i < counts.length(); i++){
+			total += counts.get(i);
+		}
+		if(total == 0){
+			return 0;
+		}
+
+		long wanted = Math.max(1, (long)Math.ceil(total * Math.min(100, percentile) / 100));
+		long seen = 0;
+		for(int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+			if(seen >= wanted){
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	int indexOf(long value)
+	{
+		if(value < subBuckets){
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - precisionBits;
+		int sub = (int)(value >>> shift) - subBuckets;
+		return (shift + 1) * subBuckets + sub;
+	}
+
+	long highestValueOf(int index)
+	{
+		if(index < subBuckets){
+			return index;
+		}
+		int shift = index / subBuckets - 1;
+		long lowest = (long)(subBuckets + index % subBuckets) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,158 @@
+package com.qonect.protocols.mqtt.impl.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Named counters, histograms and gauges for the client and the Service,
+ *  kept for the life of the process or Service.
+ *
+ *  Instruments are looked up once, by whoever records into them, and
+ *  kept; asking for the same name again returns the same instrument, so
+ *  that a client created after a reconnect adds to what the previous one
+ *  recorded. Latencies are recorded in nanoseconds and shown in
+ *  microseconds.
+ */
+public class MqttMetrics
+{
+	// client
+	public static final String PUBLISH_LATENCY = "publish.latency";
+	public static final String DELIVERY_LATENCY = "delivery.latency";
+	public static final String INBOUND_MESSAGES = "inbound.messages";
+	public static final String INBOUND_BYTES = "inbound.bytes";
+	public static final String CALLBACK_TIME = "inbound.callback";
+	public static final String CONNECTS = "connect.count";
+	public static final String CONNECT_TIME = "connect.time";
+	public static final String CONNECTIONS_LOST = "connect.lost";
+	public static final String PING_RTT = "ping.rtt";
+
+	// Service
+	public static final String INBOUND_DEPTH = "inbound.depth";
+	public static final String INBOUND_DROPPED = "inbound.dropped";
+	public static final String INBOUND_CONFLATED = "inbound.conflated";
+	public static final String INBOUND_DUPLICATES = "inbound.duplicates";
+	public static final String INBOUND_UNIQUE = "inbound.unique";
+	public static final String OUTBOUND_DEPTH = "outbound.depth";
+	public static final String ACTOR_MERGED = "actor.merged";
+	public static final String UPTIME = "connection.uptime";
+	public static final String AVAILABILITY = "connection.availability";
+	// connections got back after a loss, unlike connect.count, and in
+	//  milliseconds from the loss until it was back
+	public static final String RECONNECTS = "reconnect.count";
+	public static final String RECONNECT_TIME_LAST = "reconnect.last";
+	public static final String RECONNECT_TIME_MAX = "reconnect.max";
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	public interface Gauge
+	{
+		/*
+		 * Read when the metrics are dumped, on the dumping thread
+		 */
+		public long get();
+	}
+
+	private final ConcurrentMap<String, MqttCounter> counters = new ConcurrentHashMap<String, MqttCounter>();
+	private final ConcurrentMap<String, MqttHistogram> histograms = new ConcurrentHashMap<String, MqttHistogram>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final long createdNanos = System.nanoTime();
+
+	public MqttCounter counter(String name)
+	{
+		MqttCounter counter = counters.get(name);
+		if(counter == null){
+			MqttCounter created = new MqttCounter();
+			counter = counters.putIfAbsent(name, created);
+			if(counter == null)counter = created;
+		}
+		return counter;
+	}
+
+	public MqttHistogram histogram(String name)
+	{
+		MqttHistogram histogram = histograms.get(name);
+		if(histogram == null){
+			MqttHistogram created = new MqttHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if(histogram == null)histogram = created;
+		}
+		return histogram;
+	}
+
+	/*
+	 * Replaces any gauge of the same name
+	 */
+	public void gauge(String name, Gauge gauge)
+	{
+		gauges.put(name, gauge);
+	}
+
+	public void removeGauge(String name)
+	{
+		gauges.remove(name);
+	}
+
+	public Map<String, MqttCounter> getCounters()
+	{
+		return counters;
+	}
+
+	public Map<String, MqttHistogram> getHistograms()
+	{
+		return histograms;
+	}
+
+	public Map<String, Gauge> getGauges()
+	{
+		return gauges;
+	}
+
+	/*
+	 * Everything, one instrument per line, sorted by name; counters with
+	 *  their rate per second since this was created
+	 */
+	public String dump()
+	{
+		double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos)) / 1000.0;
+		StringBuilder sb = new StringBuilder();
+
+		for(String name : sorted(counters.keySet())){
+			long value = counters.get(name).get();
+			sb.append(name).append(" count=").append(value)
+				.append(" rate=").append(String.format("%.2f", value / seconds)).append("/s\n");
+		}
+
+		for(String name : sorted(histograms.keySet())){
+			MqttHistogram h = histograms.get(name);
+			sb.append(name).append(" count=").append(h.getCount())
+				.append(" mean=").append(TimeUnit.NANOSECONDS.toMicros((long)h.getMean())).append("us");
+			for(double p : PERCENTILES){
+				sb.append(" p").append(p == (long)p ? String.valueOf((long)p) : String.valueOf(p)).append('=')
+					.append(TimeUnit.NANOSECONDS.toMicros(h.getValueAtPercentile(p))).append("us");
+			}
+			sb.append(" max=").append(TimeUnit.NANOSECONDS.toMicros(h.getMax())).append("us\n");
+		}
+
+		for(String name : sorted(gauges.keySet())){
+			Gauge gauge = gauges.get(name);
+			if(gauge == null)continue;
+			sb.append(name).append(' ').append(gauge.get()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public String toString()
+	{
+		return "MqttMetrics{counters="+counters.size()+", histograms="+histograms.size()+", gauges="+gauges.size()+"}";
+	}
+
+	private static SortedSet<String> sorted(Set<String> names)
+	{
+		return new TreeSet<String>(names);
+	}
+}
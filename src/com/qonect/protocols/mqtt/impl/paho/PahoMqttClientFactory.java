@@ -1,12 +1,34 @@
 package com.qonect.protocols.mqtt.impl.paho;
 
 import com.qonect.protocols.mqtt.impl.MqttException;
+import com.qonect.protocols.mqtt.impl.metrics.MqttMetrics;
 import com.qonect.protocols.mqtt.interfaces.IMqttClient;
 import com.qonect.protocols.mqtt.interfaces.IMqttClientFactory;
 import com.qonect.protocols.mqtt.interfaces.IMqttPersistence;
 
 public class PahoMqttClientFactory implements IMqttClientFactory
 {	
+	private int maxInFlight;
+	
+	// shared by every client this creates
+	private MqttMetrics metrics;
+	
+	public PahoMqttClientFactory()
+	{
+		this(PahoMqttClientWrapper.DEFAULT_MAX_IN_FLIGHT);
+	}
+	
+	public PahoMqttClientFactory(int maxInFlight)
+	{
+		this(maxInFlight, new MqttMetrics());
+	}
+	
+	public PahoMqttClientFactory(int maxInFlight, MqttMetrics metrics)
+	{
+		this.maxInFlight = maxInFlight;
+		this.metrics = metrics;
+	}
+	
 	@Override
 	public IMqttClient create(String host, int port, String clientId,
 		IMqttPersistence persistence) throws MqttException
@@ -18,6 +40,6 @@ public class PahoMqttClientFactory implements IMqttClientFactory
 		
 		// TODO Auto-generated method stub
 		return new PahoMqttClientWrapper(
-			"tcp://"+host+":"+port, clientId, persistenceImpl);
+			"tcp://"+host+":"+port, clientId, persistenceImpl, maxInFlight, metrics);
 	}
 }
@@ -10,66 +10,177 @@ import com.qonect.protocols.mqtt.interfaces.IMqttPersistence;
 
 public class PahoMqttClientPersistence implements MqttClientPersistence
 {
+	private IMqttPersistence persistence;
+
 	public PahoMqttClientPersistence(IMqttPersistence persistence)
 	{
-		// TODO Auto-generated constructor stub
+		this.persistence = persistence;
 	}
 
 	@Override
 	public void clear() throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-
+		try
+		{
+			persistence.clear();
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
 	@Override
 	public void close() throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-
+		try
+		{
+			persistence.close();
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
 	@Override
-	public boolean containsKey(String arg0) throws MqttPersistenceException
+	public boolean containsKey(String key) throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-		return false;
+		try
+		{
+			return persistence.containsKey(key);
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
 	@Override
-	public MqttPersistable get(String arg0) throws MqttPersistenceException
+	public MqttPersistable get(String key) throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-		return null;
+		byte[] data;
+		try
+		{
+			data = persistence.get(key);
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
+
+		if(data == null){
+			return null;
+		}
+
+		// the client re-parses header and payload as one stream, so the
+		//  stored record can be handed back as a single header block
+		return new PersistedRecord(data);
 	}
 
 	@Override
 	public Enumeration keys() throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-		return null;
+		try
+		{
+			return persistence.keys();
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
 	@Override
-	public void open(String arg0, String arg1) throws MqttPersistenceException
+	public void open(String clientId, String serverURI) throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-
+		try
+		{
+			persistence.open(clientId, serverURI);
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
 	@Override
-	public void put(String arg0, MqttPersistable arg1)
+	public void put(String key, MqttPersistable persistable)
 		throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-
+		try
+		{
+			byte[] payload = persistable.getPayloadBytes();
+			persistence.put(key,
+				persistable.getHeaderBytes(),
+				persistable.getHeaderOffset(),
+				persistable.getHeaderLength(),
+				payload,
+				payload == null ? 0 : persistable.getPayloadOffset(),
+				payload == null ? 0 : persistable.getPayloadLength());
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
 	@Override
-	public void remove(String arg0) throws MqttPersistenceException
+	public void remove(String key) throws MqttPersistenceException
 	{
-		// TODO Auto-generated method stub
-
+		try
+		{
+			persistence.remove(key);
+		}
+		catch (com.qonect.protocols.mqtt.impl.MqttPersistenceException e)
+		{
+			throw new MqttPersistenceException(e);
+		}
 	}
 
+	private static class PersistedRecord implements MqttPersistable
+	{
+		private byte[] data;
+
+		public PersistedRecord(byte[] data)
+		{
+			this.data = data;
+		}
+
+		@Override
+		public byte[] getHeaderBytes()
+		{
+			return data;
+		}
+
+		@Override
+		public int getHeaderLength()
+		{
+			return data.length;
+		}
+
+		@Override
+		public int getHeaderOffset()
+		{
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes()
+		{
+			return null;
+		}
+
+		@Override
+		public int getPayloadLength()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getPayloadOffset()
+		{
+			return 0;
+		}
+	}
 }
@@ -1,5 +1,17 @@
 package com.qonect.protocols.mqtt.impl.paho;
 
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
 import org.apache.log4j.Logger;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
@@ -9,12 +21,22 @@ import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+import org.eclipse.paho.client.mqttv3.internal.MqttDeliveryTokenImpl;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPingReq;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttSuback;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttSubscribe;
 
 import com.qonect.protocols.mqtt.impl.MqttException;
 import com.qonect.protocols.mqtt.impl.MqttPersistenceException;
+import com.qonect.protocols.mqtt.impl.MqttSubscribeException;
+import com.qonect.protocols.mqtt.impl.metrics.MqttCounter;
+import com.qonect.protocols.mqtt.impl.metrics.MqttHistogram;
+import com.qonect.protocols.mqtt.impl.metrics.MqttMetrics;
 import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
 import com.qonect.protocols.mqtt.interfaces.IMqttClient;
 import com.qonect.protocols.mqtt.interfaces.IMqttConnectOptions;
+import com.qonect.protocols.mqtt.interfaces.IMqttDeliveryToken;
 import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
 import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
 
@@ -24,91 +46,397 @@ public class PahoMqttClientWrapper implements IMqttClient
 	
 	private static final String TOPIC_PING = "PING";	
 	
+	// how long ping() waits for the broker to answer
+	public static final long DEFAULT_PING_TIMEOUT_MILLIS = 15 * 1000;
+	
+	// matches the number of messages the Paho client keeps in flight itself
+	public static final int DEFAULT_MAX_IN_FLIGHT = 10;
+	
+	// topics are subscribed to in SUBSCRIBEs of about this many bytes, all 
+	//  sent before waiting for the first SUBACK
+	public static final int DEFAULT_SUBSCRIBE_CHUNK_BYTES = 4 * 1024;
+	// how long subscribe() waits for each SUBACK
+	public static final long DEFAULT_SUBSCRIBE_TIMEOUT_MILLIS = 30 * 1000;
+	
 	private MqttClient client;
 	
+	private volatile IMqttCallback callback;
+	
+	// QoS 1/2 publishes that have not been acknowledged yet
+	private final Semaphore inFlightWindow;
+	
+	private final Map<MqttDeliveryToken, PendingDelivery> pendingDeliveries = 
+		new HashMap<MqttDeliveryToken, PendingDelivery>();
+	
+	// deliveries reported before publishAsync got to register them; only
+	//  collected while such a call is in progress
+	private final Set<MqttDeliveryToken> earlyDeliveries = new HashSet<MqttDeliveryToken>();
+	private int asyncPublishesInProgress;
+	
+	// the client library has no public ping, nor a way to send a SUBSCRIBE
+	//  without waiting for its SUBACK, so PINGREQ and pipelined SUBSCRIBEs
+	//  go out through its internals; null if they could not be found, see
+	//  resolveInternals()
+	private ClientComms comms;
+	// the client keeps one token for every PINGREQ, completed by the first
+	//  PINGRESP and never reset, so ping() puts in a fresh one each time
+	private Object tokenStore;
+	private Field storePingToken;
+	private Constructor<MqttDeliveryTokenImpl> newToken;
+	private Object trace;
+	
+	// where a SUBACK keeps the granted QoS; null if they could not be 
+	//  found, in which case what was asked for counts as granted
+	private Field tokenResponse;
+	private Field subackGrantedQos;
+	
+	private volatile int subscribeChunkBytes = DEFAULT_SUBSCRIBE_CHUNK_BYTES;
+	
+	// looked up once, so that recording is only arithmetic
+	private final MqttHistogram publishLatency;
+	private final MqttHistogram deliveryLatency;
+	private final MqttCounter inboundMessages;
+	private final MqttCounter inboundBytes;
+	private final MqttHistogram callbackTime;
+	private final MqttCounter connects;
+	private final MqttHistogram connectTime;
+	private final MqttCounter connectionsLost;
+	private final MqttHistogram pingRtt;
+	
+	// package-private so that benchmarks can drive it without a broker
+	final MqttCallback pahoCallback = new MqttCallback()
+	{			
+		@Override
+		public void messageArrived(MqttTopic topic, MqttMessage message)
+			throws Exception
+		{
+			inboundMessages.increment();
+			byte[] payload = message.getPayload();
+			if(payload != null){
+				inboundBytes.add(payload.length);
+			}
+			
+			IMqttCallback c = callback;
+			if(c != null){
+				long start = System.nanoTime();
+				try
+				{
+					c.messageArrived(
+						new PahoMqttTopicWrapper(topic, message.getQos()), 
+						new PahoMqttMessageWrapper(message));
+				}
+				finally
+				{
+					callbackTime.record(System.nanoTime() - start);
+				}
+			}
+		}
+		
+		@Override
+		public void deliveryComplete(MqttDeliveryToken token)
+		{
+			completeDelivery(token);
+		}
+		
+		@Override
+		public void connectionLost(Throwable throwable)
+		{
+			connectionsLost.increment();
+			failPendingDeliveries(throwable);
+			
+			IMqttCallback c = callback;
+			if(c != null){
+				c.connectionLost(throwable);
+			}
+		}
+	};
+	
+	private static class PendingDelivery
+	{
+		final com.qonect.protocols.mqtt.impl.MqttDeliveryToken token;
+		final boolean windowed;
+		final long startNanos;
+		
+		PendingDelivery(com.qonect.protocols.mqtt.impl.MqttDeliveryToken token, boolean windowed, long startNanos)
+		{
+			this.token = token;
+			this.windowed = windowed;
+			this.startNanos = startNanos;
+		}
+	}
+	
 	public PahoMqttClientWrapper(String serverURI, String clientId, 
 		MqttClientPersistence persistence) throws MqttException
 	{
-		LOG.debug("init(serverURI="+serverURI+", clientId="+clientId+", persistence="+persistence+")");
+		this(serverURI, clientId, persistence, DEFAULT_MAX_IN_FLIGHT);
+	}
+	
+	public PahoMqttClientWrapper(String serverURI, String clientId, 
+		MqttClientPersistence persistence, int maxInFlight) throws MqttException
+	{
+		this(serverURI, clientId, persistence, maxInFlight, new MqttMetrics());
+	}
+	
+	/*
+	 * Records into metrics, which may be shared with other clients
+	 */
+	public PahoMqttClientWrapper(String serverURI, String clientId, 
+		MqttClientPersistence persistence, int maxInFlight, MqttMetrics metrics) throws MqttException
+	{
+		LOG.debug("init(serverURI="+serverURI+", clientId="+clientId+", persistence="+persistence+", maxInFlight="+maxInFlight+")");
+		
+		this.inFlightWindow = new Semaphore(maxInFlight);
+		
+		this.publishLatency = metrics.histogram(MqttMetrics.PUBLISH_LATENCY);
+		this.deliveryLatency = metrics.histogram(MqttMetrics.DELIVERY_LATENCY);
+		this.inboundMessages = metrics.counter(MqttMetrics.INBOUND_MESSAGES);
+		this.inboundBytes = metrics.counter(MqttMetrics.INBOUND_BYTES);
+		this.callbackTime = metrics.histogram(MqttMetrics.CALLBACK_TIME);
+		this.connects = metrics.counter(MqttMetrics.CONNECTS);
+		this.connectTime = metrics.histogram(MqttMetrics.CONNECT_TIME);
+		this.connectionsLost = metrics.counter(MqttMetrics.CONNECTIONS_LOST);
+		this.pingRtt = metrics.histogram(MqttMetrics.PING_RTT);
 		
 		try
 		{
 			this.client = new MqttClient(serverURI, clientId, persistence);
+			
+			// installed up front so that delivery tokens complete even when
+			//  nobody registered a callback
+			this.client.setCallback(pahoCallback);
 		}
 		catch (org.eclipse.paho.client.mqttv3.MqttException e)
 		{
 			throw new MqttException(e);
 		}
+		
+		resolveInternals();
 	}
 
 	@Override
 	public void setCallback(final IMqttCallback callback) throws MqttException
 	{		
-		LOG.debug("setCallback(callback="+callback+")");
-		try
-		{
-			this.client.setCallback(new MqttCallback()
-			{			
-
-				@Override
-				public void messageArrived(MqttTopic topic, MqttMessage message)
-					throws Exception
-				{
-					callback.messageArrived(
-						new PahoMqttTopicWrapper(topic), 
-						new PahoMqttMessageWrapper(message));
-				}
-				
-				@Override
-				public void deliveryComplete(MqttDeliveryToken token)
-				{
-					LOG.debug("deliveryComplete: "+token);
-				}
-				
-				@Override
-				public void connectionLost(Throwable throwable)
-				{
-					callback.connectionLost(throwable);
-				}
-			});
-		}
-		catch (org.eclipse.paho.client.mqttv3.MqttException e)
-		{
-			throw new MqttException(e);
+		if(LOG.isDebugEnabled()){
+			LOG.debug("setCallback(callback="+callback+")");
 		}
+		this.callback = callback;
 	}
 
 	@Override
 	public void subscribe(IMqttTopic topic) throws IllegalArgumentException,
 		MqttException
 	{
-		LOG.debug("subscribe(topic="+topic+")");
+		if(LOG.isDebugEnabled()){
+			LOG.debug("subscribe(topic="+topic+")");
+		}
 		subscribe(new IMqttTopic[]{topic});
 	}
 
+	/*
+	 * Sends the topics in SUBSCRIBEs of about subscribeChunkBytes each, 
+	 *  one after the other, then waits for their SUBACKs. Throws 
+	 *  MqttSubscribeException, saying which topics were refused, unless 
+	 *  every one of them was granted.
+	 */
 	@Override
 	public void subscribe(IMqttTopic[] topics) throws IllegalArgumentException,
 		MqttException
 	{
-		LOG.debug("subscribe(topics="+topics+")");
+		if(LOG.isDebugEnabled()){
+			LOG.debug("subscribe(topics="+topics.length+")");
+		}
 		
-		int amount = topics.length;
+		String[] topicarray = new String[topics.length];
+		int[] prioarray = new int[topics.length];
+		toPahoSubscription(topics, topicarray, prioarray);
 		
-		String[] topicarray = new String[amount];
-		int[] prioarray = new int[amount];
+		int[] chunkStarts = chunk(topicarray, subscribeChunkBytes);
+		int chunks = chunkStarts.length - 1;
+		int[] granted = new int[topics.length];
+		Throwable failure = null;
 		
-		for(int i = 0; i < amount; i++){
-			topicarray[i] = topics[i].getName();
-			prioarray[i] = topics[i].getQoS();
+		if(comms == null)
+		{
+			// one at a time, through the public interface
+			for(int c = 0; c < chunks; c++)
+			{
+				int start = chunkStarts[c];
+				int end = chunkStarts[c + 1];
+				try
+				{
+					this.client.subscribe(slice(topicarray, start, end), slice(prioarray, start, end));
+					System.arraycopy(prioarray, start, granted, start, end - start);
+				}
+				catch (org.eclipse.paho.client.mqttv3.MqttException e)
+				{
+					failure = failChunk(failure, e, granted, start, end);
+				}
+			}
+		}
+		else
+		{
+			MqttDeliveryTokenImpl[] tokens = new MqttDeliveryTokenImpl[chunks];
+			for(int c = 0; c < chunks; c++)
+			{
+				int start = chunkStarts[c];
+				int end = chunkStarts[c + 1];
+				try
+				{
+					tokens[c] = comms.sendNoWait(new MqttSubscribe(
+						slice(topicarray, start, end), slice(prioarray, start, end)));
+				}
+				catch (org.eclipse.paho.client.mqttv3.MqttException e)
+				{
+					failure = failChunk(failure, e, granted, start, end);
+				}
+			}
+			
+			for(int c = 0; c < chunks; c++)
+			{
+				if(tokens[c] == null)continue;
+				
+				int start = chunkStarts[c];
+				int end = chunkStarts[c + 1];
+				try
+				{
+					tokens[c].waitForCompletion(DEFAULT_SUBSCRIBE_TIMEOUT_MILLIS);
+					readGrantedQos(tokens[c], prioarray, granted, start, end);
+				}
+				catch (org.eclipse.paho.client.mqttv3.MqttException e)
+				{
+					failure = failChunk(failure, e, granted, start, end);
+				}
+			}
 		}
 		
+		for(int qos : granted){
+			if(qos == MqttSubscribeException.FAILURE){
+				throw new MqttSubscribeException(topics, granted, failure);
+			}
+		}
+	}
+	
+	/*
+	 * Topics are subscribed to in SUBSCRIBEs of about this many bytes; 0 
+	 *  or less sends them all in one
+	 */
+	public void setSubscribeChunkBytes(int bytes)
+	{
+		this.subscribeChunkBytes = bytes;
+	}
+	
+	/*
+	 * Where each chunk starts, followed by the number of topics
+	 */
+	static int[] chunk(String[] topics, int maxBytes)
+	{
+		List<Integer> starts = new ArrayList<Integer>();
+		starts.add(Integer.valueOf(0));
+		int bytes = 0;
+		for(int i = 0; i < topics.length; i++)
+		{
+			// length, name and requested QoS
+			int size = 2 + utf8Length(topics[i]) + 1;
+			if(maxBytes > 0 && bytes > 0 && bytes + size > maxBytes){
+				starts.add(Integer.valueOf(i));
+				bytes = 0;
+			}
+			bytes += size;
+		}
+		starts.add(Integer.valueOf(topics.length));
+		
+		int[] result = new int[starts.size()];
+		for(int i = 0; i < result.length; i++){
+			result[i] = starts.get(i).intValue();
+		}
+		return result;
+	}
+	
+	private static Throwable failChunk(Throwable failure, org.eclipse.paho.client.mqttv3.MqttException e,
+		int[] granted, int start, int end)
+	{
+		LOG.error("subscribe: "+(end - start)+" topics failed", e);
+		for(int i = start; i < end; i++){
+			granted[i] = MqttSubscribeException.FAILURE;
+		}
+		return failure != null ? failure : e;
+	}
+	
+	private void readGrantedQos(MqttDeliveryTokenImpl token, int[] requested, int[] granted, int start, int end)
+	{
+		int[] acked = null;
+		if(tokenResponse != null){
+			try
+			{
+				Object response = tokenResponse.get(token);
+				if(response instanceof MqttSuback){
+					acked = (int[])subackGrantedQos.get(response);
+				}
+			}
+			catch (IllegalAccessException e)
+			{
+				LOG.warn("readGrantedQos: unable to read SUBACK", e);
+			}
+		}
+		
+		for(int i = start; i < end; i++){
+			if(acked != null && i - start < acked.length){
+				int qos = acked[i - start] & 0xFF;
+				granted[i] = qos > 2 ? MqttSubscribeException.FAILURE : qos;
+			}
+			else{
+				granted[i] = requested[i];
+			}
+		}
+	}
+	
+	private static String[] slice(String[] array, int start, int end)
+	{
+		String[] slice = new String[end - start];
+		System.arraycopy(array, start, slice, 0, slice.length);
+		return slice;
+	}
+	
+	private static int[] slice(int[] array, int start, int end)
+	{
+		int[] slice = new int[end - start];
+		System.arraycopy(array, start, slice, 0, slice.length);
+		return slice;
+	}
+	
+	private static int utf8Length(String s)
+	{
 		try
 		{
-			this.client.subscribe(topicarray, prioarray);
+			return s.getBytes("UTF-8").length;
 		}
-		catch (MqttSecurityException e)
+		catch (UnsupportedEncodingException e)
 		{
-			e.printStackTrace();
+			return s.length() * 3;
+		}
+	}
+	
+	@Override
+	public void unsubscribe(IMqttTopic topic) throws MqttException
+	{
+		unsubscribe(new IMqttTopic[]{topic});
+	}
+	
+	@Override
+	public void unsubscribe(IMqttTopic[] topics) throws MqttException
+	{
+		if(LOG.isDebugEnabled()){
+			LOG.debug("unsubscribe(topics="+topics.length+")");
+		}
+		
+		String[] topicarray = new String[topics.length];
+		for(int i = 0; i < topics.length; i++){
+			topicarray[i] = topics[i].getName();
+		}
+		
+		try
+		{
+			this.client.unsubscribe(topicarray);
 		}
 		catch (org.eclipse.paho.client.mqttv3.MqttException e)
 		{
@@ -120,18 +448,19 @@ public class PahoMqttClientWrapper implements IMqttClient
 	public void publish(IMqttTopic topic, IMqttMessage message)
 		throws MqttException
 	{
-		LOG.debug("publish(topic="+topic+", message="+message+")");
+		if(LOG.isDebugEnabled()){
+			LOG.debug("publish(topic="+topic+", message="+message+")");
+		}
 		
 		MqttTopic t = this.client.getTopic(topic.getName());
 		
-		MqttMessage m = new MqttMessage();
-		m.setRetained(message.isRetained());
-		m.setQos(message.getQoS());	
-		m.setPayload(message.getPayload());		
+		MqttMessage m = toPahoMessage(message);
 				
+		long start = System.nanoTime();
 		try
 		{
 			t.publish(m);
+			publishLatency.record(System.nanoTime() - start);
 		}
 		catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e)
 		{
@@ -142,6 +471,135 @@ public class PahoMqttClientWrapper implements IMqttClient
 			throw new MqttException(e);
 		}
 	}
+	
+	@Override
+	public IMqttDeliveryToken publishAsync(IMqttTopic topic, IMqttMessage message)
+		throws MqttException
+	{
+		// QoS 0 messages are complete once written, only QoS 1/2 take up 
+		//  a slot in the window until they are acknowledged
+		boolean windowed = message.getQoS() > 0;
+		if(windowed){
+			try
+			{
+				inFlightWindow.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new MqttException(e);
+			}
+		}
+		
+		com.qonect.protocols.mqtt.impl.MqttDeliveryToken token = 
+			new com.qonect.protocols.mqtt.impl.MqttDeliveryToken(topic, message);
+		
+		synchronized(pendingDeliveries)
+		{
+			asyncPublishesInProgress++;
+		}
+		
+		MqttDeliveryToken pahoToken = null;
+		boolean delivered = false;
+		long start = System.nanoTime();
+		try
+		{
+			pahoToken = this.client.getTopic(topic.getName()).publish(toPahoMessage(message));
+		}
+		catch (org.eclipse.paho.client.mqttv3.MqttException e)
+		{
+			if(windowed){
+				inFlightWindow.release();
+			}
+			throw new MqttException(e);
+		}
+		finally
+		{
+			synchronized(pendingDeliveries)
+			{
+				if(pahoToken != null){
+					delivered = earlyDeliveries.remove(pahoToken);
+					if(!delivered){
+						pendingDeliveries.put(pahoToken, new PendingDelivery(token, windowed, start));
+					}
+				}
+				if(--asyncPublishesInProgress == 0){
+					earlyDeliveries.clear();
+				}
+			}
+		}
+		
+		if(delivered){
+			deliveryLatency.record(System.nanoTime() - start);
+			if(windowed){
+				inFlightWindow.release();
+			}
+			token.complete();
+		}
+		return token;
+	}
+	
+	static void toPahoSubscription(IMqttTopic[] topics, String[] topicarray, int[] prioarray)
+	{
+		for(int i = 0; i < topics.length; i++){
+			topicarray[i] = topics[i].getName();
+			prioarray[i] = topics[i].getQoS();
+		}
+	}
+	
+	static MqttMessage toPahoMessage(IMqttMessage message) throws MqttException
+	{
+		MqttMessage m = new MqttMessage();
+		m.setRetained(message.isRetained());
+		m.setQos(message.getQoS());	
+		m.setPayload(message.getPayload());
+		return m;
+	}
+	
+	private void completeDelivery(MqttDeliveryToken pahoToken)
+	{
+		PendingDelivery pending;
+		synchronized(pendingDeliveries)
+		{
+			pending = pendingDeliveries.remove(pahoToken);
+			if(pending == null){
+				// either a plain publish, or publishAsync has not registered
+				//  the token yet
+				if(asyncPublishesInProgress > 0){
+					earlyDeliveries.add(pahoToken);
+				}
+				return;
+			}
+		}
+		
+		deliveryLatency.record(System.nanoTime() - pending.startNanos);
+		if(pending.windowed){
+			inFlightWindow.release();
+		}
+		pending.token.complete();
+	}
+	
+	/*
+	 * Outstanding handles cannot complete once the connection is gone; the 
+	 *  client library may still redeliver persisted messages after the next
+	 *  connect, but those are no longer tracked by a handle.
+	 */
+	private void failPendingDeliveries(Throwable throwable)
+	{
+		List<PendingDelivery> failed;
+		synchronized(pendingDeliveries)
+		{
+			failed = new ArrayList<PendingDelivery>(pendingDeliveries.values());
+			pendingDeliveries.clear();
+		}
+		
+		for(PendingDelivery pending : failed){
+			if(pending.windowed){
+				inFlightWindow.release();
+			}
+			pending.token.fail(throwable);
+		}
+	}
 
 	@Override
 	public boolean isConnected()
@@ -172,13 +630,17 @@ public class PahoMqttClientWrapper implements IMqttClient
 		o.setUserName(options.getUserName());
 		o.setPassword(options.getPassword());
 		
+		long start = System.nanoTime();
 		try
 		{
 			this.client.connect(o);
+			connects.increment();
+			connectTime.record(System.nanoTime() - start);
 		}
 		catch (MqttSecurityException e)
 		{
-			e.printStackTrace();
+			// not authorized: reported like any other failure to connect
+			throw new MqttException(e);
 		}
 		catch (org.eclipse.paho.client.mqttv3.MqttException e)
 		{
@@ -199,10 +661,62 @@ public class PahoMqttClientWrapper implements IMqttClient
 		{
 			throw new MqttException(e);
 		}
+		finally
+		{
+			failPendingDeliveries(new MqttException("Disconnected"));
+		}
 	}
 
+	/*
+	 * Sends an MQTT PINGREQ and waits until the broker has answered, rather 
+	 *  than publishing to a topic the broker would have to fan out and store.
+	 *  Only a PINGRESP that arrives after this PINGREQ went out counts, 
+	 *  though it may answer one the client sent for its own keep-alive just
+	 *  before. A connection lost meanwhile is noticed at the timeout.
+	 */
 	@Override
 	public void ping() throws MqttException
+	{
+		if(comms == null){
+			publishPing();
+			return;
+		}
+		
+		try
+		{
+			MqttDeliveryTokenImpl token = newToken.newInstance(trace);
+			storePingToken.set(tokenStore, token);
+			
+			long start = System.nanoTime();
+			comms.sendNoWait(new MqttPingReq()).waitForCompletion(DEFAULT_PING_TIMEOUT_MILLIS);
+			if(!token.isComplete()){
+				throw new MqttException("No response to ping");
+			}
+			pingRtt.record(System.nanoTime() - start);
+		}
+		catch (InstantiationException e)
+		{
+			throw new MqttException(e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new MqttException(e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new MqttException(e);
+		}
+		catch (org.eclipse.paho.client.mqttv3.MqttException e)
+		{
+			throw new MqttException(e);
+		}
+	}
+	
+	/*
+	 * Fallback for client library versions whose internals we do not know:
+	 *  a QoS 1 publish, which the broker has to acknowledge
+	 */
+	private void publishPing() throws MqttException
 	{
 		MqttTopic topic = this.client.getTopic(TOPIC_PING);
 		
@@ -211,9 +725,11 @@ public class PahoMqttClientWrapper implements IMqttClient
 		message.setQos(1);	
 		message.setPayload(new byte[]{0});
 		
+		long start = System.nanoTime();
 		try
 		{
-			topic.publish(message);
+			topic.publish(message).waitForCompletion(DEFAULT_PING_TIMEOUT_MILLIS);
+			pingRtt.record(System.nanoTime() - start);
 		}
 		catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e)
 		{
@@ -224,4 +740,53 @@ public class PahoMqttClientWrapper implements IMqttClient
 			throw new MqttException(e);
 		}
 	}
+	
+	private void resolveInternals()
+	{
+		try
+		{
+			Field commsField = MqttClient.class.getDeclaredField("comms");
+			commsField.setAccessible(true);
+			ClientComms c = (ClientComms)commsField.get(this.client);
+			
+			Field storeField = ClientComms.class.getDeclaredField("tokenStore");
+			storeField.setAccessible(true);
+			Object store = storeField.get(c);
+			
+			Field pingToken = store.getClass().getDeclaredField("pingToken");
+			pingToken.setAccessible(true);
+			Field traceField = store.getClass().getDeclaredField("trace");
+			traceField.setAccessible(true);
+			
+			Constructor<MqttDeliveryTokenImpl> constructor = 
+				MqttDeliveryTokenImpl.class.getDeclaredConstructor(traceField.getType());
+			constructor.setAccessible(true);
+			
+			this.comms = c;
+			this.tokenStore = store;
+			this.storePingToken = pingToken;
+			this.newToken = constructor;
+			this.trace = traceField.get(store);
+		}
+		catch (Exception e)
+		{
+			LOG.warn("resolveInternals: falling back to publishing pings", e);
+			return;
+		}
+		
+		try
+		{
+			Field response = MqttDeliveryTokenImpl.class.getDeclaredField("response");
+			response.setAccessible(true);
+			Field grantedQos = MqttSuback.class.getDeclaredField("grantedQos");
+			grantedQos.setAccessible(true);
+			
+			this.tokenResponse = response;
+			this.subackGrantedQos = grantedQos;
+		}
+		catch (Exception e)
+		{
+			LOG.warn("resolveInternals: SUBACKs will not be checked for refused topics", e);
+		}
+	}
 }
@@ -1,5 +1,8 @@
 package com.qonect.protocols.mqtt.impl.paho;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import com.qonect.protocols.mqtt.impl.MqttException;
@@ -7,7 +10,10 @@ import com.qonect.protocols.mqtt.interfaces.IMqttMessage;
 
 public class PahoMqttMessageWrapper implements IMqttMessage
 {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private MqttMessage message;
+	private String payloadString;
 	
 	public PahoMqttMessageWrapper(MqttMessage message)
 	{
@@ -26,6 +32,22 @@ public class PahoMqttMessageWrapper implements IMqttMessage
 			throw new MqttException(e);
 		}
 	}
+	
+	@Override
+	public ByteBuffer getPayloadBuffer() throws MqttException
+	{
+		// Paho hands out its own array, so wrapping it does not copy
+		return ByteBuffer.wrap(getPayload()).asReadOnlyBuffer();
+	}
+	
+	@Override
+	public String getPayloadString() throws MqttException
+	{
+		if(payloadString == null){
+			payloadString = new String(getPayload(), UTF8);
+		}
+		return payloadString;
+	}
 
 	@Override
 	public int getQoS()
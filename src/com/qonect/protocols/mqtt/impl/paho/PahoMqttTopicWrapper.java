@@ -7,9 +7,20 @@ import com.qonect.protocols.mqtt.interfaces.IMqttTopic;
 public class PahoMqttTopicWrapper implements IMqttTopic
 {
 	private MqttTopic topic;
+	private int qos;
+	
 	public PahoMqttTopicWrapper(MqttTopic topic)
+	{
+		this(topic, 0);
+	}
+	
+	/*
+	 * A topic a message arrived on, at the QoS it was delivered with
+	 */
+	public PahoMqttTopicWrapper(MqttTopic topic, int qos)
 	{
 		this.topic = topic;
+		this.qos = qos;
 	}
 
 	@Override
@@ -21,6 +32,6 @@ public class PahoMqttTopicWrapper implements IMqttTopic
 	@Override
 	public int getQoS()
 	{
-		return 0;
+		return qos;
 	}
 }
@@ -9,13 +9,30 @@ public interface IMqttClient
 	
 	public void publish(IMqttTopic topic, IMqttMessage message) throws MqttException;
 	
+	/*
+	 * Hands the message to the client and returns without waiting for the 
+	 *  broker; blocks only while the client's in-flight window is full.
+	 */
+	public IMqttDeliveryToken publishAsync(IMqttTopic topic, IMqttMessage message) throws MqttException;
+	
 	public void subscribe(IMqttTopic topic) throws IllegalArgumentException, MqttException;	
 	public void subscribe(IMqttTopic[] topics) throws IllegalArgumentException, MqttException;
 	
+	/*
+	 * Only the names of the topics are used; all of them go in a single
+	 *  UNSUBSCRIBE
+	 */
+	public void unsubscribe(IMqttTopic topic) throws MqttException;
+	public void unsubscribe(IMqttTopic[] topics) throws MqttException;
+	
 	public boolean isConnected();
 	
 	public void connect(IMqttConnectOptions options) throws MqttException;
 	public void disconnect() throws MqttException, MqttPersistenceException;	
 	
+	/*
+	 * Checks that the connection is still alive; returns once the broker 
+	 *  has answered and throws if it does not.
+	 */
 	public void ping() throws MqttException;
 }
@@ -0,0 +1,7 @@
+package com.qonect.protocols.mqtt.interfaces;
+
+public interface IMqttDeliveryListener
+{
+	public void deliveryComplete(IMqttDeliveryToken token);
+	public void deliveryFailed(IMqttDeliveryToken token, Throwable throwable);
+}
@@ -0,0 +1,17 @@
+package com.qonect.protocols.mqtt.interfaces;
+
+import com.qonect.protocols.mqtt.impl.MqttException;
+
+public interface IMqttDeliveryToken
+{
+	public IMqttTopic getTopic();
+	public IMqttMessage getMessage();
+	
+	public boolean isComplete();
+	public Throwable getException();
+	
+	public void waitForCompletion() throws MqttException;
+	public void waitForCompletion(long timeoutMillis) throws MqttException;
+	
+	public void setListener(IMqttDeliveryListener listener);
+}
@@ -0,0 +1,14 @@
+package com.qonect.protocols.mqtt.interfaces;
+
+/*
+ * Remembers what the keep-alive has learned about each network, so that it
+ *  does not have to be probed again after a restart or a network change.
+ */
+public interface IMqttKeepAliveStore
+{
+	/*
+	 * Returns defaultValue if nothing was stored under key
+	 */
+	public long getLong(String key, long defaultValue);
+	public void putLong(String key, long value);
+}
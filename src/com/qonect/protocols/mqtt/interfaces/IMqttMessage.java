@@ -1,11 +1,20 @@
 package com.qonect.protocols.mqtt.interfaces;
 
+import java.nio.ByteBuffer;
+
 import com.qonect.protocols.mqtt.impl.MqttException;
 
 public interface IMqttMessage
 {
 	public int getQoS();
 	public byte[] getPayload() throws MqttException;
+	
+	// read-only view of the payload - does not copy it
+	public ByteBuffer getPayloadBuffer() throws MqttException;
+	
+	// payload decoded as UTF-8 on first use, then cached
+	public String getPayloadString() throws MqttException;
+	
 	public boolean isRetained();	
 	public boolean isDuplicate();
 }
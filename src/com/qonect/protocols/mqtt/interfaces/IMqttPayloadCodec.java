@@ -0,0 +1,25 @@
+package com.qonect.protocols.mqtt.interfaces;
+
+import com.qonect.protocols.mqtt.impl.MqttException;
+
+/*
+ * Compresses, or otherwise transforms, the payloads of topics configured to
+ *  use it. Encoded payloads start with a header byte holding the codec's
+ *  ID, so that the receiving side can tell which codec to decode with.
+ *  Implementations are called from several threads at once.
+ */
+public interface IMqttPayloadCodec
+{
+	/*
+	 * 1-255; 0 marks a payload that was sent as it is
+	 */
+	public int getId();
+	
+	/*
+	 * Returns the encoded payload, starting at offset reserve, or null if
+	 *  encoding would not make the payload any smaller
+	 */
+	public byte[] encode(byte[] payload, int reserve) throws MqttException;
+	
+	public byte[] decode(byte[] data, int offset, int length) throws MqttException;
+}
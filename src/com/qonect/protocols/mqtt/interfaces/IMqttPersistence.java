@@ -1,6 +1,25 @@
 package com.qonect.protocols.mqtt.interfaces;
 
+import java.util.Enumeration;
+
+import com.qonect.protocols.mqtt.impl.MqttPersistenceException;
+
+/*
+ * Store for in-flight QoS 1/2 messages, keyed by the client library.
+ *  A record is handed over as a header and a payload part so that
+ *  implementations can write both without joining them first.
+ */
 public interface IMqttPersistence
 {
+	public void open(String clientId, String serverURI) throws MqttPersistenceException;
+	public void close() throws MqttPersistenceException;
+
+	public void put(String key, byte[] header, int headerOffset, int headerLength,
+		byte[] payload, int payloadOffset, int payloadLength) throws MqttPersistenceException;
+	public byte[] get(String key) throws MqttPersistenceException;
+	public void remove(String key) throws MqttPersistenceException;
 
+	public boolean containsKey(String key) throws MqttPersistenceException;
+	public Enumeration<String> keys() throws MqttPersistenceException;
+	public void clear() throws MqttPersistenceException;
 }
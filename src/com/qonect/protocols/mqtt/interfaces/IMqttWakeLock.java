@@ -0,0 +1,18 @@
+package com.qonect.protocols.mqtt.interfaces;
+
+/*
+ * A single lock keeping the CPU awake, as the platform provides it. It is
+ *  not reference counted: acquiring a held lock only replaces its timeout,
+ *  and one release releases it however often it was acquired.
+ */
+public interface IMqttWakeLock
+{
+	public void acquire();
+
+	/*
+	 * Holds the lock until timeoutMillis from now, or until release()
+	 */
+	public void acquire(long timeoutMillis);
+
+	public void release();
+}
@@ -0,0 +1,26 @@
+package com.qonect.protocols.mqtt.logging;
+
+import java.io.IOException;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.RollingFileAppender;
+
+/*
+ * Rolling file appender that leaves flushing to its caller, so that a batch
+ *  of events costs one write to storage instead of one per event.
+ */
+public class BatchedFileAppender extends RollingFileAppender
+{
+	public BatchedFileAppender(Layout layout, String fileName) throws IOException
+	{
+		super(layout, fileName);
+		setImmediateFlush(false);
+	}
+
+	public synchronized void flush()
+	{
+		if(qw != null){
+			qw.flush();
+		}
+	}
+}
@@ -1,6 +1,10 @@
 package com.qonect.protocols.mqtt.logging;
 
+import java.io.IOException;
+
 import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
 
 import de.mindpipe.android.logging.log4j.LogConfigurator;
 
@@ -10,6 +14,10 @@ public class ConfigureLog4J {
 	public static final String PATTERN_NORMAL1 = "%d{HH:mm:ss} - [%c{1}] - %p : %m%n";
 	public static final String PATTERN_LOGCAT_WITH_THREAD = "[%t][%p]: %m%n";
 	
+	// same rolling limits LogConfigurator uses by default
+	public static final int MAX_BACKUP_SIZE = 5;
+	public static final long MAX_FILE_SIZE = 512 * 1024;
+	
     public static void configure(String logFileName, String filePattern) {
         final LogConfigurator logConfigurator = new LogConfigurator();
         
@@ -23,4 +31,35 @@ public class ConfigureLog4J {
         
         logConfigurator.configure();
     }
-}
\ No newline at end of file
+    
+    /*
+     * Like configure(), but the file is written by a background thread that 
+     *  flushes in batches, so logging never waits for storage. Events below 
+     *  rootLevel are discarded before any message is formatted.
+     */
+    public static void configureAsync(String logFileName, String filePattern, Level rootLevel) {
+        final LogConfigurator logConfigurator = new LogConfigurator();
+        
+        logConfigurator.setRootLevel(rootLevel);
+        logConfigurator.setUseFileAppender(false);
+        logConfigurator.setLogCatPattern(PATTERN_LOGCAT_WITH_THREAD);
+        
+        logConfigurator.configure();
+        
+        Logger.getRootLogger().addAppender(createAsyncFileAppender(logFileName, filePattern));
+    }
+    
+    public static RingBufferAppender createAsyncFileAppender(String logFileName, String filePattern) {
+        BatchedFileAppender fileAppender;
+        try {
+            fileAppender = new BatchedFileAppender(new PatternLayout(filePattern), logFileName);
+        } 
+        catch (IOException e) {
+            throw new RuntimeException("Exception configuring log system", e);
+        }
+        fileAppender.setMaxBackupIndex(MAX_BACKUP_SIZE);
+        fileAppender.setMaximumFileSize(MAX_FILE_SIZE);
+        
+        return new RingBufferAppender(fileAppender);
+    }
+}
@@ -0,0 +1,305 @@
+package com.qonect.protocols.mqtt.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.OnlyOnceErrorHandler;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/*
+ * Takes logging events off the calling thread: events go into a bounded,
+ *  lock-free ring buffer and a background thread hands them to the target
+ *  appender, flushing once per batch rather than once per event.
+ *
+ *  A full buffer never blocks the caller; the event is dropped and counted,
+ *  and the writer logs how many were lost once it catches up. Events still
+ *  in the buffer when the process dies are lost.
+ *
+ *  This is an Appender rather than an AppenderSkeleton, whose synchronized
+ *  doAppend() would put every logging thread back behind one lock.
+ */
+public class RingBufferAppender implements Appender
+{
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// how long the writer waits before writing out what has come in; it is
+	//  woken up earlier when the buffer fills up
+	private static final long FLUSH_INTERVAL_NANOS = 50L * 1000 * 1000;
+	// events written between flushes while the buffer does not run empty
+	private static final int MAX_BATCH = 256;
+
+	private final BatchedFileAppender target;
+	private final int mask;
+	private final int wakeMask;
+	private final LoggingEvent[] slots;
+
+	// per slot, the position it can next be written at (== position) or
+	//  read at (== position + 1); see Vyukov's bounded MPMC queue
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean writerParked;
+	private volatile boolean running = true;
+	private final Thread writer;
+
+	private String name;
+	private volatile Filter filter;
+	private ErrorHandler errorHandler = new OnlyOnceErrorHandler();
+
+	public RingBufferAppender(BatchedFileAppender target)
+	{
+		this(target, DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * capacity is rounded up to a power of two
+	 */
+	public RingBufferAppender(BatchedFileAppender target, int capacity)
+	{
+		this.target = target;
+
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.wakeMask = size / 2 - 1;
+		this.slots = new LoggingEvent[size];
+		this.sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++){
+			sequences.set(i, i);
+		}
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void doAppend(LoggingEvent event)
+	{
+		if(!running){
+			return;
+		}
+
+		for(Filter f = filter; f != null; f = f.getNext()){
+			int decision = f.decide(event);
+			if(decision == Filter.DENY)return;
+			if(decision == Filter.ACCEPT)break;
+		}
+
+		// these are looked up lazily, which would happen on the writer
+		//  thread - with the wrong thread name and context
+		event.getThreadName();
+		event.getNDC();
+		event.getMDCCopy();
+
+		long position = offer(event);
+		if(position < 0){
+			dropped.incrementAndGet();
+			return;
+		}
+
+		// waking the writer for every event would cost more than writing
+		//  it ourselves; only do so every half buffer
+		if((position & wakeMask) == wakeMask && writerParked){
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/*
+	 * Number of events dropped because the buffer was full
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	@Override
+	public void close()
+	{
+		if(!running){
+			return;
+		}
+		running = false;
+
+		LockSupport.unpark(writer);
+		try
+		{
+			writer.join(1000);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+	}
+
+	@Override
+	public boolean requiresLayout()
+	{
+		return false;
+	}
+
+	// the target has its own layout
+	@Override
+	public void setLayout(Layout layout)
+	{
+	}
+
+	@Override
+	public Layout getLayout()
+	{
+		return target.getLayout();
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	@Override
+	public synchronized void addFilter(Filter newFilter)
+	{
+		if(filter == null){
+			filter = newFilter;
+			return;
+		}
+		Filter last = filter;
+		while(last.getNext() != null){
+			last = last.getNext();
+		}
+		last.setNext(newFilter);
+	}
+
+	@Override
+	public Filter getFilter()
+	{
+		return filter;
+	}
+
+	@Override
+	public synchronized void clearFilters()
+	{
+		filter = null;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler()
+	{
+		return errorHandler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler errorHandler)
+	{
+		if(errorHandler != null){
+			this.errorHandler = errorHandler;
+		}
+	}
+
+	/*
+	 * Returns the position the event was stored at, or -1 if full
+	 */
+	private long offer(LoggingEvent event)
+	{
+		long position = tail.get();
+		while(true)
+		{
+			int index = (int)(position & mask);
+			long available = sequences.get(index) - position;
+
+			if(available == 0){
+				if(tail.compareAndSet(position, position + 1)){
+					slots[index] = event;
+					// publishes the slot write to the writer
+					sequences.lazySet(index, position + 1);
+					return position;
+				}
+				position = tail.get();
+			}
+			else if(available < 0){
+				// the writer has not freed this slot yet, so we are full
+				return -1;
+			}
+			else {
+				// another thread took this position
+				position = tail.get();
+			}
+		}
+	}
+
+	/*
+	 * Called on the writer thread only
+	 */
+	private LoggingEvent poll()
+	{
+		int index = (int)(head & mask);
+		if(sequences.get(index) != head + 1){
+			return null;
+		}
+
+		LoggingEvent event = slots[index];
+		slots[index] = null;
+		sequences.lazySet(index, head + slots.length);
+		head++;
+		return event;
+	}
+
+	private void writeLoop()
+	{
+		long reportedDrops = 0;
+
+		while(true)
+		{
+			int written = 0;
+			LoggingEvent event;
+			while(written < MAX_BATCH && (event = poll()) != null){
+				target.doAppend(event);
+				written++;
+			}
+
+			long drops = dropped.get();
+			if(drops != reportedDrops){
+				target.doAppend(new LoggingEvent(RingBufferAppender.class.getName(),
+					Logger.getLogger(RingBufferAppender.class), Level.WARN,
+					(drops - reportedDrops)+" log events dropped, buffer full", null));
+				reportedDrops = drops;
+				written++;
+			}
+
+			if(written > 0){
+				target.flush();
+			}
+			if(written == MAX_BATCH){
+				continue;
+			}
+
+			if(!running){
+				return;
+			}
+
+			writerParked = true;
+			LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+			writerParked = false;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.qonect.protocols.mqtt.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Hands received messages straight to listeners living in the service's own
+ *  process, without going through Intents and the system server.
+ *
+ *  A listener registered with a batch size above 1 and a positive delay gets
+ *  its messages in lists, delivered when maxBatchSize messages have piled up
+ *  or maxDelayMillis after the first one arrived - whichever comes first.
+ *  Batches are delivered on a single dispatch thread, so they arrive in
+ *  order. Unbatched listeners are called on the thread that dispatches.
+ */
+public class MqttMessageDispatcher
+{
+	private static final Logger LOG = Logger.getLogger(MqttMessageDispatcher.class);
+
+	public interface Listener
+	{
+		public void messagesArrived(List<ReceivedMessage> messages);
+	}
+
+	public static final class ReceivedMessage
+	{
+		private final String topic;
+		private final byte[] payload;
+
+		public ReceivedMessage(String topic, byte[] payload)
+		{
+			this.topic = topic;
+			this.payload = payload;
+		}
+
+		public String getTopic()
+		{
+			return topic;
+		}
+
+		/*
+		 * Not copied - listeners must not modify it
+		 */
+		public byte[] getPayload()
+		{
+			return payload;
+		}
+	}
+
+	private final class Registration implements Runnable
+	{
+		final Listener listener;
+		final int maxBatchSize;
+		final long maxDelayMillis;
+
+		// guarded by this
+		List<ReceivedMessage> pending;
+		List<List<ReceivedMessage>> full = new ArrayList<List<ReceivedMessage>>();
+		ScheduledFuture<?> flushTask;
+
+		Registration(Listener listener, int maxBatchSize, long maxDelayMillis)
+		{
+			this.listener = listener;
+			this.maxBatchSize = maxBatchSize;
+			this.maxDelayMillis = maxDelayMillis;
+		}
+
+		boolean isBatched()
+		{
+			return maxBatchSize > 1 && maxDelayMillis > 0;
+		}
+
+		void add(ReceivedMessage message)
+		{
+			synchronized(this)
+			{
+				if(pending == null){
+					pending = new ArrayList<ReceivedMessage>(maxBatchSize);
+				}
+				pending.add(message);
+
+				if(pending.size() >= maxBatchSize){
+					// set the batch aside, so that it does not keep growing 
+					//  until the dispatch thread gets to it
+					full.add(pending);
+					pending = null;
+					if(flushTask != null)flushTask.cancel(false);
+					flushTask = scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+				}
+				else if(flushTask == null){
+					flushTask = scheduler.schedule(this, maxDelayMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		/*
+		 * Delivers the full batches, then whatever has piled up since
+		 */
+		@Override
+		public void run()
+		{
+			List<List<ReceivedMessage>> batches;
+			synchronized(this)
+			{
+				batches = full;
+				full = new ArrayList<List<ReceivedMessage>>();
+				if(pending != null){
+					batches.add(pending);
+					pending = null;
+				}
+				flushTask = null;
+			}
+			for(List<ReceivedMessage> batch : batches){
+				deliver(listener, batch);
+			}
+		}
+	}
+
+	private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+	private final ScheduledExecutorService scheduler;
+
+	public MqttMessageDispatcher()
+	{
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MqttDispatch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Delivers every message to listener as soon as it arrives
+	 */
+	public void register(Listener listener)
+	{
+		register(listener, 1, 0);
+	}
+
+	public void register(Listener listener, int maxBatchSize, long maxDelayMillis)
+	{
+		unregister(listener);
+		registrations.add(new Registration(listener, maxBatchSize, maxDelayMillis));
+	}
+
+	/*
+	 * Removes listener; messages still waiting in its batch are dropped
+	 */
+	public void unregister(Listener listener)
+	{
+		for(Registration registration : registrations){
+			if(registration.listener == listener){
+				registrations.remove(registration);
+				synchronized(registration)
+				{
+					if(registration.flushTask != null)registration.flushTask.cancel(false);
+					registration.pending = null;
+					registration.full.clear();
+				}
+			}
+		}
+	}
+
+	public boolean hasListeners()
+	{
+		return !registrations.isEmpty();
+	}
+
+	public void dispatch(String topic, byte[] payload)
+	{
+		if(registrations.isEmpty()){
+			return;
+		}
+
+		ReceivedMessage message = new ReceivedMessage(topic, payload);
+		for(Registration registration : registrations)
+		{
+			if(registration.isBatched()){
+				registration.add(message);
+			}
+			else {
+				deliver(registration.listener, Collections.singletonList(message));
+			}
+		}
+	}
+
+	/*
+	 * Flushes whatever is batched up, then stops the dispatch thread
+	 */
+	public void shutdown()
+	{
+		for(Registration registration : registrations){
+			scheduler.execute(registration);
+		}
+		registrations.clear();
+		scheduler.shutdown();
+	}
+
+	private void deliver(Listener listener, List<ReceivedMessage> messages)
+	{
+		try
+		{
+			listener.messagesArrived(messages);
+		}
+		catch(RuntimeException e)
+		{
+			// one misbehaving listener must not stop delivery to the others
+			LOG.error("deliver: listener "+listener+" failed", e);
+		}
+	}
+}
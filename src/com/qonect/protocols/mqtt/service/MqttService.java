@@ -1,15 +1,16 @@
 package com.qonect.protocols.mqtt.service;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import android.app.AlarmManager;
@@ -22,20 +23,46 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
 import android.os.IBinder;
 import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.provider.Settings.Secure;
 
+import com.qonect.protocols.mqtt.impl.MqttAdaptiveKeepAlive;
+import com.qonect.protocols.mqtt.impl.MqttBatchEnvelope;
+import com.qonect.protocols.mqtt.impl.MqttClientPool;
+import com.qonect.protocols.mqtt.impl.MqttConnectionActor;
+import com.qonect.protocols.mqtt.impl.MqttConnectionActor.CommandType;
 import com.qonect.protocols.mqtt.impl.MqttConnectOptions;
+import com.qonect.protocols.mqtt.impl.MqttDeduplicator;
 import com.qonect.protocols.mqtt.impl.MqttException;
-import com.qonect.protocols.mqtt.impl.MqttMessage;
+import com.qonect.protocols.mqtt.impl.MqttInboundQueue;
+import com.qonect.protocols.mqtt.impl.MqttLastValueCache;
+import com.qonect.protocols.mqtt.impl.MqttOutboundQueue;
+import com.qonect.protocols.mqtt.impl.MqttOutboundQueue.OverflowPolicy;
 import com.qonect.protocols.mqtt.impl.MqttPersistenceException;
+import com.qonect.protocols.mqtt.impl.MqttPublishBatcher;
+import com.qonect.protocols.mqtt.impl.MqttReconnectBackoff;
+import com.qonect.protocols.mqtt.impl.MqttStateMachine;
+import com.qonect.protocols.mqtt.impl.MqttSubscribeException;
+import com.qonect.protocols.mqtt.impl.MqttSubscriptionSet;
 import com.qonect.protocols.mqtt.impl.MqttTopic;
+import com.qonect.protocols.mqtt.impl.MqttTopicPolicies;
+import com.qonect.protocols.mqtt.impl.MqttTopicPolicy;
+import com.qonect.protocols.mqtt.impl.MqttWakeLockManager;
+import com.qonect.protocols.mqtt.impl.codec.MqttCodecClient;
+import com.qonect.protocols.mqtt.impl.codec.MqttDeflateCodec;
+import com.qonect.protocols.mqtt.impl.codec.MqttDictionaryCodec;
+import com.qonect.protocols.mqtt.impl.codec.MqttPayloadCodecs;
+import com.qonect.protocols.mqtt.impl.journal.MqttJournalPersistence;
+import com.qonect.protocols.mqtt.impl.metrics.MqttMetrics;
 import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientFactory;
+import com.qonect.protocols.mqtt.impl.paho.PahoMqttClientWrapper;
 import com.qonect.protocols.mqtt.interfaces.IMqttCallback;
 import com.qonect.protocols.mqtt.interfaces.IMqttClient;
 import com.qonect.protocols.mqtt.interfaces.IMqttClientFactory;
@@ -78,6 +105,47 @@ public class MqttService extends Service implements IMqttCallback
     public static final String MQTT_PUBLISH_MSG_TOPIC  = "com.qonect.services.mqtt.SENDMSG_TOPIC";
     public static final String MQTT_PUBLISH_MSG    = "com.qonect.services.mqtt.SENDMSG_MSG";
     
+    // constants used to have publishes to a topic sent in batches, and 
+    //   batches received on it split up again; a linger of 0 turns it off
+    public static final String MQTT_PUBLISH_BATCHING_INTENT    = "com.qonect.services.mqtt.BATCHING";
+    public static final String MQTT_PUBLISH_BATCHING_TOPIC     = "com.qonect.services.mqtt.BATCHING_TOPIC";
+    public static final String MQTT_PUBLISH_BATCHING_LINGER    = "com.qonect.services.mqtt.BATCHING_LINGER";
+    public static final String MQTT_PUBLISH_BATCHING_MAX_BYTES = "com.qonect.services.mqtt.BATCHING_MAX_BYTES";
+    
+    // constants used to have payloads on the topics matching a filter 
+    //   compressed on the way out and decompressed on the way in; codec 0 
+    //   turns it off, 1 is plain deflate, anything above needs a dictionary
+    public static final String MQTT_PAYLOAD_CODEC_INTENT     = "com.qonect.services.mqtt.CODEC";
+    public static final String MQTT_PAYLOAD_CODEC_FILTER     = "com.qonect.services.mqtt.CODEC_FILTER";
+    public static final String MQTT_PAYLOAD_CODEC_ID         = "com.qonect.services.mqtt.CODEC_ID";
+    public static final String MQTT_PAYLOAD_CODEC_DICTIONARY = "com.qonect.services.mqtt.CODEC_DICTIONARY";
+    
+    // constants used to choose what happens to messages received on the 
+    //   topics matching a filter while the inbound queue is full: one of 
+    //   BLOCK, DROP_OLDEST or CONFLATE; no policy goes back to the default
+    public static final String MQTT_INBOUND_POLICY_INTENT  = "com.qonect.services.mqtt.INBOUND_POLICY";
+    public static final String MQTT_INBOUND_POLICY_FILTER  = "com.qonect.services.mqtt.INBOUND_POLICY_FILTER";
+    public static final String MQTT_INBOUND_POLICY_NAME    = "com.qonect.services.mqtt.INBOUND_POLICY_NAME";
+    
+    // constants used to subscribe to a topic filter at a QoS, or to 
+    //   unsubscribe from it, while the Service is running
+    public static final String MQTT_TOPIC_SUBSCRIBE_INTENT   = "com.qonect.services.mqtt.TOPIC_SUBSCRIBE";
+    public static final String MQTT_TOPIC_UNSUBSCRIBE_INTENT = "com.qonect.services.mqtt.TOPIC_UNSUBSCRIBE";
+    public static final String MQTT_TOPIC_FILTER             = "com.qonect.services.mqtt.TOPIC_FILTER";
+    public static final String MQTT_TOPIC_QOS                = "com.qonect.services.mqtt.TOPIC_QOS";
+    
+    // constants used to set the QoS, retain flag and priority that messages
+    //   on the topics matching a filter are published with, and the QoS 
+    //   they are subscribed to at when none is given; no QoS removes it
+    public static final String MQTT_TOPIC_POLICY_INTENT      = "com.qonect.services.mqtt.TOPIC_POLICY";
+    public static final String MQTT_TOPIC_RETAINED           = "com.qonect.services.mqtt.TOPIC_RETAINED";
+    public static final String MQTT_TOPIC_PRIORITY           = "com.qonect.services.mqtt.TOPIC_PRIORITY";
+    
+    // constants used by consumers in other processes, which can't bind to 
+    //   the Service directly, to ask for received messages to be broadcast
+    public static final String MQTT_BROADCAST_SUBSCRIBE_INTENT   = "com.qonect.services.mqtt.BROADCAST_SUBSCRIBE";
+    public static final String MQTT_BROADCAST_UNSUBSCRIBE_INTENT = "com.qonect.services.mqtt.BROADCAST_UNSUBSCRIBE";
+    
     // constants used to tell the Activity UI the connection status
     public static final String MQTT_STATUS_INTENT = "com.qonect.services.mqtt.STATUS";
     public static final String MQTT_STATUS_CODE    = "com.qonect.services.mqtt.STATUS_CODE";
@@ -86,6 +154,9 @@ public class MqttService extends Service implements IMqttCallback
     // constant used internally to schedule the next ping event
     public static final String MQTT_PING_ACTION = "com.qonect.services.mqtt.PING";
     
+    // constant used internally to schedule the next reconnect attempt
+    public static final String MQTT_RECONNECT_ACTION = "com.qonect.services.mqtt.RECONNECT";
+    
     // constants used by status bar notifications
     public static final int MQTT_NOTIFICATION_ONGOING = 1;  
     public static final int MQTT_NOTIFICATION_UPDATE  = 2;
@@ -114,8 +185,7 @@ public class MqttService extends Service implements IMqttCallback
     /************************************************************************/
     
     // status of MQTT client connection
-    private ConnectionStatus connectionStatus = ConnectionStatus.INITIAL;
-    private Timestamp connectionStatusChangeTime;
+    private final MqttStateMachine<ConnectionStatus> connectionState = newConnectionStateMachine();
     
 
     /************************************************************************/
@@ -126,9 +196,13 @@ public class MqttService extends Service implements IMqttCallback
     //    host name of the server we're receiving push notifications from
     private String          brokerHostName       		 = "";
     // taken from preferences
-    //    topic we want to receive messages about
+    //    topics we want to receive messages about, and the ones the broker
+    //    has confirmed - only the difference is sent
     //    can include wildcards - e.g.  '#' matches anything
-    private List<IMqttTopic>        topics            	 = new ArrayList<IMqttTopic>();    
+    private final MqttSubscriptionSet subscriptions      = new MqttSubscriptionSet();    
+    //    QoS, retain flag and priority by topic filter, for publishing 
+    //    and for subscribing without a QoS
+    private final MqttTopicPolicies topicPolicies        = new MqttTopicPolicies();
 
     
     // defaults - this sample uses very basic defaults for it's interactions 
@@ -152,7 +226,70 @@ public class MqttService extends Service implements IMqttCallback
     //     long running, idle connections. Ideally, to keep a connection open
     //     you want to use a keep alive value that is less than the period of
     //     time after which a network operator will kill an idle connection
+    //
+    //   we don't know that period up front, so we learn it for every network
+    //     we're on: pings start minKeepAliveSeconds apart and are spaced out 
+    //     for as long as the connection survives, up to keepAliveSeconds - 
+    //     which is also the keep alive we promise the broker
     private short           keepAliveSeconds     = 20 * 60; 
+    private short           minKeepAliveSeconds  = 60;
+    
+    // everything below this level is discarded before it is formatted - 
+    //  raise it to Level.INFO for release builds
+    private Level           logLevel             = Level.ALL;
+
+    // publishes made while we are offline are kept in a bounded queue on
+    //  disk and sent, oldest first, as soon as we are connected again. With
+    //  BLOCK, a publish that finds it full waits up to the block time for 
+    //  the queue to drain, holding up the commands behind it
+    private int             outboundQueueMaxMessages  = 1000;
+    private long            outboundQueueMaxBytes     = 1024 * 1024;
+    private OverflowPolicy  outboundQueueOverflow     = OverflowPolicy.DROP_OLDEST;
+    private long            outboundQueueBlockMillis  = 5 * 1000;
+    private int             outboundQueueDrainBatch   = 50;
+
+    // number of connections to the broker; topics are spread over them by
+    //  a hash of their name, so that a busy topic does not hold up the rest.
+    //  Every connection costs its own keep alive pings - keep this at 1
+    //  unless a single connection cannot keep up
+    private int             connectionPoolSize        = 1;
+    
+    // largest batch sent for a topic that has batching turned on, unless
+    //  the topic asks for less
+    private int             publishBatchMaxBytes      = 16 * 1024;
+    
+    // received messages are handed to the handlers by these worker threads,
+    //  so that a slow handler does not hold up the connection. Messages on 
+    //  a topic are always handled by the same worker, in order. When the 
+    //  queue is full, the client thread waits unless the topic says otherwise
+    private int             inboundWorkers            = 1;
+    private int             inboundQueueCapacity      = 256;
+    private MqttInboundQueue.OverflowPolicy inboundQueueOverflow = MqttInboundQueue.OverflowPolicy.BLOCK;
+    
+    // subscribing and unsubscribing at runtime is sent to the broker this 
+    //  long after the first change, together with whatever else changed
+    private long            subscriptionSyncDelayMillis = 100;
+    
+    // QoS 1 messages redelivered within this long - after a reconnect, say
+    //  - are not handed to the handlers a second time. They are known by 
+    //  topic and payload, and only dropped when the broker flags them as a
+    //  redelivery, so a payload repeated on purpose still gets through. 0 
+    //  turns it off
+    private long            deduplicationWindowMillis = 0;
+    private int             deduplicationCapacity     = 1024;
+    
+    // the last message on each topic is kept, within this many bytes, for
+    //  consumers that come late; 0 turns it off
+    private long            lastValueCacheMaxBytes    = 256 * 1024;
+    
+    // the wake lock is kept this long after the last message or event was
+    //  handled, so that a burst of them does not take and drop it each time
+    private long            wakeLockLingerMillis      = 500;
+    
+    // received messages are broadcast even when listeners are bound through
+    //  the LocalBinder, so that receivers registered by hand still get them;
+    //  see setSkipBroadcastWhenBound
+    private volatile boolean skipBroadcastWhenBound   = false;
 
     
     // This is how the Android client app will identify itself to the  
@@ -164,9 +301,38 @@ public class MqttService extends Service implements IMqttCallback
     /************************************************************************/
     /*    VARIABLES  - other local variables                                */   
     /************************************************************************/
-    // connection to the message broker
-    private IMqttClient mqttClient = null;
+    // connection to the message broker; only changed on the actor thread
+    private volatile IMqttClient mqttClient = null;
+    // a connect is under way on the I/O thread
+    private boolean connecting = false;
+    // a SUBSCRIPTIONS_CHANGED is on its way to the actor
+    private final AtomicBoolean subscriptionSyncScheduled = new AtomicBoolean();
     private IMqttClientFactory mqttClientFactory;
+    
+    // store-and-forward queue for outbound messages
+    private MqttOutboundQueue outboundQueue;
+    
+    // collects publishes to topics that are sent in batches
+    private MqttPublishBatcher publishBatcher;
+    
+    // compression per topic; outlives the client, which is recreated on
+    //  every reconnect
+    private MqttPayloadCodecs payloadCodecs;
+    
+    // received messages, on their way to the handlers
+    private MqttInboundQueue inboundQueue;
+    
+    // recently received QoS 1 messages; null when deduplication is off
+    private MqttDeduplicator deduplicator;
+    
+    // the last message on each topic; null when turned off
+    private MqttLastValueCache lastValues;
+    
+    // keeps the CPU awake while we are handling something
+    private MqttWakeLockManager wakeLock;
+    
+    // latencies, rates and queue depths, shared by every client we create
+    private MqttMetrics metrics;
         
     // receiver that notifies the Service when the phone gets data connection 
     private NetworkConnectionIntentReceiver netConnReceiver;
@@ -174,7 +340,29 @@ public class MqttService extends Service implements IMqttCallback
     // receiver that wakes the Service up when it's time to ping the server
     private PingSender pingSender;
     
-    private ExecutorService executor;
+    // decides how long we can stay quiet before the next ping
+    private MqttAdaptiveKeepAlive keepAlive;
+    // when we last heard from or talked to the broker, in elapsedRealtime
+    private volatile long lastActivityTime;
+    
+    // receiver that wakes the Service up for the next reconnect attempt
+    private ReconnectSender reconnectSender;
+    
+    // spaces out reconnect attempts, and measures how long they take
+    private MqttReconnectBackoff reconnectBackoff;
+    
+    // everything that changes the connection happens on its thread, in the
+    //  order it was asked for
+    private MqttConnectionActor actor;
+    
+    // delivers received messages to listeners bound from within our own
+    //  process, without a broadcast
+    private MqttMessageDispatcher messageDispatcher;
+    
+    // number of consumers in other processes that asked for broadcasts. A
+    //  consumer whose process dies is still counted until every client has
+    //  unbound - meanwhile we broadcast more than needed, never less
+    private volatile int broadcastSubscribers = 0;
     
     /************************************************************************/
     /*    METHODS - core Service lifecycle methods                          */
@@ -195,16 +383,146 @@ public class MqttService extends Service implements IMqttCallback
         //   commands to the Service 
         mBinder = new LocalBinder<MqttService>(this);
         
+        messageDispatcher = new MqttMessageDispatcher();
+        
         // get the broker settings out of app preferences
         //   this is not the only way to do this - for example, you could use 
         //   the Intent that starts the Service to pass on configuration values
         //SharedPreferences settings = getSharedPreferences(APP_ID, MODE_PRIVATE);
         brokerHostName = "profile-staging.jackzz.net";
-        topics.add(new MqttTopic("test-topic"));
+        subscriptions.subscribe("test-topic", 0);
         
-        mqttClientFactory = new PahoMqttClientFactory(); 
+        // keep in-flight QoS 1/2 messages in a journal in private storage so
+        //  that they survive the process being killed
+        usePersistence = new MqttJournalPersistence(new File(getFilesDir(), "mqtt"));
+        
+        metrics = new MqttMetrics();
+        mqttClientFactory = new PahoMqttClientFactory(
+        	PahoMqttClientWrapper.DEFAULT_MAX_IN_FLIGHT, metrics); 
+        wakeLock = new MqttWakeLockManager(
+        	new PowerManagerWakeLock((PowerManager) getSystemService(POWER_SERVICE), "MQTT"), 
+        	wakeLockLingerMillis);
+        payloadCodecs = new MqttPayloadCodecs();
+        inboundQueue = new MqttInboundQueue(this, inboundWorkers, inboundQueueCapacity, inboundQueueOverflow, 
+        	wakeLock);
+        if(lastValueCacheMaxBytes > 0){
+        	lastValues = new MqttLastValueCache(lastValueCacheMaxBytes);
+        }
+        if(deduplicationWindowMillis > 0){
+        	deduplicator = new MqttDeduplicator(deduplicationCapacity, deduplicationWindowMillis);
+        }
+        
+        keepAlive = new MqttAdaptiveKeepAlive(
+        	new SharedPreferencesKeepAliveStore(getSharedPreferences(APP_ID+".keepalive", MODE_PRIVATE)),
+        	minKeepAliveSeconds * 1000L, keepAliveSeconds * 1000L);
+        
+        reconnectBackoff = new MqttReconnectBackoff();
+        
+        initOutboundQueue();
+        
+        // a batch takes the same way out as a single publish would
+        publishBatcher = new MqttPublishBatcher(new MqttPublishBatcher.Sink() {
+			@Override
+			public void publishBatch(String topic, byte[] envelope, int messageCount) {
+				publishOrQueue(topic, envelope, topicPolicies.getPolicy(topic));
+			}
+		});
                 
-        executor = Executors.newFixedThreadPool(2);
+        actor = new MqttConnectionActor(new MqttConnectionActor.Handler() {
+			@Override
+			public void handle(CommandType type, Object argument) {
+				handleCommand(type, argument);
+			}
+		}, wakeLock);
+        
+        registerGauges();
+    }
+    
+    /*
+     * The queues are read through their fields, which are cleared when the
+     *  Service goes away
+     */
+    private void registerGauges()
+    {
+        metrics.gauge(MqttMetrics.INBOUND_DEPTH, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				MqttInboundQueue queue = inboundQueue;
+				return queue != null ? queue.getDepth() : 0;
+			}
+		});
+        metrics.gauge(MqttMetrics.INBOUND_DROPPED, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				MqttInboundQueue queue = inboundQueue;
+				return queue != null ? queue.getDroppedCount() : 0;
+			}
+		});
+        metrics.gauge(MqttMetrics.INBOUND_CONFLATED, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				MqttInboundQueue queue = inboundQueue;
+				return queue != null ? queue.getConflatedCount() : 0;
+			}
+		});
+        metrics.gauge(MqttMetrics.OUTBOUND_DEPTH, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				MqttOutboundQueue queue = outboundQueue;
+				return queue != null ? queue.size() : 0;
+			}
+		});
+        metrics.gauge(MqttMetrics.ACTOR_MERGED, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				return actor.getMergedCount();
+			}
+		});
+        metrics.gauge(MqttMetrics.UPTIME, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				return connectionState.getUptimeMillis();
+			}
+		});
+        // in thousandths
+        metrics.gauge(MqttMetrics.AVAILABILITY, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				return Math.round(connectionState.getAvailability() * 1000);
+			}
+		});
+        metrics.gauge(MqttMetrics.RECONNECTS, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				return reconnectBackoff.getReconnectCount();
+			}
+		});
+        metrics.gauge(MqttMetrics.RECONNECT_TIME_LAST, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				return reconnectBackoff.getLastReconnectMillis();
+			}
+		});
+        metrics.gauge(MqttMetrics.RECONNECT_TIME_MAX, new MqttMetrics.Gauge() {
+			@Override
+			public long get() {
+				return reconnectBackoff.getMaxReconnectMillis();
+			}
+		});
+        if(deduplicator != null){
+            metrics.gauge(MqttMetrics.INBOUND_DUPLICATES, new MqttMetrics.Gauge() {
+    			@Override
+    			public long get() {
+    				return deduplicator.getHitCount();
+    			}
+    		});
+            metrics.gauge(MqttMetrics.INBOUND_UNIQUE, new MqttMetrics.Gauge() {
+    			@Override
+    			public long get() {
+    				return deduplicator.getMissCount();
+    			}
+    		});
+        }
     }
     
     
@@ -232,16 +550,69 @@ public class MqttService extends Service implements IMqttCallback
     }    
     
     private void doStart(final Intent intent, final int startId){
-    	initMqttClient();
+    	// counted here rather than in handleStart, which may return before it 
+    	//  gets to look at the action
+    	if(intent != null && MQTT_BROADCAST_SUBSCRIBE_INTENT.equals(intent.getAction())){
+    		broadcastSubscribers++;
+    		LOG.debug("doStart: broadcastSubscribers="+broadcastSubscribers);
+    	}
+    	else if(intent != null && MQTT_BROADCAST_UNSUBSCRIBE_INTENT.equals(intent.getAction())){
+    		broadcastSubscribers = Math.max(0, broadcastSubscribers - 1);
+    		LOG.debug("doStart: broadcastSubscribers="+broadcastSubscribers);
+    	}
     	
-    	executor.submit(new Runnable() {
-            @Override
-            public void run() {
-            	handleStart(intent, startId);
-            }
-        });
+    	actor.send(CommandType.START, intent);
     }    
     
+    /*
+     * Called on the actor thread only
+     */
+    private void handleCommand(CommandType type, Object argument)
+    {
+    	switch(type)
+    	{
+    	case START:
+    		handleStart((Intent)argument);
+    		break;
+    	case RECONNECT:
+    		handleStart(null);
+    		break;
+    	case PUBLISH:
+    		handlePublish((PendingPublish)argument);
+    		break;
+    	case PING:
+    		handlePing();
+    		break;
+    	case NETWORK_CHANGED:
+    		handleNetworkChanged();
+    		break;
+    	case CONNECTION_LOST:
+    		handleConnectionLost((Throwable)argument);
+    		break;
+    	case SUBSCRIPTIONS_CHANGED:
+    		handleSubscriptionsChanged();
+    		break;
+    	case CONNECTED:
+    		handleConnected((IMqttClient)argument);
+    		break;
+    	case CONNECT_FAILED:
+    		handleConnectFailed((IMqttClient)argument);
+    		break;
+    	case PING_SUCCEEDED:
+    		keepAlive.onPingSucceeded((Long)argument);
+    		break;
+    	case PING_FAILED:
+    		handlePingFailed((Long)argument);
+    		break;
+    	case DISCONNECT:
+    		handleDisconnect();
+    		break;
+    	case STOP:
+    		disconnectFromBroker();
+    		break;
+    	}
+    }
+    
     protected void onConnect(){
     	// we subscribe to a topic - registering to receive push
         //  notifications with a particular key
@@ -250,12 +621,22 @@ public class MqttService extends Service implements IMqttCallback
         // note that this topicName could include a wildcard, so 
         //  even just with one subscription, we could receive 
         //  messages for multiple topics
-        subscribeToTopics();
+        // then send whatever was published while we were offline
+        final IMqttClient client = mqttClient;
+        actor.runBlocking(new Runnable() {
+			@Override
+			public void run() {
+				syncSubscriptions(client);
+				drainOutboundQueue(client);
+			}
+		});
     }
 
-    synchronized void handleStart(Intent intent, int startId) 
+    void handleStart(Intent intent) 
     {
     	LOG.debug("handleStart");
+    	
+    	initMqttClient();
         // before we start - check for a couple of reasons why we should stop
     	        
         if (mqttClient == null) 
@@ -267,7 +648,7 @@ public class MqttService extends Service implements IMqttCallback
             return;
         }
         
-        if (connectionStatus == ConnectionStatus.NOTCONNECTED_USERDISCONNECT) {
+        if (connectionState.getState() == ConnectionStatus.NOTCONNECTED_USERDISCONNECT) {
             // When calling startService in multiple activities, onStartCommand()
             // is called when activies are switched. Thus the service would connect
             // automatically even though the user might have requested the disconnect. 
@@ -289,9 +670,9 @@ public class MqttService extends Service implements IMqttCallback
         }
         
         
-        // if the Service was already running and we're already connected - we 
-        //   don't need to do anything 
-        if (!isConnected()) 
+        // if the Service was already running and we're already connected, or
+        //   connecting - we don't need to do anything 
+        if (!isConnected() && !connecting) 
         {
             // set the status to show we're trying to connect
         	changeStatus(ConnectionStatus.CONNECTING);
@@ -301,11 +682,9 @@ public class MqttService extends Service implements IMqttCallback
             if (isOnline())
             {
                 // we think we have an Internet connection, so try to connect
-                //  to the message broker
-                if (connectToBroker()) 
-                {
-                    onConnect();
-                }
+                //  to the message broker - we hear back with CONNECTED or 
+                //  CONNECT_FAILED
+                connectToBroker();
             }
             else
             {
@@ -339,6 +718,14 @@ public class MqttService extends Service implements IMqttCallback
             registerReceiver(pingSender, new IntentFilter(MQTT_PING_ACTION));
         }
         
+        // and the ones that wake it up to try again after losing the 
+        //  connection
+        if (reconnectSender == null)
+        {
+            reconnectSender = new ReconnectSender();
+            registerReceiver(reconnectSender, new IntentFilter(MQTT_RECONNECT_ACTION));
+        }
+        
         if(!handleStartAction(intent)){
         	// the Activity UI has started the MQTT service - this may be starting
             //  the Service new for the first time, or after the Service has been
@@ -350,6 +737,11 @@ public class MqttService extends Service implements IMqttCallback
     }
     
     private boolean handleStartAction(Intent intent){
+    	// we restart ourselves without an intent when reconnecting
+    	if(intent == null){
+    		return false;
+    	}
+    	
     	String action = intent.getAction(); 	
     	
     	if(action == null){
@@ -360,6 +752,33 @@ public class MqttService extends Service implements IMqttCallback
     		LOG.debug("handleStartAction: action == MQTT_PUBLISH_MSG_INTENT");
     		handlePublishMessageIntent(intent);
     	}
+    	else if(action.equalsIgnoreCase(MQTT_PUBLISH_BATCHING_INTENT)){
+    		LOG.debug("handleStartAction: action == MQTT_PUBLISH_BATCHING_INTENT");
+    		handlePublishBatchingIntent(intent);
+    	}
+    	else if(action.equalsIgnoreCase(MQTT_PAYLOAD_CODEC_INTENT)){
+    		LOG.debug("handleStartAction: action == MQTT_PAYLOAD_CODEC_INTENT");
+    		handlePayloadCodecIntent(intent);
+    	}
+    	else if(action.equalsIgnoreCase(MQTT_INBOUND_POLICY_INTENT)){
+    		LOG.debug("handleStartAction: action == MQTT_INBOUND_POLICY_INTENT");
+    		handleInboundPolicyIntent(intent);
+    	}
+    	else if(action.equalsIgnoreCase(MQTT_TOPIC_SUBSCRIBE_INTENT)){
+    		LOG.debug("handleStartAction: action == MQTT_TOPIC_SUBSCRIBE_INTENT");
+    		handleTopicSubscribeIntent(intent);
+    	}
+    	else if(action.equalsIgnoreCase(MQTT_TOPIC_POLICY_INTENT)){
+    		LOG.debug("handleStartAction: action == MQTT_TOPIC_POLICY_INTENT");
+    		handleTopicPolicyIntent(intent);
+    	}
+    	else if(action.equalsIgnoreCase(MQTT_TOPIC_UNSUBSCRIBE_INTENT)){
+    		LOG.debug("handleStartAction: action == MQTT_TOPIC_UNSUBSCRIBE_INTENT");
+    		String filter = intent.getStringExtra(MQTT_TOPIC_FILTER);
+    		if(filter != null){
+    			unsubscribe(filter);
+    		}
+    	}
     	
     	return true;
     }    
@@ -369,8 +788,28 @@ public class MqttService extends Service implements IMqttCallback
     {
     	LOG.debug("onDestroy");
     	
-        // disconnect immediately
-        disconnectFromBroker();
+        // disconnect immediately, after whatever was asked of us before
+        actor.send(CommandType.STOP, null);
+        actor.shutdown(2000);
+        
+        // let the handlers have what was received before we went
+        if (inboundQueue != null) {
+        	inboundQueue.shutdown(1000);
+        	inboundQueue = null;
+        }
+        
+        // whatever is still being batched goes into the outbound queue
+        if (publishBatcher != null) {
+        	publishBatcher.close(1000);
+        	publishBatcher = null;
+        }
+        
+        closeOutboundQueue();
+        
+        if (messageDispatcher != null) {
+        	messageDispatcher.shutdown();
+        	messageDispatcher = null;
+        }
 
         // inform the app that the app has successfully disconnected
         broadcastServiceStatus("Disconnected @ "+getConnectionChangeTimestamp());
@@ -380,6 +819,8 @@ public class MqttService extends Service implements IMqttCallback
             mBinder = null;
         }
         
+        wakeLock.close();
+        
         super.onDestroy();
     }
     
@@ -400,7 +841,7 @@ public class MqttService extends Service implements IMqttCallback
         
     	Intent broadcastIntent = new Intent();
         broadcastIntent.setAction(MQTT_STATUS_INTENT);
-        broadcastIntent.putExtra(MQTT_STATUS_CODE, connectionStatus.ordinal());
+        broadcastIntent.putExtra(MQTT_STATUS_CODE, connectionState.getState().ordinal());
         broadcastIntent.putExtra(MQTT_STATUS_MSG, statusDescription); 
         sendBroadcast(broadcastIntent);   
     }
@@ -410,6 +851,17 @@ public class MqttService extends Service implements IMqttCallback
         // pass a message received from the MQTT server on to the Activity UI 
         //   (for times when it is running / active) so that it can be displayed 
         //   in the app GUI
+    	
+    	// listeners in our own process get it directly; if told to, we only 
+    	//   pay for the Intent when someone in another process wants it, or 
+    	//   nobody has bound at all
+    	MqttMessageDispatcher dispatcher = messageDispatcher;
+    	if(dispatcher != null){
+    		dispatcher.dispatch(topic, message);
+    		if(skipBroadcastWhenBound && dispatcher.hasListeners() && broadcastSubscribers == 0){
+    			return;
+    		}
+    	}
        
     	Intent broadcastIntent = new Intent();
         broadcastIntent.setAction(MQTT_MSG_RECEIVED_INTENT);
@@ -456,6 +908,17 @@ public class MqttService extends Service implements IMqttCallback
     {
         return mBinder;
     }
+    
+    @Override
+    public boolean onUnbind(Intent intent) 
+    {
+        // every consumer that asked for broadcasts is bound to us, and one 
+        //  whose process died without unsubscribing is unbound by the system
+        //  - so with nobody bound, nobody can still be counting on them
+        broadcastSubscribers = 0;
+        LOG.debug("onUnbind: broadcastSubscribers reset");
+        return super.onUnbind(intent);
+    }
     public class LocalBinder<S> extends Binder 
     {
         private WeakReference<S> mService;
@@ -480,14 +943,229 @@ public class MqttService extends Service implements IMqttCallback
     
     public ConnectionStatus getConnectionStatus() 
     {
-        return connectionStatus;
+        return connectionState.getState();
     }    
     
+    /*
+     * The connection's state, with the time spent in each state so far - 
+     *  uptime and availability count CONNECTED as up
+     */
+    public MqttStateMachine<ConnectionStatus> getConnectionState()
+    {
+        return connectionState;
+    }
+    
+    /*
+     * Tells listener about every change of the connection status, on the 
+     *  thread that made it. Only usable from within the Service's process 
+     *  (through LocalBinder); other processes get MQTT_STATUS_INTENT 
+     *  broadcasts.
+     */
+    public void registerStatusListener(MqttStateMachine.Listener<ConnectionStatus> listener)
+    {
+        connectionState.addListener(listener);
+    }
+    
+    public void unregisterStatusListener(MqttStateMachine.Listener<ConnectionStatus> listener)
+    {
+        connectionState.removeListener(listener);
+    }
+    
+    public MqttOutboundQueue getOutboundQueue()
+    {
+        return outboundQueue;
+    }
+    
+    /*
+     * Reconnect attempts so far, and time-to-reconnect metrics
+     */
+    public MqttReconnectBackoff getReconnectBackoff()
+    {
+        return reconnectBackoff;
+    }
+    
+    /*
+     * Received messages waiting for a handler, and how many were dropped 
+     *  or conflated because the handlers could not keep up
+     */
+    public MqttInboundQueue getInboundQueue()
+    {
+        return inboundQueue;
+    }
+    
+    /*
+     * The last message received on topic, without asking the broker; null 
+     *  if there is none, or the cache is turned off. Not copied - callers 
+     *  must not modify it.
+     */
+    public byte[] getLastValue(String topic)
+    {
+    	MqttLastValueCache cache = lastValues;
+    	MqttLastValueCache.Entry entry = cache != null ? cache.get(topic) : null;
+    	return entry != null ? entry.getPayload() : null;
+    }
+    
+    /*
+     * The last message received on every topic matching filter that is
+     *  still in the cache, least recently used first. Throws 
+     *  IllegalArgumentException for an invalid filter.
+     */
+    public List<MqttMessageDispatcher.ReceivedMessage> getLastValues(String filter)
+    {
+    	List<MqttMessageDispatcher.ReceivedMessage> result = new ArrayList<MqttMessageDispatcher.ReceivedMessage>();
+    	MqttLastValueCache cache = lastValues;
+    	if(cache != null){
+    		for(MqttLastValueCache.Entry entry : cache.snapshot(filter)){
+    			result.add(new MqttMessageDispatcher.ReceivedMessage(entry.getTopic(), entry.getPayload()));
+    		}
+    	}
+    	return result;
+    }
+    
+    public MqttLastValueCache getLastValueCache()
+    {
+    	return lastValues;
+    }
+    
+    /*
+     * How many QoS 1 messages were received again and not handed on; null
+     *  when deduplication is turned off
+     */
+    public MqttDeduplicator getDeduplicator()
+    {
+        return deduplicator;
+    }
+    
+    /*
+     * Publish and delivery latency, inbound rate and bytes, time spent in 
+     *  the callback, connects and time to connect, ping round trips and
+     *  queue depths; also printed by "adb shell dumpsys activity service"
+     *  followed by the Service's name
+     */
+    public MqttMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args)
+    {
+        writer.println("status: "+connectionState);
+        if(metrics != null){
+        	writer.print(metrics.dump());
+        }
+        writer.flush();
+    }
+    
+    /*
+     * Subscribes to filter at qos, or changes the QoS we are subscribed at;
+     *  sent to the broker shortly, together with other changes made 
+     *  meanwhile, and again after reconnecting with a clean session.
+     *  Throws IllegalArgumentException for an invalid filter or QoS.
+     */
+    public void subscribe(String filter, int qos)
+    {
+    	if(subscriptions.subscribe(filter, qos)){
+    		scheduleSubscriptionSync();
+    	}
+    }
+    
+    public void unsubscribe(String filter)
+    {
+    	if(subscriptions.unsubscribe(filter)){
+    		scheduleSubscriptionSync();
+    	}
+    }
+    
+    /*
+     * Subscribes to filter at the QoS its policy gives it
+     */
+    public void subscribe(String filter)
+    {
+    	subscribe(filter, topicPolicies.getPolicy(filter).getQoS());
+    }
+    
+    /*
+     * How messages on the topics matching filter are published from now 
+     *  on, and the QoS they are subscribed to at when none is given; null
+     *  removes the policy. Where several filters match a topic, the one 
+     *  set last wins. Throws IllegalArgumentException for an invalid filter.
+     */
+    public void setTopicPolicy(String filter, MqttTopicPolicy policy)
+    {
+    	topicPolicies.setPolicy(filter, policy);
+    }
+    
+    public MqttTopicPolicies getTopicPolicies()
+    {
+    	return topicPolicies;
+    }
+    
+    /*
+     * The filters we are, or are about to be, subscribed to
+     */
+    public List<IMqttTopic> getSubscriptions()
+    {
+    	return subscriptions.getTopics();
+    }
+    
+    /*
+     * Delivers received messages to listener directly, on a Service thread.
+     *  Only usable from within the Service's process (through LocalBinder).
+     */
+    public void registerMessageListener(MqttMessageDispatcher.Listener listener)
+    {
+    	if(messageDispatcher != null){
+    		messageDispatcher.register(listener);
+    	}
+    }
+    
+    /*
+     * As above, but delivers messages in batches of up to maxBatchSize, at 
+     *  most maxDelayMillis after the first message of a batch arrived
+     */
+    public void registerMessageListener(MqttMessageDispatcher.Listener listener, 
+    	int maxBatchSize, long maxDelayMillis)
+    {
+    	if(messageDispatcher != null){
+    		messageDispatcher.register(listener, maxBatchSize, maxDelayMillis);
+    	}
+    }
+    
+    public void unregisterMessageListener(MqttMessageDispatcher.Listener listener)
+    {
+    	if(messageDispatcher != null){
+    		messageDispatcher.unregister(listener);
+    	}
+    }
+    
+    /*
+     * Stops broadcasting received messages while listeners are registered
+     *  above and no other process asked for broadcasts, saving an Intent 
+     *  per message. Turn it on when every consumer in our own process gets
+     *  its messages through a MessageChannel or a registered listener; a 
+     *  BroadcastReceiver registered by hand gets nothing while it is on.
+     */
+    public void setSkipBroadcastWhenBound(boolean skip)
+    {
+    	skipBroadcastWhenBound = skip;
+    	LOG.debug("setSkipBroadcastWhenBound: "+skip);
+    }
+    
     public void rebroadcastStatus()
+    {
+        // inform the app that the Service has successfully connected
+        broadcastServiceStatus(getStatusDescription());
+    }
+    
+    /*
+     * The current connection status, as shown to the user
+     */
+    public String getStatusDescription()
     {
         String status = "";
         
-        switch (connectionStatus)
+        switch (connectionState.getState())
         {
             case INITIAL:
                 status = "Please wait";
@@ -511,13 +1189,15 @@ public class MqttService extends Service implements IMqttCallback
                 status = "Unable to connect @ "+getConnectionChangeTimestamp();
                 break;
         }
-        
-        
-        // inform the app that the Service has successfully connected
-        broadcastServiceStatus(status);
+        return status;
     }
     
     public void disconnect()
+    {
+    	actor.send(CommandType.DISCONNECT, null);
+    }
+    
+    private void handleDisconnect()
     {
         disconnectFromBroker();
 
@@ -539,13 +1219,12 @@ public class MqttService extends Service implements IMqttCallback
      */
     public void connectionLost(Throwable t)
     {
-        // we protect against the phone switching off while we're doing this
-        //  by requesting a wake lock - we request the minimum possible wake 
-        //  lock - just enough to keep the CPU running until we've finished
-        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
-        WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
-        wl.acquire();
-        
+    	actor.send(CommandType.CONNECTION_LOST, t);
+    }
+    
+    private void handleConnectionLost(Throwable t)
+    {
+        reconnectBackoff.onDisconnected(SystemClock.elapsedRealtime());
         
         //
         // have we lost our data connection?
@@ -584,13 +1263,10 @@ public class MqttService extends Service implements IMqttCallback
             //   attempting to reconnect
             broadcastServiceStatus("Connection lost - reconnecting...");
             
-            // try to reconnect
-            //reconnectInNewThread();
+            // try to reconnect - straight away the first time, backing off
+            //  if that does not work
+            scheduleReconnect();
         }
-        
-        // we're finished - if the phone is switched off, it's okay for the CPU 
-        //  to sleep now
-        wl.release();
     }
 
     
@@ -602,12 +1278,9 @@ public class MqttService extends Service implements IMqttCallback
     public void messageArrived(IMqttTopic topic, IMqttMessage message)
 		throws Exception
     {
-        // we protect against the phone switching off while we're doing this
-        //  by requesting a wake lock - we request the minimum possible wake 
-        //  lock - just enough to keep the CPU running until we've finished
-        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
-        WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
-        wl.acquire();
+        // the inbound queue took a wake lock for this message when the client
+        //  handed it over, and releases it once we return - so the phone
+        //  cannot switch off between the two
         
         //
         //  I'm assuming that all messages I receive are being sent as strings
@@ -620,21 +1293,60 @@ public class MqttService extends Service implements IMqttCallback
         //   received message so the app UI can be updated with the new data        
         try 
         {
-        	LOG.debug("messageArrived: topic="+topic.getName()+", message="+new String(message.getPayload()));
-			broadcastReceivedMessage(topic.getName(), message.getPayload());
+        	// fetch the payload once; only decode it when we actually log it
+        	byte[] payload = message.getPayload();
+        	if(LOG.isDebugEnabled()){
+        		LOG.debug("messageArrived: topic="+topic.getName()+", message="+message.getPayloadString());
+        	}
+        	
+        	// QoS 0 is never sent twice and QoS 2 is exactly once already. Every
+        	//  QoS 1 message is recorded, but only a redelivery the broker 
+        	//  flagged is dropped, so a reading that repeats is not lost
+        	if(deduplicator != null && message.getQoS() == 1 
+        		&& deduplicator.isDuplicate(topic.getName(), payload) && message.isDuplicate()){
+        		LOG.debug("messageArrived: duplicate on "+topic.getName());
+        	}
+        	else {
+	        	// on a batched topic, handlers get the messages one by one, as 
+	        	//  they were published
+	        	List<byte[]> batch = null;
+	        	if(publishBatcher != null && publishBatcher.isBatched(topic.getName())){
+	        		batch = MqttBatchEnvelope.decode(payload);
+	        	}
+        	
+	        	// before the handlers get it, so that what they look up is 
+	        	//  at least as new as what they are handed
+	        	if(lastValues != null){
+	        		if(message.isRetained() && payload.length == 0){
+	        			// the retained message was cleared
+	        			lastValues.remove(topic.getName());
+	        		}
+	        		else if(batch == null){
+	        			lastValues.put(topic.getName(), payload);
+	        		}
+	        		else if(!batch.isEmpty()){
+	        			lastValues.put(topic.getName(), batch.get(batch.size() - 1));
+	        		}
+	        	}
+        	
+	        	if(batch != null){
+	        		for(byte[] part : batch){
+	        			broadcastReceivedMessage(topic.getName(), part);
+	        		}
+	        	}
+	        	else {
+	        		broadcastReceivedMessage(topic.getName(), payload);
+	        	}
+        	}
 		} 
         catch (MqttException e) 
 		{
-			e.printStackTrace();
+			LOG.error("messageArrived: unable to read message on "+topic.getName(), e);
 		}        
  
         // receiving this message will have kept the connection alive for us, so
         //  we take advantage of this to postpone the next scheduled ping
         scheduleNextPing();
-
-        // we're finished - if the phone is switched off, it's okay for the CPU 
-        //  to sleep now        
-        wl.release();
     }
 
     
@@ -655,11 +1367,31 @@ public class MqttService extends Service implements IMqttCallback
         try
         {        	
             // define the connection to the broker
-            mqttClient = mqttClientFactory.create(brokerHostName, brokerPortNumber, getClientId(), usePersistence);//MqttClient.createMqttClient(mqttConnSpec, usePersistence);
+            if(connectionPoolSize > 1){
+            	mqttClient = new MqttClientPool(mqttClientFactory, brokerHostName, brokerPortNumber, 
+            		getClientId(), connectionPoolSize, new MqttClientPool.PersistenceFactory() {
+						@Override
+						public IMqttPersistence create(int connection) {
+							// every journal keeps its records in a folder of its own,
+							//  named after the client ID
+							return connection == 0 ? usePersistence 
+								: new MqttJournalPersistence(new File(getFilesDir(), "mqtt"));
+						}
+					});
+            }
+            else {
+            	mqttClient = mqttClientFactory.create(brokerHostName, brokerPortNumber, getClientId(), usePersistence);//MqttClient.createMqttClient(mqttConnSpec, usePersistence);
+            }
+            
+            // payloads are compressed and decompressed right at the client, 
+            //  so that everything above it sees them as they were published
+            mqttClient = new MqttCodecClient(mqttClient, payloadCodecs);
 
             // register this client app has being able to receive messages
             //mqttClient.registerSimpleHandler(this);
-            mqttClient.setCallback(this);
+            // they go through the inbound queue, so that handling them does 
+            //  not hold up the connection
+            mqttClient.setCallback(inboundQueue);
         }
         catch (MqttException e)
         {
@@ -698,76 +1430,122 @@ public class MqttService extends Service implements IMqttCallback
     }*/
     
     /*
-     * (Re-)connect to the message broker
+     * (Re-)connect to the message broker, on the I/O thread
      */
-    private boolean connectToBroker()
+    private void connectToBroker()
     {
     	LOG.debug("connectToBroker");
     	
-        try
-        {            
-        	IMqttConnectOptions options = new MqttConnectOptions();
-        	options.setCleanSession(cleanStart);
-        	options.setKeepAliveInterval(keepAliveSeconds);
-        	options.setUserName(username);
-        	options.setPassword(password);
-        	
-            // try to connect
-            mqttClient.connect(options); 
-            
-            // we are connected
-            changeStatus(ConnectionStatus.CONNECTED);
-            
-            // inform the app that the app has successfully connected
-            broadcastServiceStatus("Connected @ "+getConnectionChangeTimestamp());            
-
-            // we need to wake up the phone's CPU frequently enough so that the 
-            //  keep alive messages can be sent
-            // we schedule the first one of these now
-            scheduleNextPing();
+    	final IMqttConnectOptions options = new MqttConnectOptions();
+    	options.setCleanSession(cleanStart);
+    	options.setKeepAliveInterval(keepAliveSeconds);
+    	options.setUserName(username);
+    	options.setPassword(password);
+    	
+    	final IMqttClient client = mqttClient;
+    	connecting = true;
+    	actor.runBlocking(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					// try to connect
+					client.connect(options);
+					actor.send(CommandType.CONNECTED, client);
+				}
+				catch (MqttException e)
+				{
+					LOG.error("connectToBroker: failed", e);
+					actor.send(CommandType.CONNECT_FAILED, client);
+				}
+			}
+		});
+    }
+    
+    private void handleConnected(IMqttClient client)
+    {
+    	// we have been disconnected since, and the client is on its way out
+    	if (client != mqttClient)
+    	{
+    		return;
+    	}
+    	connecting = false;
+    	
+        // we are connected
+        changeStatus(ConnectionStatus.CONNECTED);
+        
+        cancelReconnect();
+        reconnectBackoff.onConnected(SystemClock.elapsedRealtime());
+        LOG.debug("connectToBroker: "+reconnectBackoff);
+        
+        // inform the app that the app has successfully connected
+        broadcastServiceStatus("Connected @ "+getConnectionChangeTimestamp());            
 
-            return true;
-        }
-        catch (MqttException e)
+        // we need to wake up the phone's CPU frequently enough so that the 
+        //  keep alive messages can be sent
+        // we schedule the first one of these now, at the interval we have
+        //  learned for the network we're on
+        keepAlive.setNetwork(getNetworkKey());
+        scheduleNextPing();
+        
+        // with a clean session the broker starts over, otherwise it kept our
+        //  subscriptions and only what changed while we were away is sent.
+        //  MQTT 3.1 has no way to tell us that it lost the session anyway, 
+        //  e.g. because it was restarted - brokers that may do that need 
+        //  cleanStart
+        if (cleanStart)
         {
-            // something went wrong!            
-        	changeStatus(ConnectionStatus.NOTCONNECTED_UNKNOWNREASON);
-            
-            //
-            // inform the app that we failed to connect so that it can update
-            //  the UI accordingly
-            broadcastServiceStatus("Unable to connect @ "+getConnectionChangeTimestamp());
-
-            //
-            // inform the user (for times when the Activity UI isn't running) 
-            //   that we failed to connect
-            notifyUser("Unable to connect", "MQTT", "Unable to connect - will retry later");        
-            
-            // if something has failed, we wait for one keep-alive period before
-            //   trying again
-            // in a real implementation, you would probably want to keep count
-            //  of how many times you attempt this, and stop trying after a 
-            //  certain number, or length of time - rather than keep trying 
-            //  forever.
-            // a failure is often an intermittent network issue, however, so 
-            //  some limited retry is a good idea
-            scheduleNextPing();
-            
-            return false;
+        	subscriptions.sessionLost();
         }
+        onConnect();
+    }
+    
+    private void handleConnectFailed(IMqttClient client)
+    {
+    	if (client != mqttClient)
+    	{
+    		return;
+    	}
+    	connecting = false;
+    	
+        // something went wrong!            
+        changeStatus(ConnectionStatus.NOTCONNECTED_UNKNOWNREASON);
+        
+        //
+        // inform the app that we failed to connect so that it can update
+        //  the UI accordingly
+        broadcastServiceStatus("Unable to connect @ "+getConnectionChangeTimestamp());
+
+        //
+        // inform the user (for times when the Activity UI isn't running) 
+        //   that we failed to connect
+        notifyUser("Unable to connect", "MQTT", "Unable to connect - will retry later");        
+        
+        // a failure is often an intermittent network issue, so we try 
+        //  again - waiting longer after every failed attempt, up to a 
+        //  maximum, so that we neither give up nor drain the battery
+        scheduleReconnect();
     }
     
     /*
      * Send a request to the message broker to be sent messages published with 
-     *  the specified topic names. Wildcards are allowed.    
+     *  the specified topic names, and to stop sending those we no longer 
+     *  want - only what the broker does not have yet, in at most one 
+     *  SUBSCRIBE and one UNSUBSCRIBE. Wildcards are allowed. Called on the
+     *  I/O thread.
      */
-    private void subscribeToTopics()
+    private void syncSubscriptions(IMqttClient client)
     {
-    	LOG.debug("subscribeToTopics");
-    	
+        MqttSubscriptionSet.Delta delta = subscriptions.diff();
+        LOG.debug("syncSubscriptions: "+delta);
+        if (delta.isEmpty())
+        {
+        	return;
+        }
+        
         boolean subscribed = false;
         
-        if (!isConnected())
+        if (!client.isConnected())
         {
             // quick sanity check - don't try and subscribe if we 
             //  don't have a connection            
@@ -777,8 +1555,19 @@ public class MqttService extends Service implements IMqttCallback
         {                                    
             try 
             {
-            	mqttClient.subscribe(
-            		topics.toArray(new IMqttTopic[topics.size()]));
+            	IMqttTopic[] unsubscribe = delta.getUnsubscribe();
+            	if (unsubscribe.length > 0)
+            	{
+            		client.unsubscribe(unsubscribe);
+            		subscriptions.confirmUnsubscribed(unsubscribe);
+            	}
+            	
+            	IMqttTopic[] subscribe = delta.getSubscribe();
+            	if (subscribe.length > 0)
+            	{
+            		client.subscribe(subscribe);
+            		subscriptions.confirmSubscribed(subscribe);
+            	}
                 
                 subscribed = true;
             }             
@@ -786,6 +1575,12 @@ public class MqttService extends Service implements IMqttCallback
             {
             	LOG.error("subscribe failed - illegal argument", e);
             } 
+            catch (MqttSubscribeException e) 
+            {
+            	// keep what the broker did grant
+            	subscriptions.confirmSubscribed(e.getSubscribedTopics());
+            	LOG.error("subscribe failed for "+e.getFailedTopics().length+" topics", e);
+            } 
             catch (MqttException e) 
             {
             	LOG.error("subscribe failed - MQTT exception", e);
@@ -794,6 +1589,8 @@ public class MqttService extends Service implements IMqttCallback
         
         if (subscribed == false)
         {
+            // what was not confirmed is sent again after the next change 
+            //  or reconnect
             //
             // inform the app of the failure to subscribe so that the UI can 
             //  display an error
@@ -805,6 +1602,35 @@ public class MqttService extends Service implements IMqttCallback
         }
     }
     
+    /*
+     * Changes made within subscriptionSyncDelayMillis of each other go to 
+     *  the broker together
+     */
+    private void scheduleSubscriptionSync()
+    {
+    	if (subscriptionSyncScheduled.compareAndSet(false, true))
+    	{
+    		actor.sendLater(CommandType.SUBSCRIPTIONS_CHANGED, null, subscriptionSyncDelayMillis);
+    	}
+    }
+    
+    private void handleSubscriptionsChanged()
+    {
+    	subscriptionSyncScheduled.set(false);
+    	
+    	// otherwise they are sent once we are connected
+    	if (isConnected() && !connecting)
+    	{
+    		final IMqttClient client = mqttClient;
+    		actor.runBlocking(new Runnable() {
+				@Override
+				public void run() {
+					syncSubscriptions(client);
+				}
+			});
+    	}
+    }
+    
     /*
      * Terminates a connection to the message broker.
      */
@@ -827,6 +1653,13 @@ public class MqttService extends Service implements IMqttCallback
                 unregisterReceiver(pingSender);
                 pingSender = null;
             }
+            
+            cancelReconnect();
+            if (reconnectSender != null)
+            {
+                unregisterReceiver(reconnectSender);
+                reconnectSender = null;
+            }
         }
         catch (Exception eee)
         {
@@ -834,11 +1667,34 @@ public class MqttService extends Service implements IMqttCallback
         	LOG.error("unregister failed", eee);
         }
 
+        // the client is done with as of now; a new one is made for the next
+        //  connection, and connects after this one has disconnected
+        final IMqttClient client = mqttClient;
+        mqttClient = null;
+        connecting = false;
+        if (client != null)
+        {
+        	actor.runBlocking(new Runnable() {
+				@Override
+				public void run() {
+					disconnectQuietly(client);
+				}
+			});
+        }
+        
+        // we can now remove the ongoing notification that warns users that
+        //  there was a long-running ongoing service running
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        nm.cancelAll();
+    }
+    
+    private void disconnectQuietly(IMqttClient client)
+    {
         try 
         {
-            if (mqttClient != null && mqttClient.isConnected())
+            if (client.isConnected())
             {
-                mqttClient.disconnect();
+                client.disconnect();
             }
         } 
         catch (MqttPersistenceException e) 
@@ -849,15 +1705,6 @@ public class MqttService extends Service implements IMqttCallback
 		{
 			LOG.error("disconnect failed - mqtt exception", e);
 		}
-        finally
-        {
-            mqttClient = null;
-        }
-        
-        // we can now remove the ongoing notification that warns users that
-        //  there was a long-running ongoing service running
-        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        nm.cancelAll();
     }
     
 
@@ -889,18 +1736,55 @@ public class MqttService extends Service implements IMqttCallback
                                                                  new Intent(MQTT_PING_ACTION), 
                                                                  PendingIntent.FLAG_UPDATE_CURRENT);
         
-        // in case it takes us a little while to do this, we try and do it 
-        //  shortly before the keep alive period expires
-        // it means we're pinging slightly more frequently than necessary 
-        Calendar wakeUpTime = Calendar.getInstance();
-        wakeUpTime.add(Calendar.SECOND, keepAliveSeconds);
+        // the interval is what the current network has been found to put up 
+        //  with, which is never more than the keep alive we gave the broker
+        // elapsed time keeps counting while the phone sleeps, and does not 
+        //  jump when the user changes the clock
+        lastActivityTime = SystemClock.elapsedRealtime();
         
         AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);        
-        aMgr.set(AlarmManager.RTC_WAKEUP,  
-                 wakeUpTime.getTimeInMillis(),                 
+        aMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,  
+                 lastActivityTime + keepAlive.getIntervalMillis(),                 
                  pendingIntent);
     }
 
+    /*
+     * Schedule the next attempt to reconnect to the message broker, at a 
+     *  delay decided by the reconnect backoff
+     */
+    private void scheduleReconnect()
+    {
+        long delay = reconnectBackoff.nextDelayMillis();
+        LOG.debug("scheduleReconnect: delay="+delay+"ms, "+reconnectBackoff);
+        
+        cancelReconnect();
+        
+        if (delay == 0)
+        {
+            actor.send(CommandType.RECONNECT, null);
+            return;
+        }
+        
+        // an alarm rather than a timer, as the phone may be asleep by then
+        AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);        
+        aMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,  
+                 SystemClock.elapsedRealtime() + delay,                 
+                 getReconnectIntent());
+    }
+    
+    private void cancelReconnect()
+    {
+        AlarmManager aMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
+        aMgr.cancel(getReconnectIntent());
+    }
+    
+    private PendingIntent getReconnectIntent()
+    {
+        return PendingIntent.getBroadcast(this, 0, 
+                                          new Intent(MQTT_RECONNECT_ACTION), 
+                                          PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
     /************************************************************************/
     /*    METHODS - internal utility methods                                */
     /************************************************************************/    
@@ -933,6 +1817,32 @@ public class MqttService extends Service implements IMqttCallback
         return netInfo != null && netInfo.isAvailable() && netInfo.isConnected();
     }
     
+    /*
+     * Identifies the network we're on, as far as NAT timeouts go: the WiFi 
+     *  network by name, mobile data by access point
+     */
+    private String getNetworkKey()
+    {
+        ConnectivityManager cm = (ConnectivityManager)getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        if (netInfo == null)
+        {
+            return "none";
+        }
+        
+        if (netInfo.getType() == ConnectivityManager.TYPE_WIFI)
+        {
+            WifiManager wm = (WifiManager)getSystemService(WIFI_SERVICE);
+            WifiInfo wifiInfo = wm.getConnectionInfo();
+            if (wifiInfo != null && wifiInfo.getSSID() != null)
+            {
+                return "wifi:"+wifiInfo.getSSID();
+            }
+        }
+        
+        return netInfo.getTypeName()+":"+netInfo.getExtraInfo();
+    }
+    
     private String getClientId()
     {
         // generate a unique client id if we haven't done so before, otherwise
@@ -955,12 +1865,54 @@ public class MqttService extends Service implements IMqttCallback
     
     private void changeStatus(ConnectionStatus newStatus){
     	LOG.debug("changeStatus -> "+newStatus.toString());
-    	connectionStatus = newStatus;
-    	connectionStatusChangeTime = new Timestamp(new Date().getTime());
+    	connectionState.moveTo(newStatus);
     }
     
     private String getConnectionChangeTimestamp(){
-    	return connectionStatusChangeTime.toString();
+    	// only made when it is shown, not on every change
+    	return new Timestamp(connectionState.getChangedAtMillis()).toString();
+    }
+    
+    /*
+     * The changes the connection status can go through; anything else is
+     *  refused, and logged
+     */
+    private static MqttStateMachine<ConnectionStatus> newConnectionStateMachine(){
+    	MqttStateMachine<ConnectionStatus> machine = new MqttStateMachine<ConnectionStatus>(
+    		ConnectionStatus.class, ConnectionStatus.INITIAL, EnumSet.of(ConnectionStatus.CONNECTED));
+    	
+    	// anything goes before we have started
+    	machine.allow(ConnectionStatus.INITIAL, EnumSet.allOf(ConnectionStatus.class));
+    	machine.allow(ConnectionStatus.CONNECTING, EnumSet.of(
+    		ConnectionStatus.CONNECTED, 
+    		ConnectionStatus.NOTCONNECTED_WAITINGFORINTERNET, 
+    		ConnectionStatus.NOTCONNECTED_UNKNOWNREASON, 
+    		ConnectionStatus.NOTCONNECTED_DATADISABLED, 
+    		ConnectionStatus.NOTCONNECTED_USERDISCONNECT));
+    	// CONNECTING when we notice a broken connection before it is reported
+    	machine.allow(ConnectionStatus.CONNECTED, EnumSet.of(
+    		ConnectionStatus.CONNECTING, 
+    		ConnectionStatus.NOTCONNECTED_WAITINGFORINTERNET, 
+    		ConnectionStatus.NOTCONNECTED_UNKNOWNREASON, 
+    		ConnectionStatus.NOTCONNECTED_DATADISABLED, 
+    		ConnectionStatus.NOTCONNECTED_USERDISCONNECT));
+    	
+    	// from any of the not connected states we can try again, or find 
+    	//  another reason not to; a connect that was under way when the 
+    	//  connection was reported lost may still succeed
+    	EnumSet<ConnectionStatus> notConnected = EnumSet.of( 
+    		ConnectionStatus.NOTCONNECTED_WAITINGFORINTERNET, 
+    		ConnectionStatus.NOTCONNECTED_UNKNOWNREASON, 
+    		ConnectionStatus.NOTCONNECTED_DATADISABLED, 
+    		ConnectionStatus.NOTCONNECTED_USERDISCONNECT);
+    	for (ConnectionStatus from : notConnected)
+    	{
+    		machine.allow(from, EnumSet.of(ConnectionStatus.CONNECTING));
+    		machine.allow(from, notConnected);
+    	}
+    	machine.allow(ConnectionStatus.NOTCONNECTED_UNKNOWNREASON, EnumSet.of(ConnectionStatus.CONNECTED));
+    	
+    	return machine;
     }
     
     private void initLog(){
@@ -974,35 +1926,303 @@ public class MqttService extends Service implements IMqttCallback
         
         backupPath = new File(backupPath.getPath(), "MqttService.csv");
     	
-    	ConfigureLog4J.configure(backupPath.getPath(), ConfigureLog4J.PATTERN_CSV);
+    	// written in the background and flushed in batches, so that logging
+    	//  on the message path never waits for external storage
+    	ConfigureLog4J.configureAsync(backupPath.getPath(), ConfigureLog4J.PATTERN_CSV, logLevel);
         
         LOG.debug("initLog: Logging to ["+backupPath.getPath()+"]");
     }
     
     private void handlePublishMessageIntent(Intent intent){
-    	LOG.debug("handlePublishMessageIntent: intent="+intent);
-    	
-    	boolean isOnline = isOnline();
-    	boolean isConnected = isConnected();
+    	if(LOG.isDebugEnabled()){
+    	    LOG.debug("handlePublishMessageIntent: intent="+intent);
+    	}
     	
-    	if(!isOnline || !isConnected){
-			LOG.error("handlePublishMessageIntent: isOnline()="+isOnline+", isConnected()="+isConnected);
+    	String topic = intent.getStringExtra(MQTT_PUBLISH_MSG_TOPIC);
+		byte[] payload = intent.getByteArrayExtra(MQTT_PUBLISH_MSG);
+    	if(topic == null || payload == null){
+    		LOG.error("handlePublishMessageIntent: no topic or payload, dropping message");
+    		return;
+    	}
+		
+		// resolved once, and handed down with the message from here on
+		MqttTopicPolicy policy = topicPolicies.getPolicy(topic);
+		
+		// urgent messages do not wait for a batch
+		if(!policy.isUrgent()
+			&& publishBatcher != null && publishBatcher.offer(topic, payload)){
 			return;
 		}
 		
-		byte[] payload = intent.getByteArrayExtra(MQTT_PUBLISH_MSG);
+		publishOrQueue(topic, payload, policy);
+    }
+    
+    private void handlePublishBatchingIntent(Intent intent){
+    	String topic = intent.getStringExtra(MQTT_PUBLISH_BATCHING_TOPIC);
+    	if(topic == null || publishBatcher == null){
+    		return;
+    	}
+    	
+    	long lingerMillis = intent.getLongExtra(MQTT_PUBLISH_BATCHING_LINGER, 0);
+    	int maxBytes = Math.min(publishBatchMaxBytes, 
+    		intent.getIntExtra(MQTT_PUBLISH_BATCHING_MAX_BYTES, publishBatchMaxBytes));
+    	publishBatcher.setBatching(topic, lingerMillis, maxBytes);
+    }
+    
+    private void handlePayloadCodecIntent(Intent intent){
+    	String filter = intent.getStringExtra(MQTT_PAYLOAD_CODEC_FILTER);
+    	if(filter == null){
+    		return;
+    	}
+    	
+    	int id = intent.getIntExtra(MQTT_PAYLOAD_CODEC_ID, MqttPayloadCodecs.ID_NONE);
+    	byte[] dictionary = intent.getByteArrayExtra(MQTT_PAYLOAD_CODEC_DICTIONARY);
+    	
+    	try
+    	{
+	    	if(id == MqttPayloadCodecs.ID_NONE){
+	    		payloadCodecs.setCodec(filter, null);
+	    	}
+	    	else if(id == MqttDeflateCodec.ID){
+	    		payloadCodecs.setCodec(filter, new MqttDeflateCodec());
+	    	}
+	    	else if(dictionary != null){
+	    		payloadCodecs.setCodec(filter, new MqttDictionaryCodec(id, dictionary));
+	    	}
+	    	else {
+	    		LOG.error("handlePayloadCodecIntent: codec "+id+" needs a dictionary");
+	    	}
+    	}
+    	catch(IllegalArgumentException e)
+    	{
+    		LOG.error("handlePayloadCodecIntent: invalid codec for "+filter, e);
+    	}
+    }
+    
+    private void handleInboundPolicyIntent(Intent intent){
+    	String filter = intent.getStringExtra(MQTT_INBOUND_POLICY_FILTER);
+    	String name = intent.getStringExtra(MQTT_INBOUND_POLICY_NAME);
+    	if(filter == null || inboundQueue == null){
+    		return;
+    	}
+    	
+    	try
+    	{
+    		inboundQueue.setPolicy(filter, name != null ? MqttInboundQueue.OverflowPolicy.valueOf(name) : null);
+    	}
+    	catch(IllegalArgumentException e)
+    	{
+    		LOG.error("handleInboundPolicyIntent: invalid policy "+name+" for "+filter, e);
+    	}
+    }
+    
+    private void handleTopicSubscribeIntent(Intent intent){
+    	String filter = intent.getStringExtra(MQTT_TOPIC_FILTER);
+    	if(filter == null){
+    		return;
+    	}
+    	
+    	try
+    	{
+    		if(intent.hasExtra(MQTT_TOPIC_QOS)){
+    			subscribe(filter, intent.getIntExtra(MQTT_TOPIC_QOS, 0));
+    		}
+    		else {
+    			subscribe(filter);
+    		}
+    	}
+    	catch(IllegalArgumentException e)
+    	{
+    		LOG.error("handleTopicSubscribeIntent: invalid subscription to "+filter, e);
+    	}
+    }
+    
+    private void handleTopicPolicyIntent(Intent intent){
+    	String filter = intent.getStringExtra(MQTT_TOPIC_FILTER);
+    	if(filter == null){
+    		return;
+    	}
+    	
+    	try
+    	{
+    		MqttTopicPolicy policy = null;
+    		if(intent.hasExtra(MQTT_TOPIC_QOS)){
+    			policy = new MqttTopicPolicy(intent.getIntExtra(MQTT_TOPIC_QOS, 0),
+    				intent.getBooleanExtra(MQTT_TOPIC_RETAINED, false),
+    				intent.getIntExtra(MQTT_TOPIC_PRIORITY, MqttTopicPolicy.PRIORITY_NORMAL));
+    		}
+    		setTopicPolicy(filter, policy);
+    	}
+    	catch(IllegalArgumentException e)
+    	{
+    		LOG.error("handleTopicPolicyIntent: invalid policy for "+filter, e);
+    	}
+    }
+    
+    /*
+     * A message on its way to the actor thread
+     */
+    private static final class PendingPublish
+    {
+    	final String topic;
+    	final byte[] payload;
+    	final MqttTopicPolicy policy;
+    	
+    	PendingPublish(String topic, byte[] payload, MqttTopicPolicy policy)
+    	{
+    		this.topic = topic;
+    		this.payload = payload;
+    		this.policy = policy;
+    	}
+    }
+    
+    /*
+     * Publishes straight away if we can, and queues the message if we can't.
+     *  Never called on the I/O thread: a message that cannot go out now is 
+     *  queued here rather than there, so that a full queue with the BLOCK 
+     *  policy can wait for the I/O thread to drain it
+     */
+    private void publishOrQueue(String topic, byte[] payload, MqttTopicPolicy policy){
+    	final IMqttClient client = mqttClient;
+    	if(!canPublishNow(client, policy)){
+    		if(queueForLater(topic, payload, policy, true) && client != null && client.isConnected()){
+    			// we may have come online while this was queued
+    			actor.runBlocking(new Runnable() {
+					@Override
+					public void run() {
+						drainOutboundQueue(client);
+					}
+				});
+    		}
+    		return;
+    	}
+    	
+    	// once we are shutting down, all we can do is queue it for next time
+    	if(!actor.send(CommandType.PUBLISH, new PendingPublish(topic, payload, policy))){
+    		queueForLater(topic, payload, policy, false);
+    	}
+    }
+    
+    /*
+     * Nothing is waiting to go out before a message with this policy, or it
+     *  is urgent enough to go first, and we are connected
+     */
+    private boolean canPublishNow(IMqttClient client, MqttTopicPolicy policy){
+    	MqttOutboundQueue queue = outboundQueue;
+    	return client != null && client.isConnected() && isOnline() 
+    		&& (queue == null || queue.size() == 0 || policy.isUrgent());
+    }
+    
+    private void handlePublish(final PendingPublish message){
+    	final IMqttClient client = mqttClient;
+    	actor.runBlocking(new Runnable() {
+			@Override
+			public void run() {
+				publishOrQueue(client, message.topic, message.payload, message.policy);
+			}
+		});
+    }
+    
+    /*
+     * Called on the I/O thread
+     */
+    private void publishOrQueue(IMqttClient client, String topic, byte[] payload, MqttTopicPolicy policy){
+    	boolean connected = client != null && client.isConnected();
+    	
+		// fast path - checked again, as things may have changed since the 
+		//  message was handed over
+		if(canPublishNow(client, policy))
+		{
+			try
+			{
+				client.publish(new MqttTopic(topic), policy.newMessage(payload));
+				return;
+			}
+			catch(MqttException e)
+			{
+				LOG.error("publishOrQueue: publish failed, queueing message", e);
+			}
+		}
+		
+		// this is the thread that drains the queue, so it must not wait for room
+		if(queueForLater(topic, payload, policy, false) && connected){
+			// we may have come online while this was queued
+			drainOutboundQueue(client);
+		}
+    }
+    
+    private boolean queueForLater(String topic, byte[] payload, MqttTopicPolicy policy, boolean mayWait){
+		if(outboundQueue == null){
+			LOG.error("publishOrQueue: no outbound queue, dropping message");
+			return false;
+		}
 		
 		try
 		{
-			mqttClient.publish(new MqttTopic("test-topic"), new MqttMessage(payload));
+			return outboundQueue.offer(topic, payload, policy.getQoS(), policy.isRetained(), mayWait);
 		}
-		catch(MqttException e)
+		catch(MqttPersistenceException e)
 		{
-			LOG.error(e.getMessage());
-			e.printStackTrace();
+			LOG.error("publishOrQueue: unable to queue message", e);
+			return false;
 		}
     }
     
+    private void initOutboundQueue(){
+    	outboundQueue = new MqttOutboundQueue(
+    		new MqttJournalPersistence(new File(getFilesDir(), "mqtt-outbound")),
+    		outboundQueueMaxMessages, outboundQueueMaxBytes, 
+    		outboundQueueOverflow, outboundQueueBlockMillis);
+    	
+    	try
+    	{
+    		outboundQueue.open(getClientId(), brokerHostName+":"+brokerPortNumber);
+    	}
+    	catch(MqttPersistenceException e)
+    	{
+    		LOG.error("initOutboundQueue: unable to open outbound queue", e);
+    		outboundQueue = null;
+    	}
+    }
+    
+    /*
+     * Called on the I/O thread
+     */
+    private void drainOutboundQueue(IMqttClient client){
+    	if(outboundQueue == null || !client.isConnected()){
+    		return;
+    	}
+    	
+    	try
+    	{
+    		outboundQueue.drain(client, outboundQueueDrainBatch);
+    	}
+    	catch(MqttPersistenceException e)
+    	{
+    		LOG.error("drainOutboundQueue: failed", e);
+    	}
+    	
+    	if(LOG.isDebugEnabled()){
+    	    LOG.debug("drainOutboundQueue: "+outboundQueue);
+    	}
+    }
+    
+    private void closeOutboundQueue(){
+    	if(outboundQueue == null){
+    		return;
+    	}
+    	
+    	try
+    	{
+    		outboundQueue.close();
+    	}
+    	catch(MqttPersistenceException e)
+    	{
+    		LOG.error("closeOutboundQueue: failed", e);
+    	}
+    	outboundQueue = null;
+    }
+    
     /*
      * Called in response to a change in network connection - after losing a 
      *  connection to the server, this allows us to wait until we have a usable
@@ -1015,86 +2235,122 @@ public class MqttService extends Service implements IMqttCallback
         @Override
         public void onReceive(Context ctx, Intent intent) 
         {
-            // we protect against the phone switching off while we're doing this
-            //  by requesting a wake lock - we request the minimum possible wake 
-            //  lock - just enough to keep the CPU running until we've finished
-            PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
-            WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
-            wl.acquire();
-                        
-            LOG.warn("onReceive: isOnline()="+isOnline()+", isConnected()="+isConnected());  
-            if (isOnline() && !isConnected())
-            {            
-            	doStart(null, -1);    	               
-            }
-            
-            // we're finished - if the phone is switched off, it's okay for the CPU 
-            //  to sleep now
-            wl.release();
+        	LOG.debug("onReceive: intent="+intent);
+        	
+            // a change often comes with a few more; they are handled once
+            actor.send(CommandType.NETWORK_CHANGED, null);
+        }
+    }
+    
+    private void handleNetworkChanged()
+    {
+        LOG.warn("handleNetworkChanged: isOnline()="+isOnline()+", isConnected()="+isConnected());  
+        if (isOnline() && !isConnected() && !connecting)
+        {            
+        	// we're on a new network - a backed-off attempt scheduled for
+        	//  the old one would only hold us up, so try again right away
+        	cancelReconnect();
+        	reconnectBackoff.reset();
+        	scheduleReconnect();
         }
     }
     
     /*
      * Used to implement a keep-alive protocol at this Service level - it sends 
-     *  a PING message to the server, then schedules another ping after an 
-     *  interval defined by keepAliveSeconds
+     *  a PING to the server, then schedules another ping after an interval 
+     *  learned from how long the connection survives being idle
      */
     public class PingSender extends BroadcastReceiver 
     {
-    	private final Logger LOG = Logger.getLogger(PingSender.class);
+        @Override
+        public void onReceive(Context context, Intent intent) 
+        {
+            // the Alarm Manager only holds a CPU wake lock while onReceive() 
+            //  runs, and waiting for the broker's answer must not block the 
+            //  main thread - the actor takes over the wake lock, and pings 
+            //  on its I/O thread
+            actor.send(CommandType.PING, null);
+        }
+    }
+    
+    private void handlePing()
+    {
+    	if(isOnline() && !isConnected())
+    	{
+    		LOG.warn("handlePing: isOnline()="+isOnline()+", isConnected()="+isConnected());
+    		if(!connecting){
+    			scheduleReconnect();
+    		}
+    	}
+    	else if(!isOnline()){
+    		LOG.debug("Waiting for network to come online again");        		
+    	}
+    	else
+    	{        	
+    		final long idleMillis = SystemClock.elapsedRealtime() - lastActivityTime;
+    		final IMqttClient client = mqttClient;
+    		
+    		actor.runBlocking(new Runnable() {
+				@Override
+				public void run() {
+		            try
+		            {
+		                client.ping();
+		                
+		                // the connection survived being idle for this long
+		                actor.send(CommandType.PING_SUCCEEDED, idleMillis);
+		            } 
+		            catch (MqttException e) 
+		            {
+		                // if something goes wrong, it should result in connectionLost
+		                //  being called, so we will handle it there
+		                LOG.error("ping failed - MQTT exception", e);
+		                
+		                // assume the client connection is broken - trash it
+		                disconnectQuietly(client);
+		                actor.send(CommandType.PING_FAILED, idleMillis);
+		            }
+				}
+			});
+        }
+
+        // start the next keep alive period 
+        scheduleNextPing();
+    }
+    
+    private void handlePingFailed(long idleMillis)
+    {
+        // only blame the idle time if we are still on the network
+        //  the interval was learned for
+        if(isOnline() && getNetworkKey().equals(keepAlive.getNetwork())){
+        	keepAlive.onPingFailed(idleMillis);
+        }
+        
+        // reconnect
+        LOG.warn("handlePingFailed: idleMillis="+idleMillis);
+        reconnectBackoff.onDisconnected(SystemClock.elapsedRealtime());
+        scheduleReconnect();
+    }
+    
+    /*
+     * Wakes the Service up when it's time for the next reconnect attempt
+     */
+    public class ReconnectSender extends BroadcastReceiver 
+    {
+    	private final Logger LOG = Logger.getLogger(ReconnectSender.class);
     	
         @Override
         public void onReceive(Context context, Intent intent) 
         {
-            // Note that we don't need a wake lock for this method (even though
-            //  it's important that the phone doesn't switch off while we're
-            //  doing this).
-            // According to the docs, "Alarm Manager holds a CPU wake lock as 
-            //  long as the alarm receiver's onReceive() method is executing. 
-            //  This guarantees that the phone will not sleep until you have 
-            //  finished handling the broadcast."
-            // This is good enough for our needs.
-            
+        	LOG.debug("onReceive: isOnline()="+isOnline()+", isConnected()="+isConnected());
+        	
+        	// if we're offline, the network receiver will get us going again
         	if(isOnline() && !isConnected())
         	{
-        		LOG.warn("onReceive: isOnline()="+isOnline()+", isConnected()="+isConnected());
-        		doStart(null, -1);
-        	}
-        	else if(!isOnline()){
-        		LOG.debug("Waiting for network to come online again");        		
+        		// the Alarm Manager's wake lock ends with onReceive(); the actor
+        		//  keeps the CPU up until the attempt is over
+        		actor.send(CommandType.RECONNECT, null);
         	}
-        	else
-        	{        	
-	            try
-	            {
-	                mqttClient.ping();         
-	            } 
-	            catch (MqttException e) 
-	            {
-	                // if something goes wrong, it should result in connectionLost
-	                //  being called, so we will handle it there
-	                LOG.error("ping failed - MQTT exception", e);
-	                
-	                // assume the client connection is broken - trash it
-	                try {                    
-	                    mqttClient.disconnect();
-	                } 
-	                catch (MqttPersistenceException e1) {
-	                	LOG.error("disconnect failed - persistence exception", e1);                
-	                }
-					catch (MqttException e2)
-					{					
-						LOG.error("disconnect failed - mqtt exception", e2);              
-					}
-	                
-	                // reconnect
-	                LOG.warn("onReceive: MqttException="+e);
-	                doStart(null, -1);           
-	            }
-            }
-
-            // start the next keep alive period 
-            scheduleNextPing();
         }
     }
 }
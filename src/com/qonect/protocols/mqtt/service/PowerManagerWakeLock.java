@@ -0,0 +1,43 @@
+package com.qonect.protocols.mqtt.service;
+
+import android.os.PowerManager;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttWakeLock;
+
+/*
+ * A partial wake lock from the PowerManager; the CPU stays on, the screen
+ *  and keyboard do not
+ */
+public class PowerManagerWakeLock implements IMqttWakeLock
+{
+	private final PowerManager.WakeLock wakeLock;
+
+	public PowerManagerWakeLock(PowerManager powerManager, String tag)
+	{
+		wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+		// MqttWakeLockManager does the counting
+		wakeLock.setReferenceCounted(false);
+	}
+
+	@Override
+	public void acquire()
+	{
+		wakeLock.acquire();
+	}
+
+	@Override
+	public void acquire(long timeoutMillis)
+	{
+		wakeLock.acquire(timeoutMillis);
+	}
+
+	@Override
+	public void release()
+	{
+		// a timed out lock is not held any more, and releasing it again
+		//  would throw
+		if(wakeLock.isHeld()){
+			wakeLock.release();
+		}
+	}
+}
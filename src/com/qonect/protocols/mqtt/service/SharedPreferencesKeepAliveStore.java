@@ -0,0 +1,31 @@
+package com.qonect.protocols.mqtt.service;
+
+import android.content.SharedPreferences;
+
+import com.qonect.protocols.mqtt.interfaces.IMqttKeepAliveStore;
+
+/*
+ * Keeps learned keep-alive intervals in the app's shared preferences
+ */
+public class SharedPreferencesKeepAliveStore implements IMqttKeepAliveStore
+{
+	private final SharedPreferences preferences;
+
+	public SharedPreferencesKeepAliveStore(SharedPreferences preferences)
+	{
+		this.preferences = preferences;
+	}
+
+	@Override
+	public long getLong(String key, long defaultValue)
+	{
+		return preferences.getLong(key, defaultValue);
+	}
+
+	@Override
+	public void putLong(String key, long value)
+	{
+		// written from the ping thread, no need to wait for the disk
+		preferences.edit().putLong(key, value).apply();
+	}
+}